@@ -0,0 +1,46 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Runs the benchmarks of the project one after the other, so that a run of the hot paths can be
+ * compared with the last one. With no arguments it runs the quick ones (hashing, codec and the
+ * routing path), else the ones named, eg. "java bench.AllBenchmarks Node Store Wal". Transfer
+ * exits the JVM when done, so it should be named last.
+ */
+public class AllBenchmarks {
+
+	private interface Main {
+		void run(String[] args) throws Exception;
+	}
+
+	private static Map<String, Main> benchmarks = new LinkedHashMap<>();
+
+	static {
+		benchmarks.put("Hash", HashBenchmark::main);
+		benchmarks.put("Codec", CodecBenchmark::main);
+		benchmarks.put("Node", NodeBenchmark::main);
+		benchmarks.put("Store", StoreBenchmark::main);
+		benchmarks.put("OffHeap", OffHeapBenchmark::main);
+		benchmarks.put("Wal", WalBenchmark::main);
+		benchmarks.put("Transfer", TransferBenchmark::main);
+	}
+
+	final static List<String> quick = Arrays.asList("Hash", "Codec", "Node");
+
+	public static void main(String[] args) throws Exception {
+		List<String> names = (args.length > 0) ? Arrays.asList(args) : quick;
+		for (String name : names) {
+			Main bench = benchmarks.get(name);
+			if (bench == null) {
+				System.out.println("No benchmark " + name + ", one of " + benchmarks.keySet());
+				continue;
+			}
+			System.out.println("# " + name);
+			bench.run(new String[0]);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Minimal benchmark harness. Runs an operation for a number of warmup rounds, then measures the
+ * average time and, when the JVM can tell, the bytes allocated per operation.
+ */
+public class Bench {
+
+	/* keeps results alive so the JIT cannot remove the measured code */
+	public static volatile Object sink;
+
+	private static int warmupRounds = 5;
+	private static int measureRounds = 10;
+
+	private static com.sun.management.ThreadMXBean threads = allocationBean();
+
+	/**
+	 * An operation to be measured. run() is called ops times per round.
+	 */
+	public static abstract class Op {
+		public abstract Object run(int i) throws Exception;
+	}
+
+	/**
+	 * Measures op and prints one line with ns/op, ops/s and B/op.
+	 *
+	 * @param ops calls of op per round
+	 */
+	public static void measure(String name, int ops, Op op) throws Exception {
+		for (int r = 0; r < warmupRounds; r++) {
+			round(ops, op);
+		}
+
+		long bytesBefore = allocatedBytes();
+		long time = 0;
+		for (int r = 0; r < measureRounds; r++) {
+			time += round(ops, op);
+		}
+		long bytes = allocatedBytes() - bytesBefore;
+
+		long total = (long) ops * measureRounds;
+		double nsPerOp = (double) time / total;
+		String bytesPerOp = (bytesBefore < 0) ? "n/a" : String.format("%.1f", (double) bytes / total);
+		System.out.println(String.format("%-40s %12.1f ns/op %14.0f ops/s %10s B/op", name, nsPerOp,
+				1e9 / nsPerOp, bytesPerOp));
+	}
+
+	/**
+	 * Measures op called from threads threads at once and prints one line with the wall time
+	 * per operation and the total ops/s. Allocation is not measured.
+	 *
+	 * @param ops calls of op per thread and round. Thread t calls op with t * ops + i.
+	 */
+	public static void measureThreads(String name, int threads, int ops, Op op) throws Exception {
+		for (int r = 0; r < warmupRounds; r++) {
+			roundThreads(threads, ops, op);
+		}
+		long time = 0;
+		for (int r = 0; r < measureRounds; r++) {
+			time += roundThreads(threads, ops, op);
+		}
+
+		long total = (long) ops * threads * measureRounds;
+		double nsPerOp = (double) time / total;
+		System.out.println(String.format("%-40s %12.1f ns/op %14.0f ops/s %10s", name + " x" + threads, nsPerOp,
+				1e9 / nsPerOp, "threads"));
+	}
+
+	private static long roundThreads(int threads, int ops, Op op) throws Exception {
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		Exception[] failure = { null };
+		for (int t = 0; t < threads; t++) {
+			int base = t * ops;
+			Thread worker = new Thread(() -> {
+				try {
+					start.await();
+					Object res = null;
+					for (int i = 0; i < ops; i++) {
+						res = op.run(base + i);
+					}
+					sink = res;
+				} catch (Exception e) {
+					failure[0] = e;
+				} finally {
+					done.countDown();
+				}
+			});
+			worker.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long time = System.nanoTime() - begin;
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		return time;
+	}
+
+	private static long round(int ops, Op op) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < ops; i++) {
+			sink = op.run(i);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long allocatedBytes() {
+		if (threads == null) {
+			return -1;
+		}
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static com.sun.management.ThreadMXBean allocationBean() {
+		Object bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return (com.sun.management.ThreadMXBean) bean;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,77 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+import structures.Data;
+import structures.Message;
+import structures.MessageCodec;
+import structures.MessageType;
+
+/*
+ * Compares the binary MessageCodec with java serialization, on encoded size and on the time of
+ * an encode/decode round trip.
+ */
+public class CodecBenchmark {
+
+	final static int ops = 100000;
+
+	public static void main(String[] args) throws Exception {
+		final Message mes = new Message();
+		mes.setRequestId(12345);
+		mes.setInitialPort(64003);
+		mes.setFrom(64007);
+		mes.setTo(64001);
+		mes.setReplyTo(64210);
+		mes.setReplFactor(3);
+		mes.setType(MessageType.INSERT);
+		mes.setData(new Data("Like a Rolling Stone", "522"));
+
+		System.out.println("----------------------------------------");
+		System.out.println("java serialization size: " + serialize(mes).length + " bytes");
+		System.out.println("MessageCodec size:       " + encode(mes).remaining() + " bytes");
+
+		Bench.measure("serialization round trip", ops, new Bench.Op() {
+			@Override
+			public Object run(int i) throws Exception {
+				return deserialize(serialize(mes));
+			}
+		});
+
+		final ByteBuffer buf = ByteBuffer.allocate(MessageCodec.maxSize(mes));
+		Bench.measure("MessageCodec round trip", ops, new Bench.Op() {
+			@Override
+			public Object run(int i) throws Exception {
+				buf.clear();
+				MessageCodec.encode(mes, buf);
+				buf.flip();
+				return MessageCodec.decode(buf);
+			}
+		});
+		System.out.println("----------------------------------------");
+	}
+
+	private static ByteBuffer encode(Message mes) {
+		ByteBuffer buf = ByteBuffer.allocate(MessageCodec.maxSize(mes));
+		MessageCodec.encode(mes, buf);
+		buf.flip();
+		return buf;
+	}
+
+	private static byte[] serialize(Message mes) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(mes);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws Exception {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		return in.readObject();
+	}
+}
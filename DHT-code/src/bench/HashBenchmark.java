@@ -0,0 +1,81 @@
+package bench;
+
+import java.security.MessageDigest;
+
+import structures.Message;
+import tools.ChordId;
+import tools.SHA1Hash;
+
+/*
+ * Cost of hashing the key of a request. "old" repeats what the nodes used to do: a new
+ * MessageDigest and a hex string per call, about four calls per lookup (entry node, handler,
+ * query and replica check). "new" is SHA1Hash with its per-thread digest, called once per lookup
+ * since the hash then travels inside the Message. A lookup compares the key with a node id at
+ * each of the four steps, the old one as hex strings, the new one as the ChordId of the Message.
+ */
+public class HashBenchmark {
+
+	final static int ops = 200000;
+	final static int hashesPerOldLookup = 4;
+
+	public static void main(String[] args) throws Exception {
+		final String[] keys = new String[1024];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = "Like a Rolling Stone " + i;
+		}
+		final String oldNodeId = oldHash("127.0.0.1:64000");
+		final ChordId nodeId = SHA1Hash.hash("127.0.0.1:64000");
+
+		System.out.println("----------------------------------------");
+		Bench.measure("old hash (getInstance + hex)", ops, new Bench.Op() {
+			@Override
+			public Object run(int i) throws Exception {
+				return oldHash(keys[i & 1023]);
+			}
+		});
+		Bench.measure("new hash (cached digest)", ops, new Bench.Op() {
+			@Override
+			public Object run(int i) throws Exception {
+				return SHA1Hash.hash(keys[i & 1023]);
+			}
+		});
+		Bench.measure("old lookup (" + hashesPerOldLookup + " hashes)", ops, new Bench.Op() {
+			@Override
+			public Object run(int i) throws Exception {
+				int res = 0;
+				for (int k = 0; k < hashesPerOldLookup; k++) {
+					res += oldHash(keys[i & 1023]).compareTo(oldNodeId);
+				}
+				return res;
+			}
+		});
+		Bench.measure("new lookup (1 hash)", ops, new Bench.Op() {
+			@Override
+			public Object run(int i) throws Exception {
+				Message mes = new Message();
+				mes.setKeyId(SHA1Hash.hash(keys[i & 1023]));
+				int res = 0;
+				for (int k = 0; k < hashesPerOldLookup; k++) {
+					res += mes.getKeyId().compareTo(nodeId);
+				}
+				return res;
+			}
+		});
+		System.out.println("----------------------------------------");
+	}
+
+	/**
+	 * The hashing the nodes used before SHA1Hash kept its digest per thread.
+	 */
+	private static String oldHash(String input) throws Exception {
+		MessageDigest mDigest = MessageDigest.getInstance("SHA1");
+		byte[] result = mDigest.digest(input.getBytes());
+		StringBuffer sb = new StringBuffer();
+
+		for (int i = 0; i < result.length; i++) {
+			sb.append(Integer.toString((result[i] & 0xff) + 0x100, 16).substring(1));
+		}
+
+		return sb.toString();
+	}
+}
@@ -0,0 +1,120 @@
+package bench;
+
+import java.util.Random;
+
+import emul.Chord;
+import emul.Client;
+import servers.Node;
+import structures.MessageType;
+import tools.ChordId;
+import tools.SHA1Hash;
+
+/*
+ * The routing path of a request. First on a ring of ringSize nodes built in memory (no sockets,
+ * as in MainHops): the responsibility check, one finger hop, a whole multi-hop route and the
+ * store calls of the responsible node. Then whole lookups sent by a client to a started ring of
+ * netRingSize nodes, over the loopback. B/op only counts the allocations of the calling thread,
+ * so for the lookups it leaves out the listeners.
+ */
+public class NodeBenchmark {
+
+	final static int ringSize = 64;
+	final static int netRingSize = 8;
+	final static int clientPort = 65000;
+	final static int keys = 1024; /* power of two */
+	final static int ops = 200000;
+	final static int lookups = 2000;
+
+	public static void main(String[] args) throws Exception {
+		final ChordId[] ids = new ChordId[keys];
+		for (int i = 0; i < keys; i++) {
+			ids[i] = SHA1Hash.hash("key" + i);
+		}
+
+		Chord ring = new Chord();
+		for (int i = 0; i < ringSize; i++) {
+			Node node = new Node(i, false, 1);
+			node.initiate();
+			ring.getChordList().add(node);
+		}
+		ring.setNeighbors();
+		final Node[] starts = ring.getChordList().toArray(new Node[0]);
+		final Node[] owners = new Node[keys];
+		for (int i = 0; i < keys; i++) {
+			owners[i] = starts[0].findSuccessor(ids[i]);
+			owners[i].insert(ids[i], "value" + i);
+		}
+
+		System.out.println("----------------------------------------");
+		Bench.measure("Node.isResponsible", ops, new Bench.Op() {
+			@Override
+			public Object run(int i) throws Exception {
+				return starts[i % ringSize].isResponsible(ids[i & (keys - 1)]);
+			}
+		});
+		Bench.measure("Node.nextHop", ops, new Bench.Op() {
+			@Override
+			public Object run(int i) throws Exception {
+				return starts[i % ringSize].nextHop(ids[i & (keys - 1)]);
+			}
+		});
+		Bench.measure("route (" + ringSize + " nodes, no sockets)", ops, new Bench.Op() {
+			@Override
+			public Object run(int i) throws Exception {
+				ChordId key = ids[i & (keys - 1)];
+				Node curr = starts[i % ringSize];
+				while (!curr.isResponsible(key)) {
+					curr = curr.nextHop(key);
+				}
+				return curr;
+			}
+		});
+		Bench.measure("Node.query", ops, new Bench.Op() {
+			@Override
+			public Object run(int i) throws Exception {
+				return owners[i & (keys - 1)].query(ids[i & (keys - 1)]);
+			}
+		});
+		Bench.measure("Node.insert", ops, new Bench.Op() {
+			@Override
+			public Object run(int i) throws Exception {
+				return owners[i & (keys - 1)].insert(ids[i & (keys - 1)], "value");
+			}
+		});
+
+		lookups();
+		System.out.println("----------------------------------------");
+	}
+
+	/**
+	 * Client queries of existing keys, sent to random nodes of a started ring.
+	 */
+	private static void lookups() throws Exception {
+		Chord ring = new Chord();
+		for (int i = 0; i < netRingSize; i++) {
+			ring.createNode(i, false, 1);
+		}
+		ring.setNeighbors();
+		Thread.sleep(500);
+		Node first = ring.getNode(0);
+		for (int i = 0; i < keys; i++) {
+			first.findSuccessor(SHA1Hash.hash("key" + i)).insert(SHA1Hash.hash("key" + i), "value" + i);
+		}
+
+		final Client client = new Client(ring, clientPort);
+		final Random rand = new Random(42);
+		Bench.measure("lookup (" + netRingSize + " nodes, sockets)", lookups, new Bench.Op() {
+			@Override
+			public Object run(int i) throws Exception {
+				int port = ring.getNode(rand.nextInt(netRingSize)).getPort();
+				return client.request(MessageType.QUERY, "key" + (i & (keys - 1)), null, port, 1).get();
+			}
+		});
+
+		client.close();
+		for (Node node : ring.getChordList()) {
+			node.terminate();
+			node.interrupt();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import structures.IndexedHashStore;
+import structures.OffHeapStore;
+import structures.Store;
+import tools.ChordId;
+import tools.SHA1Hash;
+
+/*
+ * Memory and gc cost of the data of a node, on heap (IndexedHashStore) and off heap
+ * (OffHeapStore). Each store gets the same keys with values of valueSize chars, then the values
+ * are overwritten for a while. Reports the java heap left in use after a full gc, the direct
+ * memory of the store, keys per GB of both and the gc time spent during the overwrites.
+ * Run one store per jvm for clean numbers, eg. "java bench.OffHeapBenchmark offheap".
+ */
+public class OffHeapBenchmark {
+
+	final static int keys = 1000000;
+	final static int valueSize = 32;
+	final static int overwrites = 3000000;
+
+	public static void main(String[] args) throws Exception {
+		String which = (args.length > 0) ? args[0] : "both";
+		ChordId[] ids = new ChordId[keys];
+		for (int i = 0; i < keys; i++) {
+			ids[i] = SHA1Hash.hash("key" + i);
+		}
+
+		System.out.println("----------------------------------------");
+		if (!which.equals("offheap")) {
+			run("IndexedHashStore", new IndexedHashStore(), ids);
+		}
+		if (!which.equals("heap")) {
+			run("OffHeapStore", new OffHeapStore(), ids);
+		}
+		System.out.println("----------------------------------------");
+	}
+
+	private static void run(String name, Store store, ChordId[] ids) {
+		long heapBefore = usedHeap();
+		Random rand = new Random(1);
+		for (int i = 0; i < ids.length; i++) {
+			/* a copy, as a node owns the ids it decodes from messages */
+			store.put(new ChordId(ids[i].getHigh(), ids[i].getMid(), ids[i].getLow()), value(rand));
+		}
+		long heap = Math.max(usedHeap() - heapBefore, 0);
+		long direct = (store instanceof OffHeapStore) ? ((OffHeapStore) store).offHeapBytes() : 0;
+
+		long gcBefore = gcMillis();
+		long start = System.nanoTime();
+		for (int i = 0; i < overwrites; i++) {
+			store.put(ids[rand.nextInt(ids.length)], value(rand));
+		}
+		long elapsed = System.nanoTime() - start;
+		long gc = gcMillis() - gcBefore;
+
+		long bytes = heap + direct;
+		System.out.printf("%-18s keys: %d heap: %d MB direct: %d MB keys/GB: %d%n", name, store.size(),
+				heap >> 20, direct >> 20, (long) store.size() * (1L << 30) / Math.max(bytes, 1));
+		System.out.printf("%-18s %d overwrites in %d ms, gc: %d ms%n", name, overwrites, elapsed / 1000000, gc);
+		/* keep store reachable until measured */
+		if (store.get(ids[0]) == null) {
+			System.out.println("missing key");
+		}
+	}
+
+	private static String value(Random rand) {
+		char[] chars = new char[valueSize];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char) ('a' + rand.nextInt(26));
+		}
+		return new String(chars);
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static long gcMillis() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(gc.getCollectionTime(), 0);
+		}
+		return total;
+	}
+}
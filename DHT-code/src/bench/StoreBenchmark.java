@@ -0,0 +1,122 @@
+package bench;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import structures.IndexedHashStore;
+import structures.SkipListStore;
+import structures.Store;
+import tools.ChordId;
+import tools.SHA1Hash;
+
+/*
+ * Throughput of a node store under concurrent handlers: 90% gets and 10% puts of random keys
+ * from 1 up to as many threads as a listener has workers. "Hashtable" is what the nodes used
+ * before, every call takes the monitor of the table. SkipListStore reads without locks and
+ * writes only contend on neighbouring keys. Scaling needs as many cores as threads.
+ */
+public class StoreBenchmark {
+
+	final static int keys = 100000;
+	final static int opsPerThread = 200000;
+	final static int[] threadCounts = { 1, 2, 4, 8, 16 };
+	final static int writePercent = 10;
+
+	public static void main(String[] args) throws Exception {
+		final ChordId[] ids = new ChordId[keys];
+		for (int i = 0; i < keys; i++) {
+			ids[i] = SHA1Hash.hash("key" + i);
+		}
+
+		System.out.println("----------------------------------------");
+		System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+		for (int threads : threadCounts) {
+			run("Hashtable", new HashtableStore(), ids, threads);
+		}
+		for (int threads : threadCounts) {
+			run("SkipListStore", new SkipListStore(), ids, threads);
+		}
+		for (int threads : threadCounts) {
+			run("IndexedHashStore", new IndexedHashStore(), ids, threads);
+		}
+		System.out.println("----------------------------------------");
+	}
+
+	private static void run(String name, final Store store, final ChordId[] ids, int threads) throws Exception {
+		for (int i = 0; i < ids.length; i++) {
+			store.put(ids[i], "value" + i);
+		}
+		Bench.measureThreads(name, threads, opsPerThread, new Bench.Op() {
+			@Override
+			public Object run(int i) throws Exception {
+				/* cheap hash of i, so threads do not walk the keys in step */
+				int h = i * 0x9e3779b9;
+				h ^= h >>> 16;
+				ChordId key = ids[(h & 0x7fffffff) % ids.length];
+				if ((h & 0x7fffffff) % 100 < writePercent) {
+					return store.put(key, "updated");
+				}
+				return store.get(key);
+			}
+		});
+	}
+
+	/**
+	 * The store of a node before SkipListStore. Only gets and puts are measured. A range is what
+	 * the nodes did to hand over keys: a pass over the whole table, then a sort.
+	 */
+	private static class HashtableStore implements Store {
+
+		private Hashtable<ChordId, String> table = new Hashtable<>();
+
+		@Override
+		public String get(ChordId key) {
+			return table.get(key);
+		}
+
+		@Override
+		public String put(ChordId key, String value) {
+			return table.put(key, value);
+		}
+
+		@Override
+		public String remove(ChordId key) {
+			return table.remove(key);
+		}
+
+		@Override
+		public int size() {
+			return table.size();
+		}
+
+		@Override
+		public Iterable<Map.Entry<ChordId, String>> range(ChordId lo, boolean loInclusive, ChordId hi,
+				boolean hiInclusive) {
+			List<Map.Entry<ChordId, String>> entries = new ArrayList<>();
+			synchronized (table) {
+				for (Map.Entry<ChordId, String> e : table.entrySet()) {
+					ChordId key = e.getKey();
+					if (lo != null) {
+						int cmp = key.compareTo(lo);
+						if (cmp < 0 || (cmp == 0 && !loInclusive)) {
+							continue;
+						}
+					}
+					if (hi != null) {
+						int cmp = key.compareTo(hi);
+						if (cmp > 0 || (cmp == 0 && !hiInclusive)) {
+							continue;
+						}
+					}
+					entries.add(new AbstractMap.SimpleImmutableEntry<>(key, e.getValue()));
+				}
+			}
+			Collections.sort(entries, (a, b) -> a.getKey().compareTo(b.getKey()));
+			return entries;
+		}
+	}
+}
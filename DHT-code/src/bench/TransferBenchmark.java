@@ -0,0 +1,83 @@
+package bench;
+
+import emul.Chord;
+import servers.BulkTransfer;
+import servers.Node;
+import tools.SHA1Hash;
+
+/*
+ * Rebalance cost of a join into a loaded ring. The nodes of the ring are started (so the keys
+ * really travel over sockets), filled directly with keys and then a new node joins and receives
+ * its range. The same node departs again before the next configuration, giving its keys back.
+ * Reports the join time and the throughput of the handoff for a few batch sizes, with and
+ * without compression.
+ */
+public class TransferBenchmark {
+
+	final static int ringSize = 4;
+	final static int keys = 200000;
+	final static int valueSize = 100;
+	final static int joiningId = 100;
+	final static int[] batchSizes = { 1, 64, 1024, 8192 };
+
+	public static void main(String[] args) throws Exception {
+		Chord ring = new Chord();
+		for (int i = 0; i < ringSize; i++) {
+			ring.createNode(i, false, 1);
+		}
+		ring.setNeighbors();
+		Thread.sleep(500);
+
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < valueSize) {
+			sb.append("Like a Rolling Stone ");
+		}
+		String pad = sb.substring(0, valueSize - 8);
+		Node first = ring.getNode(0);
+		for (int i = 0; i < keys; i++) {
+			String value = pad + String.format("%08d", i);
+			first.findSuccessor(SHA1Hash.hash("key" + i)).insert(SHA1Hash.hash("key" + i), value);
+		}
+
+		System.out.println("----------------------------------------");
+		System.out.println("batch\tcompress\tkeys moved\tMB\tjoin ms\tMB/s\tdepart ms");
+		for (boolean compress : new boolean[] { false, true }) {
+			for (int batch : batchSizes) {
+				if (batch == 1 && compress) {
+					continue;
+				}
+				BulkTransfer.setBatchSize(batch);
+				BulkTransfer.setCompress(compress);
+				run(first, batch, compress);
+			}
+		}
+		System.out.println("----------------------------------------");
+		ring.terminateSimulation();
+	}
+
+	private static void run(Node first, int batch, boolean compress) throws Exception {
+		Node newNode = new Node(joiningId, false, 1);
+		Node succ = first.findSuccessor(newNode.getNodeId());
+
+		long start = System.nanoTime();
+		if (!succ.joinNode(newNode)) {
+			System.out.println("join failed");
+		}
+		long joinNanos = System.nanoTime() - start;
+
+		int moved = newNode.getHashTable().size();
+		double mb = moved * (20.0 + valueSize) / (1024 * 1024);
+
+		start = System.nanoTime();
+		if (!newNode.depart()) {
+			System.out.println("depart failed");
+		}
+		long departNanos = System.nanoTime() - start;
+		newNode.terminate();
+		newNode.join();
+
+		System.out.println(batch + "\t" + compress + "\t\t" + moved + "\t\t" + String.format("%.1f", mb) + "\t"
+				+ (joinNanos / 1000000) + "\t" + String.format("%.1f", mb / (joinNanos / 1e9)) + "\t"
+				+ (departNanos / 1000000));
+	}
+}
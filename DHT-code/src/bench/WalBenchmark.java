@@ -0,0 +1,82 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import structures.DurableStore;
+import structures.FsyncPolicy;
+import structures.IndexedHashStore;
+import structures.Store;
+import structures.WriteAheadLog;
+import tools.ChordId;
+import tools.SHA1Hash;
+
+/*
+ * Write throughput of a logged store under each fsync policy, from 1 up to as many threads as a
+ * listener has workers, and the time a node takes to recover the log it wrote. Under SYNC the
+ * threads share fsyncs (group commit), so "writes/fsync" should grow with the threads. The log
+ * goes to a temporary directory, or to the one given as the first argument: numbers depend on
+ * the disk.
+ */
+public class WalBenchmark {
+
+	final static int keys = 100000;
+	final static int opsPerThread = 2000;
+	final static int[] threadCounts = { 1, 4, 16 };
+
+	public static void main(String[] args) throws Exception {
+		File root = (args.length > 0) ? new File(args[0]) : Files.createTempDirectory("wal").toFile();
+		final ChordId[] ids = new ChordId[keys];
+		for (int i = 0; i < keys; i++) {
+			ids[i] = SHA1Hash.hash("key" + i);
+		}
+
+		System.out.println("----------------------------------------");
+		run("no log", null, null, ids);
+		for (FsyncPolicy policy : FsyncPolicy.values()) {
+			run(policy.toString(), policy, new File(root, policy.toString()), ids);
+		}
+		System.out.println("----------------------------------------");
+	}
+
+	private static void run(String name, FsyncPolicy policy, File dir, final ChordId[] ids) throws Exception {
+		for (int threads : threadCounts) {
+			WriteAheadLog wal = null;
+			final Store store;
+			if (policy == null) {
+				store = new IndexedHashStore();
+			} else {
+				Store data = new IndexedHashStore();
+				wal = new WriteAheadLog(dir, policy, data);
+				wal.start();
+				store = new DurableStore(data, wal, 0);
+			}
+			Bench.measureThreads(name, threads, opsPerThread, new Bench.Op() {
+				@Override
+				public Object run(int i) throws Exception {
+					int h = i * 0x9e3779b9;
+					h ^= h >>> 16;
+					return store.put(ids[(h & 0x7fffffff) % ids.length], "value" + i);
+				}
+			});
+			if (wal == null) {
+				continue;
+			}
+			long appended = wal.getAppended();
+			long fsyncs = wal.getFsyncs();
+			wal.close();
+			if (fsyncs > 0) {
+				System.out.println(String.format("%-40s %12.1f writes/fsync", name + " x" + threads,
+						(double) appended / fsyncs));
+			}
+
+			long start = System.nanoTime();
+			Store recovered = new IndexedHashStore();
+			WriteAheadLog again = new WriteAheadLog(dir, policy, recovered);
+			long ms = (System.nanoTime() - start) / 1000000;
+			System.out.println(String.format("%-40s %12d ms to recover %d writes, %d keys", name + " x" + threads, ms,
+					again.getRecovered(), recovered.size()));
+			again.discard();
+		}
+	}
+}
@@ -1,10 +1,10 @@
 package emul;
 
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 
 import servers.Node;
+import tools.Log;
 import tools.MyNodeComparator;
 
 public class Chord {
@@ -17,7 +17,7 @@ public class Chord {
 		chordList = new ArrayList<Node>();
 	}
 
-	public Node createNode(int serialId, boolean linear, int repNumber) throws NoSuchAlgorithmException {
+	public Node createNode(int serialId, boolean linear, int repNumber) {
 		Node node = new Node(serialId, linear, repNumber);
 		chordList.add(node);
 		node.initiate();
@@ -52,6 +52,77 @@ public class Chord {
 				curr.setNext(chordList.get(chordList.indexOf(curr) + 1));
 			}
 		}
+
+		/* finger tables can be built only after the whole ring is linked */
+		for (Node curr : chordList) {
+			curr.fixFingers();
+		}
+		/* a successor list is built from the one of next, so going backwards twice fills them all */
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = chordList.size() - 1; i >= 0; i--) {
+				chordList.get(i).fixSuccessors();
+			}
+		}
+	}
+
+	/**
+	 * Stops the node with serialId the way a crash would: it hands nothing over and tells no one.
+	 * Its neighbours find out through their failure detectors.
+	 *
+	 * @return false if there is no such node, or it is the bootstrapped node.
+	 */
+	public boolean crash(int serialId) {
+		for (Node node : chordList) {
+			if (node.getSerialId() == serialId) {
+				if (node == bootstrapped) {
+					return false;
+				}
+				chordList.remove(node);
+				node.terminate();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the metrics of the node with serialId, or of every node if serialId is -1.
+	 */
+	public String stats(int serialId) {
+		StringBuilder sb = new StringBuilder();
+		for (Node node : chordList) {
+			if (serialId == -1 || node.getSerialId() == serialId) {
+				sb.append(node.getMetrics().dump());
+			}
+		}
+		if (sb.length() == 0) {
+			sb.append("No node " + serialId + " in the ring.\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Runs the emulator commands of the mains that are not requests to the ring: stats, crash
+	 * and log, printing what they did.
+	 *
+	 * @return false if split is none of them.
+	 */
+	public boolean command(String[] split) {
+		if (split[0].equals("stats")) {
+			System.out.print(stats((split.length > 1) ? Integer.parseInt(split[1]) : -1));
+			return true;
+		}
+		if (split[0].equals("crash") && split.length > 1) {
+			int id = Integer.parseInt(split[1]);
+			System.out.println(crash(id) ? "Node " + id + " crashed." : "Cannot crash node " + id + ".");
+			return true;
+		}
+		if (split[0].equals("log") && split.length > 1) {
+			Log.setLevel(Log.parse(split[1], Log.getLevel()));
+			System.out.println("Log level is " + Log.getLevel());
+			return true;
+		}
+		return false;
 	}
 
 	public Node getNode(int i) {
@@ -70,6 +141,7 @@ public class Chord {
 //				e1.printStackTrace();
 //			}
 		}
+		Log.flush();
 		System.out.println("Simulation completed. Goodbye!");
 		System.exit(1);
 	}
@@ -1,289 +1,377 @@
-package emul;
-
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-
-import servers.Node;
-import structures.Data;
-import structures.Message;
-import structures.MessageJoin;
-import structures.MessageType;
-
-/*
- * Client class. Created from emulator and emulates (:P) a user that connects to
- * a server of our chord and makes a request.
- */
-public class Client implements Runnable {
-	
-	private ServerSocket serverSock;
-	private int myPort;
-	private int serverPort;
-	private int serverSId;
-
-	private MessageType type;
-	private String key;
-	private String value = "";
-	private int replFactor;
-	
-	private Message reply;
-
-	private Chord emulator;
-
-	private String prefix = "[CLIENT]:";
-
-	public Client(Chord emul) {
-		emulator = emul;
-	}
-
-	@Override
-	public void run() {
-		//System.out.println("Client started.");
-
-		try {
-			sendRequest();
-		} catch (Exception error) {
-			System.err.println(error);
-			System.exit(-1);
-		}
-
-		//System.out.println("Request made. Waiting for reply...");
-		getReply();
-
-		//System.out.println("Reply received. Processing...");
-		processReply();
-
-		//System.out.println("Client terminating...");
-	}
-
-	private Message createMessage() throws Exception {
-		//System.out.println(prefix + "Creating message.");
-		Message request = new Message();
-		request.setInitialPort(serverPort); /* initialPort is always the port of node in chord */
-		request.setFrom(myPort); 
-		request.setTo(serverPort);
-		request.setReplyTo(myPort);
-		request.setReplFactor(replFactor);
-		switch (type) {
-		case DELETE: {
-			request.setType(MessageType.DELETE);
-			request.setData(new Data(key, value));
-			break;
-		}
-		case DEPART: {
-			System.out.println(
-					"Bootstraped is " + emulator.getBootstrapped().getSerialId() + ". Departing is " + key);
-			if (emulator.getBootstrapped().getSerialId() == Integer.parseInt(key)) {
-				System.err.println("Cannot remove bootstrapped node! Request failed");
-				Exception error = new Exception("Please select a node except node 0 -> bootstramp");
-				throw error; /* throw error and exit() */
-			} else {
-				request.setInitialPort(emulator.getBootstrapped().getPort()); /* initialPort is always the port of node in chord */
-				request.setTo(emulator.getBootstrapped().getPort());
-				request.setData(new Data(key, value));
-				request.setType(MessageType.DEPART);
-			}
-			break;
-		}
-		case FAIL: {
-			System.out.println("internal error FAIL");
-			return null;
-		}
-		case INSERT: {
-			request.setType(MessageType.INSERT);
-			request.setData(new Data(key, value));
-			break;
-		}
-		case JOIN: {
-			request.setInitialPort(emulator.getBootstrapped().getPort()); /* initialPort is always the port of node in chord */
-			request.setTo(emulator.getBootstrapped().getPort());
-			request.setData(new Data(key, value));
-			request.setType(MessageType.JOIN);
-			break;
-		}
-		case OK: {
-			System.out.println("internal error OK");
-			return null;
-		}
-		case QUERY: {
-			request.setType(MessageType.QUERY);
-			request.setData(new Data(key, value));
-			break;
-		}
-		default: {
-			System.out.println("Unknown option. Returning...");
-			return null;
-		}
-
-		}
-
-		System.out.println(prefix + "Message created:");
-		System.out.println(request);
-		return request;
-	}
-
-	private void sendRequest() throws Exception {
-		Socket reqSock;
-		try {
-			reqSock = new Socket("127.0.0.1", serverPort);
-
-			//System.out.print("Client connected to server " + serverSId);
-			//System.out.println(" at port " + serverPort + ". Making request...");
-
-			//create message
-			Message request = createMessage();
-
-			//Send the message to the server
-			ObjectOutputStream out;
-			out = new ObjectOutputStream(reqSock.getOutputStream());
-			out.writeObject(request);
-			out.flush();
-			reqSock.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-
-	private void getReply() {
-
-		Socket incoming;
-		try {
-			serverSock = new ServerSocket(myPort);
-			incoming = serverSock.accept();
-			ObjectInputStream input = new ObjectInputStream(incoming.getInputStream());
-			Message mes = (Message) input.readObject();
-
-			reply = mes;
-
-			serverSock.close();
-			incoming.close();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-	}
-
-	private void processReply() {
-		if (reply.getType().equals(MessageType.FAIL)) {
-			System.out.println("Request Failed.");
-		} else {
-			System.out.println("Request completed.");
-			if (type.equals(MessageType.QUERY)) {
-				System.out.println("[CLIENT]: ----->Value of " + key + ", is " + reply.getData().getVal());
-			} else if (type.equals(MessageType.INSERT)) {
-				System.out.println("[CLIENT]: ----->[" + key + ", " + value + "] was added.");
-			} else if (type.equals(MessageType.DELETE)) {
-				System.out.println("[" + key + "] was deleted.");
-			} else if (type.equals(MessageType.JOIN)) {
-				joinReply();
-			} else if (type.equals(MessageType.DEPART)) {
-				System.out.println("[NODE" + key + "] has departed.");
-				departReply();
-			}
-		}
-	}
-
-	private void joinReply() {
-		Node temp = null;
-		temp = cheat();
-		System.out.println("Join completed. Added node " + temp.getSerialId());
-	}
-
-	private Node cheat() {
-		Node temp = null;
-		for (Node e : emulator.getChordList()) {
-			if (e.getPort() == reply.getFrom()) {
-				temp = e.getPrevious();
-				break;
-			}
-		}
-		emulator.getChordList().add(emulator.getChordList().indexOf(temp.getNext()), temp);
-		return temp;
-	}
-
-	/**
-	 * on successful return from depart. Removes node from chordList.
-	 */
-	private void departReply() {
-		System.out.println("Removing from emulator");
-		for (Node dead : emulator.getChordList()) {
-			if (dead.getSerialId() == Integer.parseInt(key)) {
-				emulator.getChordList().remove(dead);
-				return;
-			}
-		}
-		System.out.println("DepartReply: INTERNAL ERROR!!!!!!!!");
-	}
-
-	public int getMyPort() {
-		return myPort;
-	}
-
-	public void setMyPort(int myPort) {
-		this.myPort = myPort;
-	}
-
-	public int getServerPort() {
-		return serverPort;
-	}
-
-	public void setServerPort(int serverPort) {
-		this.serverPort = serverPort;
-	}
-
-	public int getServerSId() {
-		return serverSId;
-	}
-
-	public void setServerSId(int serverSId) {
-		this.serverSId = serverSId;
-	}
-
-	public MessageType getType() {
-		return type;
-	}
-
-	public void setType(MessageType type) {
-		this.type = type;
-	}
-
-	public String getKey() {
-		return key;
-	}
-
-	public void setKey(String key) {
-		this.key = key;
-	}
-
-	public String getValue() {
-		return value;
-	}
-
-	public void setValue(String value) {
-		this.value = value;
-	}
-
-	public void setReply(Message reply) {
-		this.reply = reply;
-	}
-
-	public ServerSocket getServerSock() {
-		return serverSock;
-	}
-
-	public void setServerSock(ServerSocket serverSock) {
-		this.serverSock = serverSock;
-	}
-
-	public int getReplFactor() {
-		return replFactor;
-	}
-
-	public void setReplFactor(int replFactor) {
-		this.replFactor = replFactor;
-	}
-
-	
-	
-}
\ No newline at end of file
+package emul;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import servers.Connection;
+import servers.ConnectionPool;
+import servers.Node;
+import structures.Data;
+import structures.Message;
+import structures.MessageJoin;
+import structures.MessageType;
+import tools.ChordId;
+import tools.Log;
+import tools.SHA1Hash;
+
+/*
+ * Client class. Created from emulator and emulates (:P) a user that connects to
+ * the servers of our chord and makes requests.
+ *
+ * A client listens on a single port for all of its replies. Every request gets a unique id and a
+ * future, which is completed when the reply with the same id comes back, so one client can keep
+ * many requests in flight. Requests go to the nodes through pooled connections. A request that
+ * gets no reply within requestTimeout ms fails with a TimeoutException, so a lost reply does not
+ * keep its future waiting forever.
+ */
+public class Client {
+
+	private static AtomicLong nextRequestId = new AtomicLong();
+	private static int scanPageSize = 1000; /* keys per page of a '*' query */
+	private static long requestTimeout = 10000; /* ms a request waits for its reply */
+	private static ScheduledThreadPoolExecutor timer; /* expires the requests of all clients */
+
+	static {
+		timer = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "Client-timeouts");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private int myPort;
+	private ServerSocket serverSock;
+	private ConnectionPool pool; /* connections to the nodes */
+	private ConcurrentHashMap<Long, CompletableFuture<Message>> pending; /* request id -> reply */
+	private volatile boolean running;
+
+	private Chord emulator;
+
+	private String prefix = "[CLIENT]:";
+
+	public Client(Chord emul, int myPort) throws IOException {
+		emulator = emul;
+		this.myPort = myPort;
+		pool = new ConnectionPool();
+		pending = new ConcurrentHashMap<>();
+		serverSock = new ServerSocket();
+		serverSock.setReuseAddress(true);
+		serverSock.bind(new InetSocketAddress(myPort));
+		running = true;
+
+		Thread acceptor = new Thread(() -> accept(), "Client" + myPort + "-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Sends a request of type with key and value to the node listening on serverPort.
+	 *
+	 * @return the future reply. It completes exceptionally if the request could not be sent.
+	 */
+	public CompletableFuture<Message> request(MessageType type, String key, String value, int serverPort,
+			int replFactor) {
+		Message request;
+		try {
+			request = createMessage(type, key, value, serverPort, replFactor);
+		} catch (Exception e) {
+			CompletableFuture<Message> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return send(request);
+	}
+
+	/**
+	 * Sends one request of type MULTIPUT, MULTIGET or MULTIDELETE with all the keys of entries
+	 * (the values are ignored but for a put) to the node listening on serverPort. The keys are
+	 * hashed here, the entries of the reply are keyed by the hashes.
+	 *
+	 * @return the future reply. For a get it maps every key to its value, or null if not found.
+	 */
+	public CompletableFuture<Message> multiRequest(MessageType type, Map<String, String> entries, int serverPort,
+			int replFactor) {
+		Map<ChordId, String> hashed = new LinkedHashMap<>();
+		for (Map.Entry<String, String> e : entries.entrySet()) {
+			hashed.put(SHA1Hash.hash(e.getKey()), (type == MessageType.MULTIPUT) ? e.getValue() : null);
+		}
+		Message request = new Message();
+		request.setType(type);
+		request.setInitialPort(serverPort);
+		request.setTo(serverPort);
+		request.setReplFactor(replFactor);
+		request.setEntries(hashed);
+		return send(request);
+	}
+
+	/**
+	 * Same as request, and when the reply comes the result is printed and the emulator is updated
+	 * in case of a join/depart. A query of '*' scans the ring instead and prints the pages as
+	 * they come.
+	 */
+	public CompletableFuture<Message> requestAndReport(MessageType type, String key, String value,
+			int serverPort, int replFactor) {
+		if (type == MessageType.QUERY && "*".equals(key)) {
+			return scanAndReport();
+		}
+		return request(type, key, value, serverPort, replFactor).thenApply(reply -> {
+			processReply(type, key, value, reply);
+			return reply;
+		});
+	}
+
+	/**
+	 * Sends request as it is, tagged with a new request id and with this client as replyTo.
+	 *
+	 * @return the future reply. It completes exceptionally with a TimeoutException if no reply
+	 * comes within requestTimeout ms.
+	 */
+	public CompletableFuture<Message> send(Message request) {
+		long requestId = nextRequestId.incrementAndGet();
+		request.setRequestId(requestId);
+		request.setFrom(myPort);
+		request.setReplyTo(myPort);
+
+		CompletableFuture<Message> future = new CompletableFuture<>();
+		pending.put(requestId, future);
+		ScheduledFuture<?> expiry = timer.schedule(() -> {
+			if (pending.remove(requestId, future)) {
+				future.completeExceptionally(new TimeoutException("No reply to request " + requestId));
+			}
+		}, requestTimeout, TimeUnit.MILLISECONDS);
+		future.whenComplete((reply, e) -> expiry.cancel(false));
+		try {
+			pool.send(request, request.getTo());
+		} catch (IOException e) {
+			pending.remove(request.getRequestId());
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * @return number of requests still waiting for a reply.
+	 */
+	public int inFlight() {
+		return pending.size();
+	}
+
+	public void close() {
+		running = false;
+		try {
+			serverSock.close();
+		} catch (IOException e) {
+			//already closed
+		}
+		pool.closeAll();
+		for (CompletableFuture<Message> future : pending.values()) {
+			future.completeExceptionally(new IOException("Client closed"));
+		}
+		pending.clear();
+	}
+
+	private Message createMessage(MessageType type, String key, String value, int serverPort, int replFactor)
+			throws Exception {
+		//System.out.println(prefix + "Creating message.");
+		Message request = (type == MessageType.JOIN) ? new MessageJoin() : new Message();
+		request.setInitialPort(serverPort); /* initialPort is always the port of node in chord */
+		request.setTo(serverPort);
+		request.setReplFactor(replFactor);
+		switch (type) {
+		case DELETE: {
+			request.setType(MessageType.DELETE);
+			request.setData(new Data(key, value));
+			break;
+		}
+		case DEPART: {
+			Log.debug("Bootstrapped is {}. Departing is {}", emulator.getBootstrapped().getSerialId(), key);
+			if (emulator.getBootstrapped().getSerialId() == Integer.parseInt(key)) {
+				System.err.println("Cannot remove bootstrapped node! Request failed");
+				throw new Exception("Please select a node except node 0 -> bootstramp");
+			} else {
+				request.setInitialPort(emulator.getBootstrapped().getPort()); /* initialPort is always the port of node in chord */
+				request.setTo(emulator.getBootstrapped().getPort());
+				request.setData(new Data(key, value));
+				request.setType(MessageType.DEPART);
+			}
+			break;
+		}
+		case INSERT: {
+			request.setType(MessageType.INSERT);
+			request.setData(new Data(key, value));
+			break;
+		}
+		case JOIN: {
+			request.setInitialPort(emulator.getBootstrapped().getPort()); /* initialPort is always the port of node in chord */
+			request.setTo(emulator.getBootstrapped().getPort());
+			request.setData(new Data(key, value));
+			request.setType(MessageType.JOIN);
+
+			/* only the identity of the new node travels, not the node itself */
+			MessageJoin join = (MessageJoin) request;
+			join.setJoinId(Integer.parseInt(key));
+			join.setNodeId(SHA1Hash.hash(key));
+			join.setAddress("127.0.0.1");
+			join.setPort(Node.portOf(join.getJoinId()));
+			break;
+		}
+		case QUERY: {
+			request.setType(MessageType.QUERY);
+			request.setData(new Data(key, value));
+			break;
+		}
+		default: {
+			throw new IllegalArgumentException("Unknown request type " + type);
+		}
+		}
+
+		//System.out.println(prefix + "Message created: " + request);
+		return request;
+	}
+
+	/**
+	 * Accepts the connections the nodes send replies through. Nodes keep them open, so there is
+	 * about one per node.
+	 */
+	private void accept() {
+		while (running) {
+			try {
+				Socket incoming = serverSock.accept();
+				Thread reader = new Thread(() -> read(incoming), "Client" + myPort + "-reader");
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				if (running) {
+					Log.warn("{}accepting a connection failed", prefix, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the replies of a connection and completes the futures waiting for them.
+	 */
+	private void read(Socket incoming) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(incoming.getInputStream()));
+			Message reply;
+			while ((reply = Connection.readFrame(in)) != null) {
+				CompletableFuture<Message> future = pending.remove(reply.getRequestId());
+				if (future != null) {
+					future.complete(reply);
+				} else {
+					Log.warn("{}reply to unknown request {}", prefix, reply);
+				}
+			}
+		} catch (IOException e) {
+			if (running) {
+				Log.warn("{}reading replies failed", prefix, e);
+			}
+		} finally {
+			try {
+				incoming.close();
+			} catch (IOException e) {
+				//already closed
+			}
+		}
+	}
+
+	/**
+	 * Prints every key of the ring, one page at a time.
+	 *
+	 * @return the future OK, its value is the number of keys.
+	 */
+	private CompletableFuture<Message> scanAndReport() {
+		RingScanner scanner = new RingScanner(this, emulator, scanPageSize, null);
+		return scanner.scan((port, page) -> {
+			synchronized (this) {
+				System.out.println("[CLIENT]: -----> Node " + (port - Node.portOf(0)) + ": " + page);
+			}
+		}).thenApply(count -> {
+			System.out.println("[CLIENT]: -----> " + count + " keys in the ring.");
+			Message reply = new Message();
+			reply.setType(MessageType.OK);
+			reply.setData(new Data("*", Long.toString(count)));
+			return reply;
+		});
+	}
+
+	private void processReply(MessageType type, String key, String value, Message reply) {
+		if (reply.getType().equals(MessageType.FAIL)) {
+			System.out.println("Request Failed.");
+		} else {
+			System.out.println("Request completed.");
+			if (type.equals(MessageType.QUERY)) {
+				System.out.println("[CLIENT]: ----->Value of " + key + ", is " + reply.getData().getVal());
+			} else if (type.equals(MessageType.INSERT)) {
+				System.out.println("[CLIENT]: ----->[" + key + ", " + value + "] was added.");
+			} else if (type.equals(MessageType.DELETE)) {
+				System.out.println("[" + key + "] was deleted.");
+			} else if (type.equals(MessageType.JOIN)) {
+				joinReply(reply);
+			} else if (type.equals(MessageType.DEPART)) {
+				System.out.println("[NODE" + key + "] has departed.");
+				departReply(key);
+			}
+		}
+	}
+
+	private void joinReply(Message reply) {
+		Node temp = null;
+		temp = cheat(reply);
+		System.out.println("Join completed. Added node " + temp.getSerialId());
+	}
+
+	private Node cheat(Message reply) {
+		Node temp = null;
+		for (Node e : emulator.getChordList()) {
+			if (e.getPort() == reply.getFrom()) {
+				temp = e.getPrevious();
+				break;
+			}
+		}
+		emulator.getChordList().add(emulator.getChordList().indexOf(temp.getNext()), temp);
+		return temp;
+	}
+
+	/**
+	 * on successful return from depart. Removes node from chordList.
+	 */
+	private void departReply(String key) {
+		System.out.println("Removing from emulator");
+		for (Node dead : emulator.getChordList()) {
+			if (dead.getSerialId() == Integer.parseInt(key)) {
+				emulator.getChordList().remove(dead);
+				return;
+			}
+		}
+		System.out.println("DepartReply: INTERNAL ERROR!!!!!!!!");
+	}
+
+	public int getMyPort() {
+		return myPort;
+	}
+
+	public static long getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	public static void setRequestTimeout(long requestTimeout) {
+		Client.requestTimeout = requestTimeout;
+	}
+
+}
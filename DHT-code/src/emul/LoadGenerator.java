@@ -0,0 +1,383 @@
+package emul;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import servers.Node;
+import structures.Message;
+import structures.MessageType;
+import tools.LatencyHistogram;
+
+/*
+ * Load generator for a ring of the emulator. Replays a requests file (as resources/requests.txt,
+ * or insert.txt / query.txt) or draws keys from a zipfian or uniform distribution, and reports
+ * the latency percentiles of every request type.
+ *
+ * Closed loop (rate=0): clients threads each send a request and wait for its reply before the
+ * next one. Open loop (rate=N): N requests per second are sent on schedule whatever the replies,
+ * and a latency counts from the time a request was due, so a stalled ring shows in the tail
+ * instead of slowing the load down.
+ *
+ * The settings are given as name=value arguments, eg.
+ *   java emul.LoadGenerator workload=zipf clients=16 ops=50000 out=results/zipf.txt
+ *   java emul.LoadGenerator workload=../resources/requests.txt rate=2000 linear=true
+ * The report has one fixed-width line per type, so reports of two runs can be diffed.
+ */
+public class LoadGenerator {
+
+	static int nodes = 10;
+	static int clientPort = 64300;
+	static boolean linear = false;
+	static int replFactor = 3;
+	static String workload = "zipf"; /* zipf, uniform or the path of a requests file */
+	static int keys = 10000; /* distinct keys of zipf and uniform */
+	static double zipfExponent = 0.99;
+	static int writePercent = 10; /* of zipf and uniform requests that are inserts */
+	static int clients = 8; /* threads of the closed loop */
+	static int rate = 0; /* requests/s of the open loop, 0 for the closed loop */
+	static int warmup = 2000; /* requests sent before the measured ones */
+	static int ops = 20000; /* measured requests */
+	static long timeout = 10000; /* ms to wait for a reply */
+	static String out = null; /* file the report is also written to */
+
+	private static Chord emulator;
+	private static Client client;
+	private static Map<MessageType, Stats> stats = new EnumMap<>(MessageType.class);
+	private static long unanswered; /* open loop requests still without a reply at the end */
+
+	/**
+	 * A request of the workload.
+	 */
+	private static class Request {
+		MessageType type;
+		String key;
+		String value;
+
+		Request(MessageType type, String key, String value) {
+			this.type = type;
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private interface Workload {
+		/**
+		 * @return request i of the run. Called from several threads at once.
+		 */
+		Request next(long i);
+	}
+
+	/**
+	 * Latencies and failures of one request type.
+	 */
+	private static class Stats {
+		LatencyHistogram latencies = new LatencyHistogram();
+		LongAdder fails = new LongAdder(); /* FAIL replies, eg. a query of a missing key */
+		LongAdder errors = new LongAdder(); /* no reply in time */
+	}
+
+	public static void main(String[] args) throws Exception {
+		for (String arg : args) {
+			set(arg);
+		}
+		Workload load = workload();
+
+		emulator = new Chord();
+		for (int i = 0; i < nodes; i++) {
+			emulator.createNode(i, linear, replFactor);
+		}
+		emulator.setNeighbors();
+		client = new Client(emulator, clientPort);
+		if (workload.equals("zipf") || workload.equals("uniform")) {
+			preload();
+		}
+
+		long time = (rate > 0) ? openLoop(load) : closedLoop(load);
+
+		String report = report(time);
+		System.out.println(report);
+		if (out != null) {
+			try (PrintWriter writer = new PrintWriter(out)) {
+				writer.print(report);
+			}
+		}
+		emulator.terminateSimulation();
+	}
+
+	/**
+	 * Sends warmup + ops requests from clients threads, one outstanding per thread.
+	 *
+	 * @return ns taken by the measured requests.
+	 */
+	private static long closedLoop(Workload load) throws InterruptedException {
+		AtomicLong next = new AtomicLong();
+		AtomicLong measuredStart = new AtomicLong();
+		Thread[] threads = new Thread[clients];
+		for (int t = 0; t < clients; t++) {
+			threads[t] = new Thread(() -> {
+				long i;
+				while ((i = next.getAndIncrement()) < warmup + ops) {
+					if (i == warmup) {
+						measuredStart.set(System.nanoTime());
+					}
+					Request request = load.next(i);
+					long start = System.nanoTime();
+					CompletableFuture<Message> reply = send(request);
+					try {
+						Message res = reply.get(timeout, TimeUnit.MILLISECONDS);
+						record(i, request, res, System.nanoTime() - start);
+					} catch (Exception e) {
+						record(i, request, null, 0);
+					}
+				}
+			}, "LoadClient" + t);
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return System.nanoTime() - measuredStart.get();
+	}
+
+	/**
+	 * Sends warmup + ops requests at rate requests/s, each at its due time.
+	 *
+	 * @return ns taken by the measured requests.
+	 */
+	private static long openLoop(Workload load) throws InterruptedException {
+		long period = 1000000000L / rate;
+		long total = warmup + ops;
+		CountDownLatch done = new CountDownLatch((int) total);
+		long begin = System.nanoTime();
+		for (long i = 0; i < total; i++) {
+			long due = begin + i * period;
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			Request request = load.next(i);
+			long seq = i;
+			send(request).whenComplete((res, e) -> {
+				record(seq, request, res, System.nanoTime() - due);
+				done.countDown();
+			});
+		}
+		if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+			unanswered = done.getCount();
+			System.out.println(unanswered + " requests were not answered.");
+		}
+		return System.nanoTime() - (begin + warmup * period);
+	}
+
+	private static CompletableFuture<Message> send(Request request) {
+		Node node = emulator.getNode(ThreadLocalRandom.current().nextInt(emulator.getChordList().size()));
+		return client.request(request.type, request.key, request.value, node.getPort(), replFactor);
+	}
+
+	/**
+	 * Records the reply of request i, or an error if res is null. The warmup is not recorded.
+	 */
+	private static void record(long i, Request request, Message res, long nanos) {
+		if (i < warmup) {
+			return;
+		}
+		Stats s = stats.get(request.type);
+		if (res == null) {
+			s.errors.increment();
+			return;
+		}
+		if (res.getType() == MessageType.FAIL) {
+			s.fails.increment();
+		}
+		s.latencies.record(nanos);
+	}
+
+	/**
+	 * Inserts every key of a synthetic workload, so its queries find them.
+	 */
+	private static void preload() throws Exception {
+		int batch = 1000;
+		for (int from = 0; from < keys; from += batch) {
+			Map<String, String> entries = new LinkedHashMap<>();
+			for (int k = from; k < Math.min(keys, from + batch); k++) {
+				entries.put("key" + k, "value" + k);
+			}
+			client.multiRequest(MessageType.MULTIPUT, entries, emulator.getNode(0).getPort(), replFactor)
+					.get(timeout, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static Workload workload() throws IOException {
+		stats.put(MessageType.INSERT, new Stats());
+		stats.put(MessageType.QUERY, new Stats());
+		stats.put(MessageType.DELETE, new Stats());
+
+		if (workload.equals("uniform")) {
+			return i -> synthetic(i, ThreadLocalRandom.current().nextInt(keys));
+		}
+		if (workload.equals("zipf")) {
+			double[] cdf = zipfCdf(keys, zipfExponent);
+			return i -> {
+				int rank = Arrays.binarySearch(cdf, ThreadLocalRandom.current().nextDouble());
+				return synthetic(i, Math.min((rank < 0) ? -rank - 1 : rank, keys - 1));
+			};
+		}
+		List<Request> requests = readRequests(new File(workload));
+		if (requests.isEmpty()) {
+			throw new IllegalArgumentException("No requests in " + workload);
+		}
+		return i -> requests.get((int) (i % requests.size()));
+	}
+
+	private static Request synthetic(long i, int key) {
+		if (ThreadLocalRandom.current().nextInt(100) < writePercent) {
+			return new Request(MessageType.INSERT, "key" + key, "value" + i);
+		}
+		return new Request(MessageType.QUERY, "key" + key, null);
+	}
+
+	/**
+	 * @return cdf[r] = probability of a rank up to r, for ranks drawn with probability 1/(r+1)^s.
+	 */
+	private static double[] zipfCdf(int n, double s) {
+		double[] cdf = new double[n];
+		double total = 0;
+		for (int r = 0; r < n; r++) {
+			total += 1 / Math.pow(r + 1, s);
+			cdf[r] = total;
+		}
+		for (int r = 0; r < n; r++) {
+			cdf[r] /= total;
+		}
+		return cdf;
+	}
+
+	/**
+	 * Reads the inserts, queries and deletes of a requests file, in the formats MainRequests
+	 * reads. Joins and departs change the ring under the load, they are left out.
+	 */
+	private static List<Request> readRequests(File file) throws IOException {
+		List<Request> requests = new ArrayList<>();
+		int skipped = 0;
+		try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (file.getName().contains("insert")) {
+					line = "insert, " + line;
+				} else if (file.getName().contains("query")) {
+					line = "query, " + line;
+				}
+				String[] split = line.split(", ");
+				if (split[0].equals("insert") && split.length > 2) {
+					requests.add(new Request(MessageType.INSERT, split[1], split[2]));
+				} else if (split[0].equals("query") && split.length > 1) {
+					requests.add(new Request(MessageType.QUERY, split[1], null));
+				} else if (split[0].equals("delete") && split.length > 1) {
+					requests.add(new Request(MessageType.DELETE, split[1], null));
+				} else {
+					skipped++;
+				}
+			}
+		}
+		if (skipped > 0) {
+			System.out.println("Skipped " + skipped + " lines of " + file + " that are not an insert, query or delete.");
+		}
+		return requests;
+	}
+
+	private static String report(long nanos) {
+		StringWriter text = new StringWriter();
+		PrintWriter w = new PrintWriter(text);
+		w.println("# workload=" + workload + " keys=" + keys + " zipf=" + zipfExponent + " writes=" + writePercent
+				+ "% mode=" + (linear ? "linear" : "eventual") + " repl=" + replFactor + " nodes=" + nodes);
+		w.println("# loop=" + ((rate > 0) ? "open rate=" + rate : "closed clients=" + clients) + " warmup=" + warmup
+				+ " ops=" + ops);
+		w.println(String.format("%-8s %8s %6s %6s %10s %10s %10s %10s %10s %10s", "type", "count", "fail", "error",
+				"mean_us", "p50_us", "p90_us", "p99_us", "p999_us", "max_us"));
+		LatencyHistogram all = new LatencyHistogram();
+		long fails = 0, errors = unanswered;
+		for (Map.Entry<MessageType, Stats> e : stats.entrySet()) {
+			Stats s = e.getValue();
+			line(w, e.getKey().toString(), s.latencies, s.fails.sum(), s.errors.sum());
+			all.add(s.latencies);
+			fails += s.fails.sum();
+			errors += s.errors.sum();
+		}
+		line(w, "ALL", all, fails, errors);
+		w.println(String.format("%-8s %8d", "ops/s", (long) (all.getCount() * 1e9 / Math.max(nanos, 1))));
+		w.flush();
+		return text.toString();
+	}
+
+	private static void line(PrintWriter w, String type, LatencyHistogram h, long fails, long errors) {
+		w.println(String.format("%-8s %8d %6d %6d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f", type, h.getCount(),
+				fails, errors, h.getMean() / 1000, h.getPercentile(50) / 1000.0, h.getPercentile(90) / 1000.0,
+				h.getPercentile(99) / 1000.0, h.getPercentile(99.9) / 1000.0, h.getMax() / 1000.0));
+	}
+
+	private static void set(String arg) {
+		int eq = arg.indexOf('=');
+		if (eq < 0) {
+			throw new IllegalArgumentException("Expected name=value, got " + arg);
+		}
+		String name = arg.substring(0, eq);
+		String value = arg.substring(eq + 1);
+		switch (name) {
+		case "nodes":
+			nodes = Integer.parseInt(value);
+			break;
+		case "linear":
+			linear = Boolean.parseBoolean(value);
+			break;
+		case "repl":
+			replFactor = Integer.parseInt(value);
+			break;
+		case "workload":
+			workload = value;
+			break;
+		case "keys":
+			keys = Integer.parseInt(value);
+			break;
+		case "zipf":
+			zipfExponent = Double.parseDouble(value);
+			break;
+		case "writes":
+			writePercent = Integer.parseInt(value);
+			break;
+		case "clients":
+			clients = Integer.parseInt(value);
+			break;
+		case "rate":
+			rate = Integer.parseInt(value);
+			break;
+		case "warmup":
+			warmup = Integer.parseInt(value);
+			break;
+		case "ops":
+			ops = Integer.parseInt(value);
+			break;
+		case "out":
+			out = value;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown setting " + name);
+		}
+	}
+}
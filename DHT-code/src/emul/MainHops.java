@@ -0,0 +1,74 @@
+package emul;
+
+import java.util.Random;
+
+import servers.Node;
+import tools.ChordId;
+import tools.SHA1Hash;
+
+/*
+ * Benchmark for the routing of the ring. Builds rings of different sizes in memory (no sockets
+ * are opened) and counts the hops a lookup needs, first walking only through successors and then
+ * through the finger tables.
+ */
+public class MainHops {
+
+	final static int[] ringSizes = { 10, 100, 1000 };
+	final static int lookups = 1000;
+
+	public static void main(String[] args) {
+		Random rand = new Random(42);
+
+		System.out.println("----------------------------------------");
+		System.out.println("nodes\tlookups\tsucc avg\tsucc max\tfinger avg\tfinger max");
+		for (int size : ringSizes) {
+			Chord ring = buildRing(size);
+
+			long succTotal = 0, fingerTotal = 0;
+			int succMax = 0, fingerMax = 0;
+			for (int i = 0; i < lookups; i++) {
+				ChordId key = SHA1Hash.hash("key" + rand.nextInt());
+				Node start = ring.getNode(rand.nextInt(size));
+
+				int succHops = countHops(start, key, false);
+				int fingerHops = countHops(start, key, true);
+				succTotal += succHops;
+				fingerTotal += fingerHops;
+				succMax = Math.max(succMax, succHops);
+				fingerMax = Math.max(fingerMax, fingerHops);
+			}
+			System.out.println(size + "\t" + lookups + "\t" + ((double) succTotal / lookups) + "\t\t" + succMax
+					+ "\t\t" + ((double) fingerTotal / lookups) + "\t\t" + fingerMax);
+		}
+		System.out.println("----------------------------------------");
+	}
+
+	/**
+	 * Creates a ring of size nodes. Nodes are only initiated and not started, so they keep no
+	 * listening socket.
+	 */
+	private static Chord buildRing(int size) {
+		Chord ring = new Chord();
+		for (int i = 0; i < size; i++) {
+			Node node = new Node(i, false, 1);
+			node.initiate();
+			ring.getChordList().add(node);
+		}
+		ring.setNeighbors();
+		return ring;
+	}
+
+	/**
+	 * Follows the same decisions a Handler makes and returns the number of messages needed until
+	 * the responsible node is reached.
+	 */
+	private static int countHops(Node start, ChordId key, boolean useFingers) {
+		int hops = 0;
+		Node curr = start;
+		while (!curr.isResponsible(key)) {
+			curr = useFingers ? curr.nextHop(key) : curr.getNext();
+			hops++;
+		}
+		return hops;
+	}
+}
@@ -4,25 +4,35 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import servers.Node;
+import structures.Message;
 import structures.MessageType;
 
 public class MainInsert {
 
 	final static int nodes = 10;
-	final static int nodeStartPort = 64000;
-	static int clientStartPort = 64700;
-	final static int delay = 10;
+	final static int clientPort = 64700;
+	final static int inFlight = 1000; /* requests sent before waiting for replies */
+	final static int batchSize = 100; /* inserts of the file sent in one MULTIPUT */
+	final static long timeout = 10000; /* ms to wait for a reply */
 	final static boolean linear = false;	//set to true if we want to implement chained replication.
+	final static boolean offHeap = false;	//set to true to keep the data of the nodes off the java heap.
+	private static Client client;
 	private static int replFactor = 1;
 
-	public static void main(String[] args) throws NoSuchAlgorithmException, IOException, InterruptedException {
+	public static void main(String[] args) throws IOException, InterruptedException {
 		
+		Node.setOffHeap(offHeap);
 		Chord chordEmulator = new Chord();
 
 		for (int i = 0; i < nodes; i++) {
@@ -33,6 +43,7 @@ public class MainInsert {
 		
 		/* create links with neighbors for each node */
 		chordEmulator.setNeighbors();
+		client = new Client(chordEmulator, clientPort);
 		
 		System.out.println("AFTER SORTING");
 		for (int i = 0; i < nodes; i++) {
@@ -61,12 +72,15 @@ public class MainInsert {
 				System.out.println("delete, <key>");
 				System.out.println("join, <nodeId>");
 				System.out.println("depart, <nodeId>");
+				System.out.println("crash, <nodeId>");
+				System.out.println("stats" + " ( \"stats, <nodeId>\" for one node) ");
+				System.out.println("log, <level>" + " (DEBUG, INFO, WARN, ERROR or OFF) ");
 				System.out.println("or 'q' to quit...");
 				System.out.println("**********************************");
 				input = reader.nextLine();
 				// process action
 				if (!input.equals("q")) 
-					processAction(input.split(", "), chordEmulator);
+					waitFor(processAction(input.split(", "), chordEmulator));
 			}
 		}
 		reader.close();
@@ -76,157 +90,150 @@ public class MainInsert {
 	}
 
 	
-	private static void processAction(String[] split, Chord emulator) throws IOException, InterruptedException {	
-		/* random ports for node and client */
-		int nodePort = randInt(0, nodes) + nodeStartPort;
-		int nodeSId = nodePort - nodeStartPort; 
-		//System.err.println(nodePort);
-		//int clientPort = clientStartPort + randInt(0, nodes);
-		int clientPort = clientStartPort++;
-		//System.err.println(clientPort);
-		
-		if (split[0].equals("insert")){
-			Client myClient = new Client(emulator);
-			myClient.setMyPort(clientPort);
-			myClient.setServerPort(nodePort);
-			myClient.setReplFactor(replFactor);
-			
-			myClient.setKey(split[1]);
-			myClient.setValue(split[2]);				
-			myClient.setServerSId(nodeSId);
-			myClient.setType(MessageType.INSERT);
-
-			Thread t = new Thread(myClient);
-			t.start();
-
-			t.join();
-			/* make a delay to print messages in correct order */
-			//delay(myClient);
-			
-		}
-		else if (split[0].equals("query")) {
-			Client myClient = new Client(emulator);
-			myClient.setMyPort(clientPort);
-			myClient.setServerPort(nodePort);
-			myClient.setReplFactor(replFactor);
-			
-			myClient.setKey(split[1]);			
-			myClient.setServerSId(nodeSId);
-			myClient.setType(MessageType.QUERY);
-
-			Thread t = new Thread(myClient);
-			t.start();
-
-			t.join();
-			/* make a delay to print messages in correct order */
-			//delay(myClient);
-		}
-		else if (split[0].equals("delete")) {	
-			Client myClient = new Client(emulator);
-			myClient.setMyPort(clientPort);
-			myClient.setServerPort(nodePort);
-			myClient.setReplFactor(replFactor);
-			
-			myClient.setKey(split[1]);			
-			myClient.setServerSId(nodeSId);
-			myClient.setType(MessageType.DELETE);
-
-			Thread t = new Thread(myClient);
-			t.start();
-
-			t.join();
-			/* make a delay to print messages in correct order */
-			//delay(myClient);
+	/**
+	 * Sends the request of split to a random node of the ring.
+	 *
+	 * @return the future reply, or null if split is not a valid action.
+	 */
+	private static CompletableFuture<Message> processAction(String[] split, Chord emulator) {
+		if (emulator.command(split)) {
+			return null;
 		}
-		else if (split[0].equals("join")) {
-			Client myClient = new Client(emulator);
-			myClient.setMyPort(clientPort);
-			myClient.setServerPort(nodePort);
-			myClient.setReplFactor(replFactor);
-			
-			myClient.setKey(split[1]);
-			myClient.setValue("");				
-			myClient.setServerSId(nodeSId);
-			myClient.setType(MessageType.JOIN);
-
-			Thread t = new Thread(myClient);
-			t.start();
-
-			t.join();
-			/* make a delay to print messages in correct order */
-			//delay(myClient);
+		/* random node to send the request to */
+		Node node = emulator.getNode(randInt(0, emulator.getChordList().size()));
+
+		MessageType type;
+		String value = "";
+		if (split[0].equals("insert")) {
+			type = MessageType.INSERT;
+			value = split[2];
+		} else if (split[0].equals("query")) {
+			type = MessageType.QUERY;
+		} else if (split[0].equals("delete")) {
+			type = MessageType.DELETE;
+		} else if (split[0].equals("join")) {
+			type = MessageType.JOIN;
+		} else if (split[0].equals("depart")) {
+			type = MessageType.DEPART;
+			value = null;
+		} else {
+			System.err.println("Unknown Action!");
+			return null;
 		}
-		else if (split[0].equals("depart")) {
-			Client myClient = new Client(emulator);
-			myClient.setMyPort(clientPort);
-			myClient.setServerPort(nodePort);
-			myClient.setReplFactor(replFactor);
-			
-			myClient.setKey(split[1]);
-			myClient.setValue(null);				
-			myClient.setServerSId(nodeSId);
-			myClient.setType(MessageType.DEPART);
+		return client.requestAndReport(type, split[1], value, node.getPort(), replFactor);
+	}
 
-			Thread t = new Thread(myClient);
-			t.start();
-			
-			t.join();
-			/* make a delay to print messages in correct order */
-			//delay(myClient);
+	/**
+	 * Waits for reply, at most timeout ms.
+	 */
+	private static void waitFor(CompletableFuture<Message> reply) {
+		if (reply == null) {
+			return;
 		}
-		else {
-			System.err.println("Unknown Action!");
+		try {
+			reply.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			System.out.println("Request timed out.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			System.out.println("Request failed: " + e.getCause());
 		}
 	}
-	
-	
+
+	/**
+	 * Sends the requests of the file keeping up to inFlight of them outstanding. Inserts are sent
+	 * batchSize at a time as one MULTIPUT. Joins and departs change the ring, so they wait for the
+	 * outstanding requests and are sent alone.
+	 */
 	private static void readDataFromFile(String filePath, Chord emulator) throws IOException, InterruptedException {
 		
 		BufferedReader br = null;
+		Semaphore window = new Semaphore(inFlight);
+		Map<String, String> batch = new LinkedHashMap<>();
 		
 		try {
 			// Read from file
 			br = new BufferedReader(new FileReader(new File(filePath)));
 			
 			long startTime = System.currentTimeMillis();
+			int operations = 0;
 			
 			String line;
 			while((line = br.readLine()) != null) {
 				if (filePath.contains("insert")) {
 					line = "insert, " + line;
-					processAction(line.split(", "), emulator);
 				}
 				else if (filePath.contains("query")) {
 					line = "query, " + line;
-					processAction(line.split(", "), emulator);
+				}
+				String[] split = line.split(", ");
+				if (split[0].equals("insert")) {
+					batch.put(split[1], split[2]);
+					if (batch.size() >= batchSize) {
+						sendBatch(batch, emulator, window);
+						batch = new LinkedHashMap<>();
+					}
+				}
+				else if (split[0].equals("join") || split[0].equals("depart")) {
+					sendBatch(batch, emulator, window);
+					batch = new LinkedHashMap<>();
+					window.acquire(inFlight);
+					waitFor(processAction(split, emulator));
+					window.release(inFlight);
 				}
 				else {
-					// requests
-					processAction(line.split(", "), emulator);
+					window.acquire();
+					CompletableFuture<Message> reply = null;
+					try {
+						reply = processAction(split, emulator);
+					} finally {
+						if (reply == null) {
+							window.release();
+						}
+					}
+					if (reply == null) {
+						continue;
+					}
+					//the client fails a request that times out, so the slot is always given back
+					reply.whenComplete((r, e) -> window.release());
 				}
-				Thread.sleep(delay);
+				operations++;
+			}
+			sendBatch(batch, emulator, window);
+			//wait for the last replies
+			if (!window.tryAcquire(inFlight, timeout, TimeUnit.MILLISECONDS)) {
+				System.out.println(client.inFlight() + " requests were not answered.");
 			}
 			long endTime = System.currentTimeMillis();
-			long miliseconds = (endTime - startTime) - 500 * delay;
+			long miliseconds = Math.max(1, endTime - startTime);
 			System.out.println("----------------------------------------");
 			System.out.println("Time in miliseconds: " + miliseconds);
-			System.out.println("Throughput(inserts/sec): " + 500*1000 / miliseconds);
+			System.out.println("Throughput(inserts/sec): " + operations * 1000L / miliseconds);
 			System.out.println("----------------------------------------");
 			
 		} finally {
 			br.close();
 		}
 	}
-	
-	private static void delay(Client client) throws IOException {
-		try {
-			Thread.sleep(delay);
-			client.getServerSock().close();
-			//t.join();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+
+	/**
+	 * Sends the inserts of batch as one MULTIPUT to a random node of the ring.
+	 */
+	private static void sendBatch(Map<String, String> batch, Chord emulator, Semaphore window)
+			throws InterruptedException {
+		if (batch.isEmpty()) {
+			return;
 		}
-	}	
+		Node node = emulator.getNode(randInt(0, emulator.getChordList().size()));
+		window.acquire();
+		client.multiRequest(MessageType.MULTIPUT, batch, node.getPort(), replFactor).whenComplete((r, e) -> {
+			window.release();
+			if (e != null || r.getType() != MessageType.OK) {
+				System.out.println("Batch of " + batch.size() + " inserts failed.");
+			}
+		});
+	}
 	
 	/**
 	 * Generate random integers within a specific range [min,max]
@@ -0,0 +1,139 @@
+package emul;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import servers.Node;
+import structures.Data;
+import structures.Message;
+import structures.MessageType;
+import tools.ChordId;
+
+/*
+ * Scan of all the keys of the ring, one page at a time. Every node range has its own cursor, the
+ * ranges are scanned in parallel and the pages of one range one after the other, so at most one
+ * page per node is in flight and nothing is ever gathered in one message. A cursor can be kept
+ * and resumed later, eg. to fetch the next page of a range on demand.
+ *
+ * The nodes only keep the sha1 of a key, so a prefix filters the hex ids of the keys. All the
+ * ids with a prefix lie on one arc of the ring, which every node cuts out of its store directly.
+ */
+public class RingScanner {
+
+	private Client client;
+	private Chord emulator;
+	private int pageSize; /* most entries per page */
+	private String prefix; /* of the hex ids, or null for all */
+
+	/**
+	 * Position of a scan in the range (previous, node] of a node: the keys up to and including
+	 * after have been returned.
+	 */
+	public static class Cursor {
+		private int port;
+		private ChordId after;
+		private ChordId to;
+		private boolean done;
+
+		public Cursor(int port, ChordId after, ChordId to) {
+			this.port = port;
+			this.after = after;
+			this.to = to;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public ChordId getAfter() {
+			return after;
+		}
+
+		public boolean isDone() {
+			return done;
+		}
+	}
+
+	public RingScanner(Client client, Chord emulator, int pageSize, String prefix) {
+		this.client = client;
+		this.emulator = emulator;
+		this.pageSize = pageSize;
+		this.prefix = prefix;
+	}
+
+	/**
+	 * @return a cursor at the start of the range of every node of the ring.
+	 */
+	public List<Cursor> cursors() {
+		List<Cursor> cursors = new ArrayList<>();
+		for (Node node : emulator.getChordList()) {
+			cursors.add(new Cursor(node.getPort(), node.getPrevious().getNodeId(), node.getNodeId()));
+		}
+		return cursors;
+	}
+
+	/**
+	 * Fetches the page of cursor's range that follows it and moves cursor past it.
+	 *
+	 * @return the entries of the page, in ring order. Empty if the range is done.
+	 */
+	public CompletableFuture<Map<ChordId, String>> nextPage(Cursor cursor) {
+		Message request = new Message();
+		request.setType(MessageType.SCAN);
+		request.setInitialPort(cursor.port);
+		request.setTo(cursor.port);
+		request.setRangeStart(cursor.after);
+		request.setKeyId(cursor.to);
+		request.setLimit(pageSize);
+		if (prefix != null) {
+			request.setData(new Data(prefix, null));
+		}
+		return client.send(request).thenApply(reply -> {
+			Map<ChordId, String> page = reply.getEntries();
+			ChordId last = null;
+			for (ChordId key : page.keySet()) {
+				last = key;
+			}
+			if (last != null) {
+				cursor.after = last;
+			}
+			if (page.size() < pageSize || cursor.to.equals(last)) {
+				cursor.done = true;
+			}
+			return page;
+		});
+	}
+
+	/**
+	 * Scans every range of the ring in parallel. pages gets the port of the node and the entries
+	 * of every page as soon as it comes, it may be called from several threads at once.
+	 *
+	 * @return the future number of entries scanned.
+	 */
+	public CompletableFuture<Long> scan(BiConsumer<Integer, Map<ChordId, String>> pages) {
+		AtomicLong count = new AtomicLong();
+		List<CompletableFuture<Void>> ranges = new ArrayList<>();
+		for (Cursor cursor : cursors()) {
+			ranges.add(scanRange(cursor, pages, count));
+		}
+		return CompletableFuture.allOf(ranges.toArray(new CompletableFuture<?>[0])).thenApply(v -> count.get());
+	}
+
+	private CompletableFuture<Void> scanRange(Cursor cursor, BiConsumer<Integer, Map<ChordId, String>> pages,
+			AtomicLong count) {
+		return nextPage(cursor).thenCompose(page -> {
+			if (!page.isEmpty()) {
+				count.addAndGet(page.size());
+				pages.accept(cursor.port, page);
+			}
+			if (cursor.done) {
+				return CompletableFuture.completedFuture(null);
+			}
+			return scanRange(cursor, pages, count);
+		});
+	}
+}
@@ -0,0 +1,266 @@
+package servers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import structures.Message;
+import structures.MessageType;
+import tools.ChordId;
+import tools.Log;
+import tools.MerkleTree;
+
+/**
+ * Replica repair of a node. Every syncPeriod the node takes the merkle tree over its own key
+ * range (previous, node] and offers its root to each of the replFactor - 1 nodes that should
+ * keep replicas of the range. A replica takes the same tree over its replicas of the range and
+ * the two walk down only the subtrees whose digests differ, one SYNC message per level. The
+ * entries of the buckets that still differ at the leaves are then sent in REPAIR messages and
+ * replace what the replica holds in those buckets. So a replica that is in sync costs one
+ * message per round and the repair traffic grows with the differences, not with the size of the
+ * range.
+ *
+ * The trees are kept by the stores of the node (MerkleStore): a round reads back only the
+ * buckets written since the last one, so its work grows with the writes too. A sync walks a copy
+ * of the tree taken when it starts.
+ *
+ * The replicas are the first nodes of the successor list. One that cannot be reached is
+ * suspected, so the list moves past it and copies the keys to the node that replaces it. A sync
+ * that breaks off halfway is dropped: the next round starts over.
+ *
+ * In linear mode the chain may be writing the keys while they are compared. The owner notes the
+ * last version it has written when it builds its tree and the REPAIRs carry it, with the version
+ * of every entry: a replica keeps a key the owner did not send if it has a newer write of it,
+ * and an entry replaces its replica only if it is newer, like a write that comes down the chain.
+ */
+public class AntiEntropy {
+
+	private static long syncPeriod = 2000; /* ms */
+	private static int depth = 10; /* the tree has 2^depth leaves */
+	private static int repairBatch = 1024; /* entries per REPAIR message */
+
+	private static AtomicLong nextSyncId = new AtomicLong();
+
+	private Node master;
+	private Timer timer;
+	private ConcurrentHashMap<Long, MerkleTree> sessions; /* sync id -> tree of this side */
+	private AtomicLong repaired = new AtomicLong(); /* entries received in REPAIR messages */
+
+	public AntiEntropy(Node master) {
+		this.master = master;
+		sessions = new ConcurrentHashMap<>();
+	}
+
+	public void start() {
+		timer = new Timer("Node" + master.getSerialId() + "-antientropy", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				if (!master.getRunning()) {
+					cancel();
+					return;
+				}
+				round();
+			}
+		}, syncPeriod, syncPeriod);
+	}
+
+	/**
+	 * Offers the root of the tree of master's range to every node that keeps replicas of it.
+	 */
+	public void round() {
+		//syncs that never finished, eg. the other side left
+		long stale = System.currentTimeMillis() - 5 * syncPeriod;
+		sessions.values().removeIf(tree -> tree.getBuilt() < stale);
+
+		if (master.getReplFactor() <= 1) {
+			return;
+		}
+		ChordId from = master.getPrevious().getNodeId();
+		ChordId to = master.getNodeId();
+		long asOf = master.getLastVersion();
+		MerkleTree tree = master.getHashTable().tree(from, to, depth, 5 * syncPeriod);
+
+		Node[] replicas = master.getSuccessors();
+		for (int i = 0; i < replicas.length && i < master.getReplFactor() - 1; i++) {
+			Node replica = replicas[i];
+			if (replica == master) {
+				break;
+			}
+			if (!master.isAlive(replica)) {
+				continue;
+			}
+			long syncId = nextSyncId.incrementAndGet();
+			sessions.put(syncId, tree);
+			Message mes = syncMessage(syncId, from, to, master.getPort(), replica.getPort());
+			mes.setVersion(asOf);
+			mes.setDigests(new long[] { 1, tree.digest(1) });
+			try {
+				master.getPool().send(mes, replica.getPort());
+			} catch (IOException e) {
+				sessions.remove(syncId);
+				Log.warn("[NODE{}] sending {} failed", master.getSerialId(), mes.getType(), e);
+				master.suspect(replica);
+			}
+		}
+	}
+
+	/**
+	 * Compares the (node, digest) pairs of mes with the tree of this side. For every inner node
+	 * that differs the digests of its children go back to the other side. A leaf that differs is
+	 * repaired if master owns the range, else its digest goes back to the owner so it can tell.
+	 */
+	public void sync(Message mes) {
+		boolean owner = master.getPort() == mes.getResponsiblePort();
+		MerkleTree tree = sessions.get(mes.getRequestId());
+		if (tree == null) {
+			if (owner) {
+				return;
+			}
+			tree = master.getReplHashTable().tree(mes.getRangeStart(), mes.getKeyId(), depth, 5 * syncPeriod);
+			sessions.put(mes.getRequestId(), tree);
+		}
+
+		long[] digests = mes.getDigests();
+		List<Long> next = new ArrayList<>();
+		List<Integer> buckets = new ArrayList<>();
+		for (int i = 0; i < digests.length; i += 2) {
+			int node = (int) digests[i];
+			if (tree.digest(node) == digests[i + 1]) {
+				continue;
+			}
+			if (!tree.isLeaf(node)) {
+				for (int child = 2 * node; child <= 2 * node + 1; child++) {
+					next.add((long) child);
+					next.add(tree.digest(child));
+				}
+			} else if (owner) {
+				buckets.add(tree.bucket(node));
+			} else {
+				next.add((long) node);
+				next.add(tree.digest(node));
+			}
+		}
+
+		if (!buckets.isEmpty()) {
+			repair(mes, buckets);
+		}
+		if (next.isEmpty()) {
+			sessions.remove(mes.getRequestId());
+			return;
+		}
+		Message reply = syncMessage(mes.getRequestId(), mes.getRangeStart(), mes.getKeyId(),
+				mes.getResponsiblePort(), mes.getFrom());
+		reply.setVersion(mes.getVersion());
+		long[] replyDigests = new long[next.size()];
+		for (int i = 0; i < replyDigests.length; i++) {
+			replyDigests[i] = next.get(i);
+		}
+		reply.setDigests(replyDigests);
+		try {
+			master.getPool().send(reply, reply.getTo());
+		} catch (IOException e) {
+			sessions.remove(mes.getRequestId());
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), reply.getType(), e);
+		}
+	}
+
+	/**
+	 * Sends the entries master owns in buckets to the replica that sent mes. Buckets are never
+	 * split between two messages, the replica replaces a bucket as a whole.
+	 */
+	private void repair(Message mes, List<Integer> buckets) {
+		Map<ChordId, String> entries = new LinkedHashMap<>();
+		List<Long> sent = new ArrayList<>();
+		Iterator<Integer> it = buckets.iterator();
+		while (it.hasNext()) {
+			int bucket = it.next();
+			entries.putAll(MerkleTree.entriesOf(master.getHashTable(), mes.getRangeStart(), mes.getKeyId(), depth,
+					bucket));
+			sent.add((long) bucket);
+			if (entries.size() >= repairBatch || !it.hasNext()) {
+				Message repair = syncMessage(mes.getRequestId(), mes.getRangeStart(), mes.getKeyId(),
+						master.getPort(), mes.getFrom());
+				repair.setType(MessageType.REPAIR);
+				repair.setVersion(mes.getVersion());
+				repair.setEntries(entries);
+				repair.setEntryVersions(master.versionsOf(entries.keySet()));
+				long[] sentBuckets = new long[sent.size()];
+				for (int i = 0; i < sentBuckets.length; i++) {
+					sentBuckets[i] = sent.get(i);
+				}
+				repair.setDigests(sentBuckets);
+				try {
+					master.getPool().send(repair, repair.getTo());
+				} catch (IOException e) {
+					Log.warn("[NODE{}] sending {} failed", master.getSerialId(), repair.getType(), e);
+					return;
+				}
+				entries = new LinkedHashMap<>();
+				sent = new ArrayList<>();
+			}
+		}
+	}
+
+	/**
+	 * Makes the replicas of master in the buckets of mes equal to the entries of mes, but for
+	 * the keys written after the tree of the owner was built (linear mode).
+	 */
+	public void repaired(Message mes) {
+		Map<ChordId, String> entries = mes.getEntries();
+		for (long bucket : mes.getDigests()) {
+			Map<ChordId, String> old = MerkleTree.entriesOf(master.getReplHashTable(), mes.getRangeStart(),
+					mes.getKeyId(), depth, (int) bucket);
+			for (ChordId key : old.keySet()) {
+				if (!entries.containsKey(key)) {
+					master.dropReplica(key, mes.getVersion());
+				}
+			}
+		}
+		master.insertAllR(entries, mes.getEntryVersions());
+		repaired.addAndGet(entries.size());
+	}
+
+	private Message syncMessage(long syncId, ChordId from, ChordId to, int owner, int dst) {
+		Message mes = new Message();
+		mes.setRequestId(syncId);
+		mes.setFrom(master.getPort());
+		mes.setTo(dst);
+		mes.setReplyTo(-1);
+		mes.setResponsiblePort(owner);
+		mes.setType(MessageType.SYNC);
+		mes.setRangeStart(from);
+		mes.setKeyId(to);
+		return mes;
+	}
+
+	/**
+	 * @return number of replica entries this node got through repairs.
+	 */
+	public long getRepaired() {
+		return repaired.get();
+	}
+
+	public static long getSyncPeriod() {
+		return syncPeriod;
+	}
+
+	public static void setSyncPeriod(long syncPeriod) {
+		AntiEntropy.syncPeriod = syncPeriod;
+	}
+
+	public static int getDepth() {
+		return depth;
+	}
+
+	public static void setDepth(int depth) {
+		AntiEntropy.depth = depth;
+	}
+}
@@ -0,0 +1,130 @@
+package servers;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import structures.Message;
+import structures.MessageType;
+import tools.ChordId;
+
+/**
+ * Streams a key range of a node to another node on join/depart. The range is cut in batches of
+ * batchSize entries that go over the pooled connection to the receiver one after the other. Every
+ * batch is acknowledged by the receiver once it is stored, and at most window batches may be
+ * unacknowledged, so a large handoff cannot flood the receiver's workers.
+ */
+public class BulkTransfer {
+
+	private static int batchSize = 1024; /* entries per batch */
+	private static int window = 4; /* unacknowledged batches per transfer */
+	private static boolean compress = false; /* deflate the entries of every batch */
+	private static long ackTimeout = 5000; /* ms to wait for an ack before giving up */
+
+	private static AtomicLong nextBatchId = new AtomicLong();
+
+	private Node master;
+	private ConcurrentHashMap<Long, Semaphore> pending; /* batch id -> window of its transfer */
+
+	public BulkTransfer(Node master) {
+		this.master = master;
+		pending = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Sends entries to dst as messages of type TRANSFER or TRANSFERR and waits until the receiver
+	 * has acknowledged every batch. If versions is not null every batch carries the version of
+	 * each of its keys (0 if the key has none), so a chain can go on ordering their writes.
+	 *
+	 * @return true if all batches were acknowledged, false if an ack did not come in time.
+	 */
+	public boolean send(Map<ChordId, String> entries, Map<ChordId, Long> versions, MessageType type, int ttl,
+			int dst) throws IOException {
+		Semaphore credits = new Semaphore(window);
+		Iterator<Map.Entry<ChordId, String>> it = entries.entrySet().iterator();
+		try {
+			while (it.hasNext()) {
+				Map<ChordId, String> batch = new LinkedHashMap<>();
+				while (it.hasNext() && batch.size() < batchSize) {
+					Map.Entry<ChordId, String> e = it.next();
+					batch.put(e.getKey(), e.getValue());
+				}
+				if (!credits.tryAcquire(ackTimeout, TimeUnit.MILLISECONDS)) {
+					return false;
+				}
+
+				Message mes = new Message();
+				mes.setRequestId(nextBatchId.incrementAndGet());
+				mes.setFrom(master.getPort());
+				mes.setTo(dst);
+				mes.setReplFactor(ttl);
+				mes.setReplyTo(-1);
+				mes.setType(type);
+				mes.setEntries(batch);
+				mes.setCompressed(compress);
+				if (versions != null) {
+					long[] batchVersions = new long[batch.size()];
+					int i = 0;
+					for (ChordId key : batch.keySet()) {
+						Long version = versions.get(key);
+						batchVersions[i++] = (version == null) ? 0 : version;
+					}
+					mes.setEntryVersions(batchVersions);
+				}
+				pending.put(mes.getRequestId(), credits);
+				master.getPool().send(mes, dst);
+			}
+			//wait for the last batches.
+			if (!credits.tryAcquire(window, ackTimeout, TimeUnit.MILLISECONDS)) {
+				return false;
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			pending.values().removeAll(Collections.singleton(credits));
+		}
+	}
+
+	/**
+	 * Called when the receiver of batch batchId has stored it. Acks of batches that were not sent
+	 * by this node (eg. forwarded along the replica chain) are ignored.
+	 */
+	public void acked(long batchId) {
+		Semaphore credits = pending.remove(batchId);
+		if (credits != null) {
+			credits.release();
+		}
+	}
+
+	public static int getBatchSize() {
+		return batchSize;
+	}
+
+	public static void setBatchSize(int batchSize) {
+		BulkTransfer.batchSize = batchSize;
+	}
+
+	public static int getWindow() {
+		return window;
+	}
+
+	public static void setWindow(int window) {
+		BulkTransfer.window = window;
+	}
+
+	public static boolean isCompress() {
+		return compress;
+	}
+
+	public static void setCompress(boolean compress) {
+		BulkTransfer.compress = compress;
+	}
+}
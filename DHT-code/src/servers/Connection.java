@@ -0,0 +1,93 @@
+package servers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import structures.Message;
+import structures.MessageCodec;
+
+/**
+ * A long-lived channel to another node. Messages are written as frames: an int with the length of
+ * the payload followed by the message in the binary format of MessageCodec. Many handler threads may share one connection,
+ * a whole frame is always written at once.
+ */
+public class Connection {
+
+	public static final int MAX_FRAME = 64 << 20; /* bytes, a longer length means a broken stream */
+
+	private Socket sock;
+	private DataOutputStream out;
+	private int dst;
+
+	public Connection(int dst) throws IOException {
+		this.dst = dst;
+		sock = new Socket("127.0.0.1", dst);
+		sock.setTcpNoDelay(true);
+		out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+	}
+
+	/**
+	 * @return the bytes of the frame written.
+	 */
+	public int write(Message mes) throws IOException {
+		ByteBuffer frame = frame(mes);
+		synchronized (this) {
+			out.write(frame.array(), 0, frame.position());
+			out.flush();
+		}
+		return frame.position();
+	}
+
+	public void close() {
+		try {
+			sock.close();
+		} catch (IOException e) {
+			//already closed
+		}
+	}
+
+	public boolean isClosed() {
+		return sock.isClosed();
+	}
+
+	public int getDst() {
+		return dst;
+	}
+
+	/**
+	 * Reads the next frame of in.
+	 *
+	 * @return the message, or null if the other side closed the connection.
+	 * @throws IOException also if the length of the frame is negative or above MAX_FRAME.
+	 */
+	public static Message readFrame(DataInputStream in) throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		if (length < 0 || length > MAX_FRAME) {
+			throw new IOException("frame of " + length + " bytes");
+		}
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return MessageCodec.decode(ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * @return a buffer holding the length and the encoded mes, positioned at the end of the frame.
+	 */
+	private static ByteBuffer frame(Message mes) {
+		ByteBuffer buf = ByteBuffer.allocate(4 + MessageCodec.maxSize(mes));
+		buf.position(4);
+		MessageCodec.encode(mes, buf);
+		buf.putInt(0, buf.position() - 4);
+		return buf;
+	}
+}
@@ -0,0 +1,87 @@
+package servers;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import structures.Message;
+
+/**
+ * Keeps one Connection per destination port, so that messages to next/previous and finger nodes
+ * and replies to clients do not pay a TCP handshake each. A broken connection is dropped and opened again once.
+ */
+public class ConnectionPool {
+
+	private ConcurrentHashMap<Integer, Connection> connections;
+	private NodeMetrics metrics; /* of the node that sends, null for a client */
+
+	public ConnectionPool() {
+		connections = new ConcurrentHashMap<>();
+	}
+
+	public ConnectionPool(NodeMetrics metrics) {
+		this();
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sends mes to port dst, a node or a client that listens for replies.
+	 */
+	public void send(Message mes, int dst) throws IOException {
+		Connection conn = get(dst);
+		int bytes;
+		try {
+			bytes = conn.write(mes);
+		} catch (IOException e) {
+			//connection is broken, reconnect and try once more.
+			remove(conn);
+			conn = get(dst);
+			try {
+				bytes = conn.write(mes);
+			} catch (IOException e2) {
+				remove(conn);
+				throw e2;
+			}
+		}
+		if (metrics != null) {
+			metrics.sent(mes.getType(), bytes);
+		}
+	}
+
+	/**
+	 * Drops the connection to dst, if any. Used when a node starts listening on dst again, so an
+	 * old connection to it can only be broken.
+	 */
+	public void close(int dst) {
+		Connection conn = connections.remove(dst);
+		if (conn != null) {
+			conn.close();
+		}
+	}
+
+	public void closeAll() {
+		for (Connection conn : connections.values()) {
+			conn.close();
+		}
+		connections.clear();
+	}
+
+	private Connection get(int dst) throws IOException {
+		Connection conn = connections.get(dst);
+		if (conn != null) {
+			return conn;
+		}
+		conn = new Connection(dst);
+		Connection old = connections.putIfAbsent(dst, conn);
+		if (old != null) {
+			//another thread connected first.
+			conn.close();
+			return old;
+		}
+		return conn;
+	}
+
+	private void remove(Connection conn) {
+		connections.remove(conn.getDst(), conn);
+		conn.close();
+	}
+}
@@ -0,0 +1,135 @@
+package servers;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al.) of the nodes a node sends heartbeats to. For
+ * every watched port it keeps the last intervals between the heartbeats heard from it. phi is how
+ * unlikely the silence since the last one is, taking the intervals as exponentially distributed:
+ * phi = silence / mean interval * log10(e). A node is available while phi stays below threshold,
+ * so a slow network or a pause makes the detector wait longer instead of giving up on a node
+ * after a fixed timeout.
+ *
+ * A port a send failed to is suspected right away, until it is heard from again or for
+ * SUSPECT_INTERVALS heartbeat intervals, after which a node that came back can be tried again.
+ */
+public class FailureDetector {
+
+	private static final int WINDOW = 100; /* intervals kept per node */
+	private static final double LOG10_E = Math.log10(Math.E);
+	private static final int SUSPECT_INTERVALS = 30;
+	private static double threshold = 8; /* phi 8: wrong about once in 10^8 */
+
+	private long expectedInterval; /* ms, what a node starts with until it has been heard from */
+	private ConcurrentHashMap<Integer, History> histories = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<Integer, Long> suspected = new ConcurrentHashMap<>(); /* port to ms it is suspected until */
+
+	private static class History {
+		private long[] intervals = new long[WINDOW];
+		private int count;
+		private int next;
+		private long sum;
+		private long last; /* ms of the last heartbeat */
+
+		History(long now, long expected) {
+			last = now;
+			add(expected);
+		}
+
+		synchronized void heartbeat(long now) {
+			add(now - last);
+			last = now;
+		}
+
+		private void add(long interval) {
+			if (count == WINDOW) {
+				sum -= intervals[next];
+			} else {
+				count++;
+			}
+			intervals[next] = interval;
+			sum += interval;
+			next = (next + 1) % WINDOW;
+		}
+
+		synchronized double phi(long now) {
+			double mean = Math.max(1.0, (double) sum / count);
+			return (now - last) / mean * LOG10_E;
+		}
+	}
+
+	/**
+	 * @param expectedInterval ms between heartbeats, the mean a node starts with.
+	 */
+	public FailureDetector(long expectedInterval) {
+		this.expectedInterval = expectedInterval;
+	}
+
+	/**
+	 * Starts timing the heartbeats of port, as if one had just arrived. Nothing if it is already
+	 * watched.
+	 */
+	public void watch(int port) {
+		histories.computeIfAbsent(port, p -> new History(System.currentTimeMillis(), expectedInterval));
+	}
+
+	/**
+	 * Stops timing the heartbeats of every port but ports, eg. they are no neighbours of ours
+	 * any more.
+	 */
+	public void retain(Collection<Integer> ports) {
+		histories.keySet().retainAll(ports);
+	}
+
+	/**
+	 * port has been heard from.
+	 */
+	public void heartbeat(int port) {
+		suspected.remove(port);
+		History h = histories.get(port);
+		if (h != null) {
+			h.heartbeat(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * A message could not be sent to port.
+	 *
+	 * @return false if port was suspected already.
+	 */
+	public boolean suspect(int port) {
+		return suspected.put(port, System.currentTimeMillis() + SUSPECT_INTERVALS * expectedInterval) == null;
+	}
+
+	/**
+	 * @return phi of port now, 0 for a port that is not watched.
+	 */
+	public double phi(int port) {
+		History h = histories.get(port);
+		return (h == null) ? 0 : h.phi(System.currentTimeMillis());
+	}
+
+	/**
+	 * @return false if port is suspected or its phi has reached the threshold. A port that is not
+	 * watched is available unless suspected.
+	 */
+	public boolean isAvailable(int port) {
+		Long until = suspected.get(port);
+		if (until != null) {
+			if (until > System.currentTimeMillis()) {
+				return false;
+			}
+			suspected.remove(port, until);
+		}
+		return phi(port) < threshold;
+	}
+
+	public static double getThreshold() {
+		return threshold;
+	}
+
+	public static void setThreshold(double threshold) {
+		FailureDetector.threshold = threshold;
+	}
+}
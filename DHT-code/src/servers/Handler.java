@@ -1,16 +1,17 @@
 package servers;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-import java.security.NoSuchAlgorithmException;
+import java.util.Map;
 
 import structures.Data;
 import structures.Message;
+import structures.MessageJoin;
 import structures.MessageType;
+import tools.ChordId;
+import tools.Log;
 import tools.SHA1Hash;
 
-public class Handler extends Thread {
+public class Handler implements Runnable {
 
 	private Node master;
 	private Message mes;
@@ -21,16 +22,22 @@ public class Handler extends Thread {
 	}
 
 	/**
-	 * This is called whenever the handler thread starts. It checks various parameters (eg. type,
+	 * This is called whenever a worker of the listener picks up the handler. It checks various parameters (eg. type,
 	 * range of key) and decides what actions should be taken.
 	 */
 	@Override
 	public void run() {
 
 		//System.out.println("Handler of node" + master.getSerialId() + " started.");
-		//check '*'
-		if (isSpecialQuery()) {
-			handleAllQuery();
+		//a page of a scan of the ring.
+		if (mes.getType().equals(MessageType.SCAN)) {
+			handleScan();
+			return;
+		}
+
+		//results of a batch this node coordinates.
+		if (master.getMultiOps().isResult(mes)) {
+			master.getMultiOps().result(mes);
 			return;
 		}
 
@@ -40,16 +47,53 @@ public class Handler extends Thread {
 			handleOkFail();
 			return;
 		}
+
+		//batches of keys.
+		if (mes.getType().equals(MessageType.MULTIPUT) || mes.getType().equals(MessageType.MULTIGET)
+				|| mes.getType().equals(MessageType.MULTIDELETE)) {
+			master.getMultiOps().handle(mes);
+			return;
+		}
 		
 		
+		//a batch we streamed has been stored.
+		if (mes.getType().equals(MessageType.ACK)) {
+			master.getTransfers().acked(mes.getRequestId());
+			return;
+		}
+
+		//replica writes shipped by the replication log of the previous node.
+		if (mes.getType().equals(MessageType.REPLICATE)) {
+			master.applyR(mes.getEntries());
+			if (mes.getReplFactor() > 1) {
+				for (Map.Entry<ChordId, String> e : mes.getEntries().entrySet()) {
+					master.getReplicationLog().append(e.getKey(), e.getValue(), mes.getReplFactor() - 1);
+				}
+			}
+			return;
+		}
+
+		//anti-entropy of the replicas of a key range.
+		if (mes.getType().equals(MessageType.SYNC)) {
+			master.getAntiEntropy().sync(mes);
+			return;
+		}
+		if (mes.getType().equals(MessageType.REPAIR)) {
+			master.getAntiEntropy().repaired(mes);
+			return;
+		}
+
+		//handle bulk transfers of a key range (join/depart).
+		if (mes.getType().equals(MessageType.TRANSFER)
+				|| mes.getType().equals(MessageType.TRANSFERR)) {
+			handleTransfer();
+			return;
+		}
+
 		//handle replication messages.
 		if (mes.getType().equals(MessageType.INSERTR)
 				|| mes.getType().equals(MessageType.DELETER)) {
-			try {
-				handleRepls();
-			} catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-			}
+			handleRepls();
 			mes.setReplFactor(mes.getReplFactor() - 1);
 			if (mes.getReplFactor() >= 1) {
 				forward();
@@ -57,28 +101,19 @@ public class Handler extends Thread {
 			return;
 		}
 
-		//get key from message
-		String key = null;
-		if (mes.isHashed()) {
-			key = mes.getData().getKey();
-		} else {
-			try {
-				key = SHA1Hash.hash(mes.getData().getKey());
-			} catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-			}
+		//get key from message. Only the first node hashes it, the rest reuse the hash.
+		if (!mes.isHashed()) {
+			mes.setKeyId(SHA1Hash.hash(mes.getData().getKey()));
 		}
+		ChordId key = mes.getKeyId();
 
 		//if this node is responsible call corresponding method,
 		//else forward to next node.
-		if (isResponsible(key)) {
+		if (master.isResponsible(key)) {
+			master.getMetrics().hops(mes.getHops());
 			switch (mes.getType()) {
 			case DELETE: {
-				try {
-					handleDelete();
-				} catch (NoSuchAlgorithmException e) {
-					e.printStackTrace();
-				}
+				handleDelete();
 				break;
 			}
 			case DEPART: {
@@ -98,15 +133,15 @@ public class Handler extends Thread {
 				break;
 			}
 			default: {
-				System.out.println("Unknown message type received, at node" + master.getSerialId());
+				Log.warn("[NODE{}] unknown message type {}", master.getSerialId(), mes.getType());
 				break;
 			}
 			}
 		} else {
 			if (mes.getType().equals(MessageType.QUERY)) {
-				checkReplFirst();
+				checkReplFirst(key);
 			} else {
-				forward();
+				route(key);
 			}
 		}
 	}
@@ -114,19 +149,50 @@ public class Handler extends Thread {
 	/**
 	 * This is called if a replication message is found. It justs calls the corresponding
 	 * replication method of master. Key must be already hashed!!!!!
-	 * @throws NoSuchAlgorithmException 
 	 */
-	private void handleRepls() throws NoSuchAlgorithmException {
+	private void handleRepls() {
 		//System.out.println("REPLICATION MESSAGE: " + mes);
 		if (mes.getType().equals(MessageType.INSERTR)) {
-			master.insertR(mes.getData().getKey(), mes.getData().getVal());
+			master.insertR(mes.getKeyId(), mes.getData().getVal());
 		} else if (mes.getType().equals(MessageType.DELETER)) {
-			master.deleteR(mes.getData().getKey());
+			master.deleteR(mes.getKeyId());
 		}
 
 		//System.out.println("Changed repl hast of master.");
 	}
 
+	/**
+	 * This is called if a batch of a key range is handed over to master. The whole batch is
+	 * stored at once and acknowledged to its sender, a TRANSFERR is then passed on along the
+	 * replica chain while its ttl lasts.
+	 */
+	private void handleTransfer() {
+		if (mes.getType().equals(MessageType.TRANSFER)) {
+			master.insertAll(mes.getEntries());
+		} else {
+			master.insertAllR(mes.getEntries());
+		}
+
+		Message ack = new Message();
+		ack.setRequestId(mes.getRequestId());
+		ack.setFrom(master.getPort());
+		ack.setTo(mes.getFrom());
+		ack.setReplyTo(-1);
+		ack.setType(MessageType.ACK);
+		try {
+			master.getPool().send(ack, ack.getTo());
+		} catch (IOException e) {
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), ack.getType(), e);
+		}
+
+		if (mes.getType().equals(MessageType.TRANSFERR)) {
+			mes.setReplFactor(mes.getReplFactor() - 1);
+			if (mes.getReplFactor() >= 1) {
+				forward();
+			}
+		}
+	}
+
 	/**
 	 * This is called if a message is of type INSERT and master node is responsible for this key.
 	 * Calls master's insert method, and sends OK/FAILED back.
@@ -134,18 +200,16 @@ public class Handler extends Thread {
 	private void handleInsert() {
 		boolean res = false;
 		//do operation
-		if (mes.isHashed()) {
-			res = master.insert(mes.getData().getKey(), mes.getData().getVal());
-		} else {
-			res = master.insert(mes.getData().getKey(), mes.getData().getVal());
-		}
+		res = master.insert(mes.getKeyId(), mes.getData().getVal());
 
 		//send reply if needed
 		Message reply = new Message();
+		reply.setRequestId(mes.getRequestId());
 		reply.setInitialPort(mes.getInitialPort());
 		reply.setFrom(master.getPort());
 		reply.setData(mes.getData());
 		reply.setReplyTo(mes.getReplyTo());
+		reply.setHops(mes.getHops());
 		reply.setTo(mes.getInitialPort());
 		if (res) {
 			reply.setType(MessageType.OK);
@@ -156,17 +220,13 @@ public class Handler extends Thread {
 			try {
 				send(reply, reply.getTo());
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.warn("[NODE{}] sending {} failed", master.getSerialId(), reply.getType(), e);
 			}
 		}
 
-		//replicate if needed.
-		//System.out.println("Checking repls." + ((res) && (mes.getReplFactor() > 1)) + " " + res);
+		//replicate if needed, in the background.
 		if ((res) && (mes.getReplFactor() > 1)) {
-			//System.out.println(" I should repl.");
-			mes.setType(MessageType.INSERTR);
-			mes.setReplFactor(mes.getReplFactor() - 1);
-			forward();
+			master.getReplicationLog().appendLatest(mes.getKeyId(), mes.getReplFactor() - 1);
 		}
 
 	}
@@ -174,28 +234,21 @@ public class Handler extends Thread {
 	/**
 	 * This is called if a message is of type DELETE and master node is responsible for this key.
 	 * Calls master's delete method, and sends OK/FAILED back.
-	 * @throws NoSuchAlgorithmException 
 	 */
-	private void handleDelete() throws NoSuchAlgorithmException {
+	private void handleDelete() {
 		//System.out.println("Delete message found.");
 		boolean res = false;
 		//do operation
-		if (mes.isHashed()) {
-			res = master.delete(mes.getData().getKey());
-		} else {
-			try {
-				res = master.delete(mes.getData().getKey());
-			} catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-			}
-		}
+		res = master.delete(mes.getKeyId());
 
 		//send back reply if needed.
 		Message reply = new Message();
+		reply.setRequestId(mes.getRequestId());
 		reply.setInitialPort(mes.getInitialPort());
 		reply.setData(mes.getData());
 		reply.setFrom(master.getPort());
 		reply.setReplyTo(mes.getReplyTo());
+		reply.setHops(mes.getHops());
 		reply.setTo(mes.getInitialPort());
 		if (res) {
 			reply.setType(MessageType.OK);
@@ -206,15 +259,13 @@ public class Handler extends Thread {
 			try {
 				send(reply, reply.getTo());
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.warn("[NODE{}] sending {} failed", master.getSerialId(), reply.getType(), e);
 			}
 		}
 
-		//replicate if needed
+		//replicate if needed, in the background.
 		if (res && mes.getReplFactor() > 1) {
-			mes.setType(MessageType.DELETER);
-			mes.setReplFactor(mes.getReplFactor() - 1);
-			forward();
+			master.getReplicationLog().appendLatest(mes.getKeyId(), mes.getReplFactor() - 1);
 		}
 	}
 
@@ -226,25 +277,18 @@ public class Handler extends Thread {
 		//System.out.println("Query message found. " + mes);
 		String res = null;
 		//do operation
-		if (mes.isHashed()) {
-			//never used.
-			res = master.query(mes.getData().getKey());
-		} else {
-			try {
-				res = master.query(SHA1Hash.hash(mes.getData().getKey()));
-			} catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-			}
-		}
+		res = master.query(mes.getKeyId());
 
 		//send reply
 		if (mes.getReplyTo() != -1) {
 			//always is.
 			Message reply = new Message();
+			reply.setRequestId(mes.getRequestId());
 			reply.setInitialPort(mes.getInitialPort());
 			reply.setFrom(master.getPort());
 			reply.setTo(mes.getInitialPort());
 			reply.setReplyTo(mes.getReplyTo());
+			reply.setHops(mes.getHops());
 			reply.setData(new Data(mes.getData().getKey(), res));
 			if (res == null || res.isEmpty()) {
 				reply.setType(MessageType.FAIL);
@@ -255,81 +299,60 @@ public class Handler extends Thread {
 			try {
 				send(reply, reply.getTo());
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.warn("[NODE{}] sending {} failed", master.getSerialId(), reply.getType(), e);
 			}
 		}
 	}
 
 	/**
-	 * This is called if a message is of type QUERY *. Checks if should append and forward, or if
-	 * should return to user. If from!=master.port then first arrival => process and forward, else
-	 * message get through all nodes send reply back to user.
+	 * This is called if a message is of type SCAN. Replies with the next page of master's keys
+	 * in the range of the message, filtered by the prefix in the key of data if any.
 	 */
-	private void handleAllQuery() {
-		Message reply = null;
-		int dst = -1;
-		if (mes.getFrom() != master.getPort()) {
-			String res = master.specialQuery();
-			Data temp = mes.getData();
-			temp.setVal(temp.getVal() + " " + res);
-			reply = new Message();
-			if (mes.getFrom() == mes.getReplyTo()) {
-				reply.setFrom(master.getPort());
-			} else {
-				reply.setFrom(mes.getFrom());
-			}
-			reply.setInitialPort(mes.getInitialPort());
-			reply.setData(temp);
-			reply.setReplyTo(mes.getReplyTo());
-			reply.setTo(master.getNext().getPort());
-			reply.setType(MessageType.QUERY);
-
-			dst = reply.getTo();
-		} else {
-			if (master.getPort() == mes.getInitialPort() ) {
-				//full circle, send back to user.
-				reply = mes;
-				dst = mes.getReplyTo();
-			}
-		}
-
+	private void handleScan() {
+		String prefix = (mes.getData() != null) ? mes.getData().getKey() : null;
+		Message reply = new Message();
+		reply.setRequestId(mes.getRequestId());
+		reply.setInitialPort(mes.getInitialPort());
+		reply.setFrom(master.getPort());
+		reply.setTo(mes.getReplyTo());
+		reply.setReplyTo(mes.getReplyTo());
+		reply.setHops(mes.getHops());
+		reply.setType(MessageType.OK);
+		reply.setEntries(master.scan(mes.getRangeStart(), mes.getKeyId(), prefix, mes.getLimit()));
 		try {
-			send(reply, dst);
+			send(reply, reply.getTo());
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), reply.getType(), e);
 		}
-
 	}
-
 	/**
 	 * The node will be created here, and the chord emulator will then take a copy from the chord
-	 * with
+	 * with. The join message only carries the id, address and port of the new node, which then
+	 * receives from master the keys of its range.
 	 */
 	private void handleJoin() {
 		//System.out.println("Join message found.");
 
 		Message reply = new Message();
+		reply.setRequestId(mes.getRequestId());
 		boolean res = false;
 		Node newNode = null;
-		String id = null;
 
-		try {
-			id = SHA1Hash.hash(mes.getData().getKey());
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		}
+		MessageJoin join = (MessageJoin) mes;
+		ChordId id = join.getNodeId();
 
 		reply.setInitialPort(mes.getInitialPort());
 		reply.setFrom(master.getPort());
 		reply.setData(mes.getData());
 		reply.setReplyTo(mes.getReplyTo());
+		reply.setHops(mes.getHops());
 		reply.setTo(mes.getInitialPort());
 
 		if (id.compareTo(master.getNodeId()) != 0) {
 			try {
-				newNode = new Node(Integer.parseInt(mes.getData().getKey()), master.isLinear(), master.getReplFactor());
+				newNode = new Node(join.getJoinId(), master.isLinear(), master.getReplFactor());
 			} catch (Exception e) {
-				e.printStackTrace();
+				Log.error("[NODE{}] creating node {} failed", master.getSerialId(), join.getJoinId(), e);
 			}
 			
 			res = master.joinNode(newNode);
@@ -337,7 +360,7 @@ public class Handler extends Thread {
 				reply.setType(MessageType.OK);
 				reply.setTo(mes.getReplyTo());
 				
-				//send repls. Method is not correct!!!!!
+				//send repls.
 				if (mes.getReplFactor() > 1) {
 					boolean res2 = master.joinR(mes.getReplFactor(), newNode);
 					res = res && res2;
@@ -346,7 +369,8 @@ public class Handler extends Thread {
 				reply.setType(MessageType.FAIL);
 			}
 		} else {
-			System.out.println("Node already exists. Request failed.");
+			Log.info("[NODE{}] node {} already exists", master.getSerialId(), join.getJoinId());
+			reply.setType(MessageType.FAIL);
 		}
 
 		
@@ -355,34 +379,27 @@ public class Handler extends Thread {
 				//System.out.println("[HANDLER]: reply created" + reply);
 				send(reply, reply.getTo());
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.warn("[NODE{}] sending {} failed", master.getSerialId(), reply.getType(), e);
 			}
 		}
 	}
 
 	private void handleDepart() {
 		//System.out.println("Depart message found.");
-		String id = null;
+		ChordId id = mes.getKeyId();
 		boolean res = false;
-		if (mes.isHashed()) {
-			id = mes.getData().getKey();
-		} else {
-			try {
-				id = SHA1Hash.hash(mes.getData().getKey());
-			} catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-			}
-		}
 
 		Message reply = new Message();
+		reply.setRequestId(mes.getRequestId());
 		reply.setInitialPort(mes.getInitialPort());
 		reply.setData(mes.getData());
 		reply.setFrom(master.getPort());
 		reply.setTo(mes.getInitialPort());
 		reply.setReplyTo(mes.getReplyTo());
+		reply.setHops(mes.getHops());
 
 		if (!id.equals(master.getNodeId())) {
-			System.out.println("The requested node doesn't exist.");
+			Log.info("[NODE{}] departing node {} does not exist", master.getSerialId(), mes.getData().getKey());
 			res = false;
 		} else {
 			res = master.depart();
@@ -390,6 +407,7 @@ public class Handler extends Thread {
 				boolean res2 = master.departR(mes.getReplFactor());
 				res = res && res2;
 			}
+			master.terminate();
 		}
 
 		if (res) {
@@ -403,7 +421,7 @@ public class Handler extends Thread {
 				send(reply, reply.getTo());
 			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), reply.getType(), e);
 		}
 	}
 
@@ -420,96 +438,73 @@ public class Handler extends Thread {
 			try {
 				send(mes, mes.getReplyTo());
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.warn("[NODE{}] sending {} failed", master.getSerialId(), mes.getType(), e);
 			}
 		} else {
-			System.out.println("[NODE" + master.getSerialId() + "]: no reply generated for mes:" + mes);
+			Log.warn("[NODE{}] no reply to send for {}", master.getSerialId(), mes);
 		}
 	}
 
 	private void send(Message reply, int dst) throws IOException {
-		System.out.println("Reply is: " + reply);
-		Socket sock = new Socket("127.0.0.1", dst);
-
-		// Send the message to the server
-		ObjectOutputStream out = new ObjectOutputStream(sock.getOutputStream());
-		out.writeObject(reply);
-		out.flush();
-		sock.close();
+		Log.debug("[NODE{}] sending {}", master.getSerialId(), reply);
+		master.getPool().send(reply, dst);
 	}
 
-	private void checkReplFirst() {
-		String res = null;
-		try {
-			res = master.queryR(SHA1Hash.hash(mes.getData().getKey()));
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		}
+	private void checkReplFirst(ChordId key) {
+		String res = master.isReplicaOf(key) ? master.queryR(key) : null;
 
 		if (res == null) {
 			//not found
-			forward();
+			route(key);
 		} else {
 			//found in replication hash
+			master.getMetrics().hops(mes.getHops());
 			Message reply = new Message();
+			reply.setRequestId(mes.getRequestId());
 			reply.setFrom(master.getPort());
 			reply.setTo(mes.getFrom());
 			reply.setType(MessageType.OK);
 			reply.setData(new Data(mes.getData().getKey(), res));
 			reply.setReplyTo(mes.getReplyTo());
+			reply.setHops(mes.getHops());
 			try {
 				send(reply, reply.getTo());
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.warn("[NODE{}] sending {} failed", master.getSerialId(), reply.getType(), e);
 			}
 		}
 	}
 
-
-	private boolean isResponsible(String key) {
-		if (master.getPrevious().getNodeId().compareTo(master.getNodeId()) > 0) {
-			/* check between last and first node */
-			if ( (key.compareTo(master.getPrevious().getNodeId()) > 0)
-				|| (key.compareTo(master.getNodeId()) <= 0) ) {
-				return true;
-			}
-			else
-				return false;
-		}
-		else {
-			/* check between middle nodes */
-			if ( (key.compareTo(master.getPrevious().getNodeId()) > 0)
-					&& (key.compareTo(master.getNodeId()) <= 0) ) {
-					return true;
-			}
-			else
-				return false;
-		}
-	}
-	
-	private boolean isSpecialQuery() {
-		if (mes == null || mes.getData() == null) {
-			return false;
-		} else {
-			return mes.getData().getKey().equals("*");
-			//return (mes.getData().getKey().equals("*")) && (mes.getType().equals(MessageType.QUERY));
+	/**
+	 * This is called if a handler receives a message with an out of range key. Instead of walking
+	 * the ring one successor at a time, it sends the message to the finger of master that is
+	 * closest to (but before) the key, so a lookup takes O(logN) hops. Nodes that cannot be reached
+	 * are routed around.
+	 */
+	private void route(ChordId key) {
+		mes.setFrom(master.getPort());
+		mes.setHops(mes.getHops() + 1);
+		master.getMetrics().forwarded();
+		try {
+			master.sendTowards(key, mes);
+		} catch (IOException e) {
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), mes.getType(), e);
 		}
 	}
 
 	/**
-	 * This is called if a handler receives a message with an out of range key. It changes "from" to
-	 * show to its listening port, changes "to" to show to its next's node port and sends message to
-	 * next node's port.
+	 * This is called to pass a message to the next node of the chain (eg. replication). It changes
+	 * "from" to show to its listening port, changes "to" to show to its next's node port and sends
+	 * message to next node's port.
 	 */
 	private void forward() {
 		//System.out.println("NODE" + master.getSerialId() + " not responsible. Forwarding...");
 		//mes.setFrom(master.getPort());
-		mes.setTo(master.getNext().getPort());
 		mes.setFrom(master.getPort());
 		try {
-			send(mes, mes.getTo());
+			master.sendToNext(mes);
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), mes.getType(), e);
 		}
 	}
 }
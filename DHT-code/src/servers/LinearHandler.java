@@ -1,16 +1,16 @@
 package servers;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-import java.security.NoSuchAlgorithmException;
 
 import structures.Data;
 import structures.Message;
+import structures.MessageJoin;
 import structures.MessageType;
+import tools.ChordId;
+import tools.Log;
 import tools.SHA1Hash;
 
-public class LinearHandler extends Thread {
+public class LinearHandler implements Runnable {
 
 	private Node master;
 	private Message mes;
@@ -21,16 +21,32 @@ public class LinearHandler extends Thread {
 	}
 
 	/**
-	 * This is called whenever the handler thread starts. It checks various parameters (eg. type,
+	 * This is called whenever a worker of the listener picks up the handler. It checks various parameters (eg. type,
 	 * range of key) and decides what actions should be taken.
 	 */
 	@Override
 	public void run() {
 
 		//System.out.println("Linear Handler of node" + master.getSerialId() + " started.");
-		//check '*'
-		if (isSpecialQuery()) {
-			handleAllQuery();
+		//a page of a scan of the ring.
+		if (mes.getType().equals(MessageType.SCAN)) {
+			handleScan();
+			return;
+		}
+
+		//merkle sync of replicas.
+		if (mes.getType().equals(MessageType.SYNC)) {
+			master.getAntiEntropy().sync(mes);
+			return;
+		}
+		if (mes.getType().equals(MessageType.REPAIR)) {
+			master.getAntiEntropy().repaired(mes);
+			return;
+		}
+
+		//results of a batch this node coordinates.
+		if (master.getMultiOps().isResult(mes)) {
+			master.getMultiOps().result(mes);
 			return;
 		}
 
@@ -40,62 +56,60 @@ public class LinearHandler extends Thread {
 			handleOkFail();
 			return;
 		}
+
+		//batches of keys.
+		if (mes.getType().equals(MessageType.MULTIPUT) || mes.getType().equals(MessageType.MULTIGET)
+				|| mes.getType().equals(MessageType.MULTIDELETE)) {
+			master.getMultiOps().handle(mes);
+			return;
+		}
 		
 		
+		//a batch we streamed has been stored.
+		if (mes.getType().equals(MessageType.ACK)) {
+			master.getTransfers().acked(mes.getRequestId());
+			return;
+		}
+
+		//handle bulk transfers of a key range (join/depart).
+		if (mes.getType().equals(MessageType.TRANSFER)
+				|| mes.getType().equals(MessageType.TRANSFERR)) {
+			handleTransfer();
+			return;
+		}
+
 		//handle queryR
 		if(mes.getType().equals(MessageType.QUERYR)){
-			try {
-				handleQueryR();
-			} catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-			}
+			handleQueryR();
 			return;
 		}
 		
 		//handle insertR/DeleteR
 		if ( (mes.getType().equals(MessageType.INSERTR)) 
 			|| (mes.getType().equals(MessageType.DELETER)) ) {
-			try {
-				handleInsertDeleteR();
-			} catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-			}
+			handleInsertDeleteR();
 			return;
 		}
 		
-		//handle unlock messages
-		if (mes.getType().equals(MessageType.UNLOCK)) {
-			//System.out.println("Node" + master.getSerialId() + " is unlocking");
-			releaseLock();
-			mes.setReplFactor(mes.getReplFactor() - 1);
-			if (mes.getReplFactor() >= 1) {
-				forward();
-			}
+		//the tail has applied a write of our chain
+		if (mes.getType().equals(MessageType.COMMIT)) {
+			handleCommit();
 			return;
 		}
 
-		//get key from message
-		String key = null;
-		if (mes.isHashed()) {
-			key = mes.getData().getKey();
-		} else {
-			try {
-				key = SHA1Hash.hash(mes.getData().getKey());
-			} catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-			}
+		//get key from message. Only the first node hashes it, the rest reuse the hash.
+		if (!mes.isHashed()) {
+			mes.setKeyId(SHA1Hash.hash(mes.getData().getKey()));
 		}
+		ChordId key = mes.getKeyId();
 
 		//if this node is responsible call corresponding method,
 		//else forward to next node.
-		if (isResponsible(key)) {
+		if (master.isResponsible(key)) {
+			master.getMetrics().hops(mes.getHops());
 			switch (mes.getType()) {
 			case DELETE: {
-				try {
-					handleDelete();
-				} catch (NoSuchAlgorithmException e) {
-					e.printStackTrace();
-				}
+				handleDelete();
 				break;
 			}
 			case DEPART: {
@@ -115,400 +129,325 @@ public class LinearHandler extends Thread {
 				break;
 			}
 			default: {
-				System.out.println("Unknown message type received, at node" + master.getSerialId());
+				Log.warn("[NODE{}] unknown message type {}", master.getSerialId(), mes.getType());
 				break;
 			}
 			}
 		} else {
-				forward();
+			if (mes.getType().equals(MessageType.QUERY)) {
+				checkReplFirst(key);
+			} else {
+				route(key);
+			}
 		}
 	}
 
 	/**
-	 * This is called if a replication message is found. It justs calls the corresponding
-	 * replication method of master. Key must be already hashed!!!!!
-	 * @throws NoSuchAlgorithmException 
+	 * This is called if a replication message is found. It applies the write to the replicas of
+	 * master, unless master has already applied a newer version of the key.
 	 */
-	private boolean handleRepls() throws NoSuchAlgorithmException {
+	private boolean handleRepls() {
 		//System.out.println("REPLICATION MESSAGE: " + mes);
 		boolean res = false;
 		if (mes.getType().equals(MessageType.INSERTR)) {
-			res = master.insertR(mes.getData().getKey(), mes.getData().getVal());
+			res = master.writeR(mes.getKeyId(), mes.getData().getVal(), mes.getVersion());
 		} else if (mes.getType().equals(MessageType.DELETER)) {
-			res = master.deleteR(mes.getData().getKey());
+			res = master.writeR(mes.getKeyId(), null, mes.getVersion());
 		}
 
 		//System.out.println("Changed repl hast of master.");
 		return res;
 	}
 	
-	private void handleQueryR() throws NoSuchAlgorithmException{
-		
-		getLock();
-		
-		if (mes.getReplFactor() > 1){
-			//should forward
-			mes.setInitialPort(mes.getInitialPort());
-			mes.setFrom(master.getPort());
-			mes.setTo(master.getNext().getPort());
-			mes.setReplFactor(mes.getReplFactor() - 1);
-			try {
-				send(mes, mes.getTo());
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+	/**
+	 * This is called if a batch of a key range is handed over to master. The whole batch is
+	 * stored at once and acknowledged to its sender, a TRANSFERR is then passed on along the
+	 * replica chain while its ttl lasts. The versions of the keys come along, so writes of them
+	 * keep their order across the handover.
+	 */
+	private void handleTransfer() {
+		if (mes.getType().equals(MessageType.TRANSFER)) {
+			master.insertAll(mes.getEntries(), mes.getEntryVersions());
+		} else {
+			master.insertAllR(mes.getEntries(), mes.getEntryVersions());
 		}
-		else{
-			//query to be completed.
-			String res = master.queryR(SHA1Hash.hash(mes.getData().getKey()));
-			Message reply = new Message();
-			reply.setInitialPort(mes.getInitialPort());
-			reply.setFrom(mes.getFrom());
-			reply.setTo(mes.getInitialPort());
-			reply.setReplyTo(mes.getReplyTo());
-			reply.setData(new Data(mes.getData().getKey(), res));
-			if (res == null || res.equals("")){
-				reply.setType(MessageType.FAIL);
-			}
-			else{
-				reply.setType(MessageType.OK);
-			}
-			
-			//send reply
-			try {
-				send(reply, reply.getTo());
-			} catch (IOException e) {
-				e.printStackTrace();
+
+		Message ack = new Message();
+		ack.setRequestId(mes.getRequestId());
+		ack.setFrom(master.getPort());
+		ack.setTo(mes.getFrom());
+		ack.setReplyTo(-1);
+		ack.setType(MessageType.ACK);
+		try {
+			master.getPool().send(ack, ack.getTo());
+		} catch (IOException e) {
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), ack.getType(), e);
+		}
+
+		if (mes.getType().equals(MessageType.TRANSFERR)) {
+			mes.setReplFactor(mes.getReplFactor() - 1);
+			if (mes.getReplFactor() >= 1) {
+				forward();
 			}
-			
 		}
-		
-		//unlock
-		releaseLock();
-		
 	}
 
 	/**
-	 * This is called if a message is of type INSERT and master node is responsible for this key.
-	 * Calls master's insert method, and sends OK/FAILED back.
+	 * A read on its way to the tail. A replica on the way that has the key clean answers it
+	 * itself, otherwise the tail answers.
 	 */
-	private void handleInsert() {
-		boolean res = false;
-		
-		//System.out.println("Insert message found. " + mes);
-		//System.out.println("Insert until last in chain!");
-		
-		//Lock master
-		getLock();
-		
-		
-		//do operation
-		if (mes.isHashed()) {
-			res = master.insert(mes.getData().getKey(), mes.getData().getVal());
-		} else {
-			res = master.insert(mes.getData().getKey(), mes.getData().getVal());
-		}
-
+	private void handleQueryR(){
 		
-		if (mes.getReplyTo() != -1) {
-			//always is 
-			if ( (mes.getReplFactor() > 1) ) {
-				//replicate in the next k-1 nodes
-				//System.out.println(" I should repl.");
-				//needs to check the value of replFact!!!!!!!!!!!!!!!!!!! ---> DONE
-				mes.setResponsiblePort(master.getPort());
+		Data clean = null;
+		if (mes.getReplFactor() > 1){
+			clean = master.readCleanR(mes.getKeyId());
+			if (clean == null) {
+				//dirty here, should forward
+				mes.setFrom(master.getPort());
 				mes.setReplFactor(mes.getReplFactor() - 1);
-				mes.setType(MessageType.INSERTR);
-				forward();
-				
-			}
-			else {
-				// insert only in this node, so send reply
-				//System.err.println("Node " + master.getSerialId() + "  is about to send ok");
-				Message reply = new Message();
-				reply.setInitialPort(mes.getInitialPort());
-				reply.setFrom(master.getPort());
-				reply.setData(mes.getData());
-				reply.setTo(mes.getInitialPort());
-				reply.setReplyTo(mes.getReplyTo());
-				if (res) {
-					reply.setType(MessageType.OK);
-				} else {
-					reply.setType(MessageType.FAIL);
-				}
-
 				try {
-					send(reply, reply.getTo());
+					master.sendToNext(mes);
 				} catch (IOException e) {
-					e.printStackTrace();
+					Log.warn("[NODE{}] sending {} failed", master.getSerialId(), mes.getType(), e);
 				}
-				
-				//unlock only when I reply OK/FAIL
-				releaseLock();
+				return;
 			}
-		}	
-		
-		
-		
+		}
 
+		//query to be completed, the tail always has the last committed write.
+		String res = (clean != null) ? clean.getVal() : master.queryR(mes.getKeyId());
+		replyQuery(res);
+	}
+
+	/**
+	 * This is called if a message is of type INSERT and master node is responsible for this key.
+	 * Master is the head of the chain: it applies the write under a new version and streams it
+	 * down the chain without waiting. The tail replies to the client.
+	 */
+	private void handleInsert() {
+		//System.out.println("Insert message found. " + mes);
+		long version = master.write(mes.getKeyId(), mes.getData().getVal());
+		replicate(MessageType.INSERTR, version, true);
 	}
 	
 
 	/**
 	 * This is called if a message is of type DELETE and master node is responsible for this key.
-	 * Calls master's delete method, and sends OK/FAILED back.
-	 * @throws NoSuchAlgorithmException 
+	 * Same as handleInsert, the delete travels down the chain as a DELETER.
 	 */
-	private void handleDelete() throws NoSuchAlgorithmException {
+	private void handleDelete() {
 		//System.out.println("Delete message found.");
-		boolean res = false;
-		//do operation
-		if (mes.isHashed()) {
-			res = master.delete(mes.getData().getKey());
+		boolean res = master.query(mes.getKeyId()) != null;
+		long version = master.write(mes.getKeyId(), null);
+		replicate(MessageType.DELETER, version, res);
+	}
+
+	/**
+	 * Sends a write master has applied as head to the next node of the chain. If there is no
+	 * chain master is also the tail and replies with res.
+	 */
+	private void replicate(MessageType type, long version, boolean res) {
+		if (mes.getReplyTo() == -1) {
+			return;
+		}
+		if (mes.getReplFactor() > 1) {
+			//replicate in the next k-1 nodes
+			mes.setResponsiblePort(master.getPort());
+			mes.setReplFactor(mes.getReplFactor() - 1);
+			mes.setVersion(version);
+			mes.setType(type);
+			forward();
 		} else {
-			try {
-				res = master.delete(mes.getData().getKey());
-			} catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-			}
+			// write only in this node, so send reply
+			reply(res);
+			master.commit(mes.getKeyId(), version);
 		}
+	}
 
-		if (mes.getReplyTo() != -1) {
-			//always is 
-			if ( (mes.getReplFactor() > 1) ) {
-				//replicate in the next k-1 nodes
-				//System.out.println(" I should repl.");
-				//needs to check the value of replFact!!!!!!!!!!!!!!!!!!! ---> DONE
-				mes.setResponsiblePort(master.getPort());
-				mes.setReplFactor(mes.getReplFactor() - 1);
-				mes.setType(MessageType.DELETER);
-				forward();
-				
-			}
-			else {
-				// insert only in this node, so send reply
-				//System.err.println("Node " + master.getSerialId() + "  is about to send ok");
-				Message reply = new Message();
-				reply.setInitialPort(mes.getInitialPort());
-				reply.setFrom(master.getPort());
-				reply.setData(mes.getData());
-				reply.setTo(mes.getInitialPort());
-				reply.setReplyTo(mes.getReplyTo());
-				if (res) {
-					reply.setType(MessageType.OK);
-				} else {
-					reply.setType(MessageType.FAIL);
-				}
-
-				try {
-					send(reply, reply.getTo());
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-				
-				//unlock only when I reply OK/FAIL
-				releaseLock();
+	/**
+	 * The write of mes has reached the tail: its version is clean here. The COMMIT goes on to
+	 * the previous node until the head of the chain (responsiblePort) has it.
+	 */
+	private void handleCommit() {
+		master.commit(mes.getKeyId(), mes.getVersion());
+		if (master.getPort() != mes.getResponsiblePort()) {
+			mes.setFrom(master.getPort());
+			try {
+				master.sendToPrevious(mes);
+			} catch (IOException e) {
+				Log.warn("[NODE{}] sending {} failed", master.getSerialId(), mes.getType(), e);
 			}
-		}	
-		
+		}
 	}
 
-	private void handleInsertDeleteR() throws NoSuchAlgorithmException{
-		
-		getLock();
-		
-		// insert in my replication hashtable
+	/**
+	 * A write going down the chain. The tail replies to the client and starts the COMMIT back
+	 * to the head.
+	 */
+	private void handleInsertDeleteR() {
+		// apply to my replication hashtable
 		boolean res = handleRepls();
-		
+
 		if (mes.getReplFactor() > 1){
 			//should forward
-			mes.setInitialPort(mes.getInitialPort());
 			mes.setReplFactor(mes.getReplFactor() - 1);
 			forward();
 		}
 		else{
-			// 1) send reply(ok/fail) to initial port
+			reply(res);
+			mes.setType(MessageType.COMMIT);
+			mes.setReplyTo(-1);
+			handleCommit();
+		}
+	}
+
+	/**
+	 * Sends OK (res is true) or FAIL for mes to the client.
+	 */
+	private void reply(boolean res) {
+		Message reply = new Message();
+		reply.setRequestId(mes.getRequestId());
+		reply.setInitialPort(mes.getInitialPort());
+		reply.setFrom(master.getPort());
+		reply.setData(mes.getData());
+		reply.setKeyId(mes.getKeyId());
+		reply.setTo(mes.getInitialPort());
+		reply.setReplyTo(mes.getReplyTo());
+		reply.setHops(mes.getHops());
+		if (res) {
+			reply.setType(MessageType.OK);
+		} else {
+			reply.setType(MessageType.FAIL);
+		}
+
+		try {
+			send(reply, reply.getTo());
+		} catch (IOException e) {
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), reply.getType(), e);
+		}
+	}
+
+	/**
+	 * This is called if a message is of type QUERY and master node is responsible for this key.
+	 * If the key is clean master answers, else the read goes down the chain as a QUERYR.
+	 */
+	private void handleSimpleQuery() {
+		//System.out.println("Query message found. " + mes);
+		Data clean = master.readClean(mes.getKeyId());
+
+		if (clean == null && mes.getReplFactor() > 1) {
+			// a write is still in the chain, ask the tail
 			Message reply = new Message();
+			reply.setRequestId(mes.getRequestId());
 			reply.setInitialPort(mes.getInitialPort());
 			reply.setFrom(master.getPort());
-			reply.setTo(mes.getInitialPort());
 			reply.setReplyTo(mes.getReplyTo());
+			reply.setHops(mes.getHops());
+			reply.setReplFactor(mes.getReplFactor() - 1);
 			reply.setData(mes.getData());
-			if (res == false){
-				reply.setType(MessageType.FAIL);
-			}
-			else{
-				reply.setType(MessageType.OK);
-			}
-			
-			//send reply
-			try {
-				send(reply, reply.getTo());
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			
-			// 2) send unlock message to responsibleNode
-			Message reply2 = new Message();
-			reply2.setInitialPort(mes.getInitialPort());
-			reply2.setFrom(master.getPort());
-			reply2.setTo(mes.getResponsiblePort());
-			reply2.setReplyTo(mes.getReplyTo());
-			reply2.setReplFactor(master.getReplFactor());
-			reply2.setType(MessageType.UNLOCK);
-			
-			//send unlock message
+			reply.setKeyId(mes.getKeyId());
+			reply.setType(MessageType.QUERYR);
+
 			try {
-				send(reply2, reply2.getTo());
+				master.sendToNext(reply);
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.warn("[NODE{}] sending {} failed", master.getSerialId(), reply.getType(), e);
 			}
-			
+		} else {
+			String res = (clean != null) ? clean.getVal() : master.query(mes.getKeyId());
+			replyQuery(res);
 		}
-		
 	}
-	
+
 	/**
-	 * This is called if a message is of type QUERY and master node is responsible for this key.
-	 * Calls master's query method, and sends OK/FAILED and response back.
+	 * A node that is not responsible for key answers a read if it is in the chain of key and has
+	 * a clean replica of it, so reads are spread over the whole chain.
 	 */
-	private void handleSimpleQuery() {
-		//System.out.println("Query message found. " + mes);
-		//System.out.println("Asking last in chain!");
-		String res = null;
-		
-		//Lock master
-		getLock();
-
-		if (mes.getReplyTo() != -1) {
-			//always is.
-			if ( mes.getReplFactor() > 1) {
-				// node with last replication is responsible to answer, so send QueryR
-				Message reply = new Message();
-				reply.setInitialPort(mes.getInitialPort());
-				reply.setFrom(master.getPort());
-				reply.setTo(master.getNext().getPort());
-				reply.setReplyTo(mes.getReplyTo());
-				//needs to check the value of replFact!!!!!!!!!!!!!!!!!!! ---> DONE
-				reply.setReplFactor(mes.getReplFactor() - 1);
-				reply.setData(mes.getData());
-				reply.setType(MessageType.QUERYR);
-	
-				try {
-					send(reply, reply.getTo());
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-			else {
-				// only this node has replica, so send reply
-				
-				//do operation
-				if (mes.isHashed()) {
-					//never used.
-					res = master.query(mes.getData().getKey());
-				} else {
-					try {
-						res = master.query(SHA1Hash.hash(mes.getData().getKey()));
-					} catch (NoSuchAlgorithmException e) {
-						e.printStackTrace();
-					}
-				}
-				
-				Message reply = new Message();
-				reply.setInitialPort(mes.getInitialPort());
-				reply.setFrom(master.getPort());
-				reply.setTo(mes.getInitialPort());
-				reply.setReplyTo(mes.getReplyTo());
-				reply.setData(new Data(mes.getData().getKey(), res));
-				if (res == null || res.isEmpty()) {
-					reply.setType(MessageType.FAIL);
-				} else {
-					reply.setType(MessageType.OK);
-				}
-
-				try {
-					send(reply, reply.getTo());
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+	private void checkReplFirst(ChordId key) {
+		Data clean = master.isReplicaOf(key) ? master.readCleanR(key) : null;
+		if (clean == null) {
+			route(key);
+		} else {
+			master.getMetrics().hops(mes.getHops());
+			replyQuery(clean.getVal());
 		}
-		
-		//unlock
-		releaseLock();
 	}
 
 	/**
-	 * This is called if a message is of type QUERY *. Checks if should append and forward, or if
-	 * should return to user. If from!=master.port then first arrival => process and forward, else
-	 * message get through all nodes send reply back to user.
+	 * Sends the result of a read back through the node the client asked.
 	 */
-	private void handleAllQuery() {
-		Message reply = null;
-		int dst = -1;
-		if (mes.getFrom() != master.getPort()) {
-			String res = master.specialQuery();
-			Data temp = mes.getData();
-			temp.setVal(temp.getVal() + " " + res);
-			reply = new Message();
-			if (mes.getFrom() == mes.getReplyTo()) {
-				reply.setFrom(master.getPort());
-			} else {
-				reply.setFrom(mes.getFrom());
-			}
-			reply.setInitialPort(mes.getInitialPort());
-			reply.setData(temp);
-			reply.setReplyTo(mes.getReplyTo());
-			reply.setTo(master.getNext().getPort());
-			reply.setType(MessageType.QUERY);
-
-			dst = reply.getTo();
+	private void replyQuery(String res) {
+		Message reply = new Message();
+		reply.setRequestId(mes.getRequestId());
+		reply.setInitialPort(mes.getInitialPort());
+		reply.setFrom(master.getPort());
+		reply.setTo(mes.getInitialPort());
+		reply.setReplyTo(mes.getReplyTo());
+		reply.setHops(mes.getHops());
+		reply.setKeyId(mes.getKeyId());
+		reply.setData(new Data(mes.getData().getKey(), res));
+		if (res == null || res.isEmpty()) {
+			reply.setType(MessageType.FAIL);
 		} else {
-			if (master.getPort() == mes.getInitialPort() ) {
-				//full circle, send back to user.
-				reply = mes;
-				dst = mes.getReplyTo();
-			}
+			reply.setType(MessageType.OK);
 		}
 
 		try {
-			send(reply, dst);
+			send(reply, reply.getTo());
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), reply.getType(), e);
 		}
-
 	}
 
+	/**
+	 * This is called if a message is of type SCAN. Replies with the next page of master's keys
+	 * in the range of the message, filtered by the prefix in the key of data if any.
+	 */
+	private void handleScan() {
+		String prefix = (mes.getData() != null) ? mes.getData().getKey() : null;
+		Message reply = new Message();
+		reply.setRequestId(mes.getRequestId());
+		reply.setInitialPort(mes.getInitialPort());
+		reply.setFrom(master.getPort());
+		reply.setTo(mes.getReplyTo());
+		reply.setReplyTo(mes.getReplyTo());
+		reply.setHops(mes.getHops());
+		reply.setType(MessageType.OK);
+		reply.setEntries(master.scan(mes.getRangeStart(), mes.getKeyId(), prefix, mes.getLimit()));
+		try {
+			send(reply, reply.getTo());
+		} catch (IOException e) {
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), reply.getType(), e);
+		}
+	}
 	/**
 	 * The node will be created here, and the chord emulator will then take a copy from the chord
-	 * with
+	 * with. The join message only carries the id, address and port of the new node, which then
+	 * receives from master the keys of its range.
 	 */
 	private void handleJoin() {
 		//System.out.println("Join message found.");
 
 		Message reply = new Message();
+		reply.setRequestId(mes.getRequestId());
 		boolean res = false;
 		Node newNode = null;
-		String id = null;
 
-		try {
-			id = SHA1Hash.hash(mes.getData().getKey());
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		}
+		MessageJoin join = (MessageJoin) mes;
+		ChordId id = join.getNodeId();
 
 		reply.setInitialPort(mes.getInitialPort());
 		reply.setFrom(master.getPort());
 		reply.setData(mes.getData());
 		reply.setReplyTo(mes.getReplyTo());
+		reply.setHops(mes.getHops());
 		reply.setTo(mes.getInitialPort());
 
 		if (id.compareTo(master.getNodeId()) != 0) {
 			try {
-				newNode = new Node(Integer.parseInt(mes.getData().getKey()), master.isLinear(), master.getReplFactor());
+				newNode = new Node(join.getJoinId(), master.isLinear(), master.getReplFactor());
 			} catch (Exception e) {
-				e.printStackTrace();
+				Log.error("[NODE{}] creating node {} failed", master.getSerialId(), join.getJoinId(), e);
 			}
 			
 			res = master.joinNode(newNode);
@@ -516,7 +455,7 @@ public class LinearHandler extends Thread {
 				reply.setType(MessageType.OK);
 				reply.setTo(mes.getReplyTo());
 				
-				//send repls. Method is not correct!!!!!
+				//send repls.
 				if (mes.getReplFactor() > 1) {
 					boolean res2 = master.joinR(mes.getReplFactor(), newNode);
 					res = res && res2;
@@ -525,7 +464,8 @@ public class LinearHandler extends Thread {
 				reply.setType(MessageType.FAIL);
 			}
 		} else {
-			System.out.println("Node already exists. Request failed.");
+			Log.info("[NODE{}] node {} already exists", master.getSerialId(), join.getJoinId());
+			reply.setType(MessageType.FAIL);
 		}
 
 		
@@ -534,34 +474,27 @@ public class LinearHandler extends Thread {
 				//System.out.println("[HANDLER]: reply created" + reply);
 				send(reply, reply.getTo());
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.warn("[NODE{}] sending {} failed", master.getSerialId(), reply.getType(), e);
 			}
 		}
 	}
 
 	private void handleDepart() {
 		//System.out.println("Depart message found.");
-		String id = null;
+		ChordId id = mes.getKeyId();
 		boolean res = false;
-		if (mes.isHashed()) {
-			id = mes.getData().getKey();
-		} else {
-			try {
-				id = SHA1Hash.hash(mes.getData().getKey());
-			} catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-			}
-		}
 
 		Message reply = new Message();
+		reply.setRequestId(mes.getRequestId());
 		reply.setInitialPort(mes.getInitialPort());
 		reply.setData(mes.getData());
 		reply.setFrom(master.getPort());
 		reply.setTo(mes.getInitialPort());
 		reply.setReplyTo(mes.getReplyTo());
+		reply.setHops(mes.getHops());
 
 		if (!id.equals(master.getNodeId())) {
-			System.out.println("The requested node doesn't exist.");
+			Log.info("[NODE{}] departing node {} does not exist", master.getSerialId(), mes.getData().getKey());
 			res = false;
 		} else {
 			res = master.depart();
@@ -569,6 +502,7 @@ public class LinearHandler extends Thread {
 				boolean res2 = master.departR(mes.getReplFactor());
 				res = res && res2;
 			}
+			master.terminate();
 		}
 
 		if (res) {
@@ -582,7 +516,7 @@ public class LinearHandler extends Thread {
 				send(reply, reply.getTo());
 			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), reply.getType(), e);
 		}
 	}
 
@@ -599,7 +533,7 @@ public class LinearHandler extends Thread {
 			try {
 				send(mes, mes.getReplyTo());
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.warn("[NODE{}] sending {} failed", master.getSerialId(), mes.getType(), e);
 			}
 		} else {
 			//System.out.println("[NODE" + master.getSerialId() + "]: no reply generated for mes:" + mes);
@@ -607,80 +541,40 @@ public class LinearHandler extends Thread {
 	}
 	
 	private void send(Message reply, int dst) throws IOException {
-		System.out.println("Reply is: " + reply);
-		Socket sock = new Socket("127.0.0.1", dst);
-
-		// Send the message to the server
-		ObjectOutputStream out = new ObjectOutputStream(sock.getOutputStream());
-		out.writeObject(reply);
-		out.flush();
-		sock.close();
+		Log.debug("[NODE{}] sending {}", master.getSerialId(), reply);
+		master.getPool().send(reply, dst);
 	}
 
-
-	private boolean isResponsible(String key) {
-		if (master.getPrevious().getNodeId().compareTo(master.getNodeId()) > 0) {
-			/* check between last and first node */
-			if ( (key.compareTo(master.getPrevious().getNodeId()) > 0)
-				|| (key.compareTo(master.getNodeId()) <= 0) ) {
-				return true;
-			}
-			else
-				return false;
-		}
-		else {
-			/* check between middle nodes */
-			if ( (key.compareTo(master.getPrevious().getNodeId()) > 0)
-					&& (key.compareTo(master.getNodeId()) <= 0) ) {
-					return true;
-			}
-			else
-				return false;
-		}
-	}
-	
-	private boolean isSpecialQuery() {
-		if (mes == null || mes.getData() == null) {
-			return false;
-		} else {
-			return mes.getData().getKey().equals("*");
-			//return (mes.getData().getKey().equals("*")) && (mes.getType().equals(MessageType.QUERY));
+	/**
+	 * This is called if a handler receives a message with an out of range key. Instead of walking
+	 * the ring one successor at a time, it sends the message to the finger of master that is
+	 * closest to (but before) the key, so a lookup takes O(logN) hops. Nodes that cannot be reached
+	 * are routed around.
+	 */
+	private void route(ChordId key) {
+		mes.setFrom(master.getPort());
+		mes.setHops(mes.getHops() + 1);
+		master.getMetrics().forwarded();
+		try {
+			master.sendTowards(key, mes);
+		} catch (IOException e) {
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), mes.getType(), e);
 		}
 	}
 
 	/**
-	 * This is called if a handler receives a message with an out of range key. It changes "from" to
-	 * show to its listening port, changes "to" to show to its next's node port and sends message to
-	 * next node's port.
+	 * This is called to pass a message to the next node of the chain (eg. replication). It changes
+	 * "from" to show to its listening port, changes "to" to show to its next's node port and sends
+	 * message to next node's port.
 	 */
 	private void forward() {
 		//System.out.println("NODE" + master.getSerialId() + " not responsible. Forwarding...");
 		//mes.setFrom(master.getPort());
-		mes.setTo(master.getNext().getPort());
 		mes.setFrom(master.getPort());
 		try {
-			send(mes, mes.getTo());
+			master.sendToNext(mes);
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), mes.getType(), e);
 		}
 	}
-	
-	
-	private void getLock(){
-		//System.out.println("[HANDLER"+master.getSerialId()+"] trying to acquire lock.");
-		boolean res = false;
-		while(!res){
-			res = master.getLock();
-			if(!res){
-				System.out.println("Fail to acquire lock. Trying again...");
-			}
-		}
-		System.out.println("Lock of node" + master.getSerialId()+" acquired!");
-	}
-	
-	private void releaseLock(){
-		System.out.println("[HANDLER" + master.getSerialId() +"] releasing node of master.");
-		master.releaseLock();
-	}
 }
-
@@ -1,18 +1,48 @@
 package servers;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.Serializable;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import structures.Message;
+import structures.MessageCodec;
+import structures.MessageType;
+import tools.Log;
 
-public class Listener implements Serializable{
+/**
+ * Listener of a node. A single thread (the node's own) waits on a Selector for all incoming
+ * connections, cuts the length-prefixed frames out of them and hands the messages to a bounded
+ * pool of worker threads. When the pool's queue is full, the listener stops reading from the
+ * connections that sent the extra messages until the workers catch up.
+ */
+public class Listener {
 
-	private ServerSocket serverSock;
+	private static int workerThreads = 16;
+	private static int queueCapacity = 1024;
+	private static int bufferSize = 4096; /* initial read buffer per connection */
+	private static long selectTimeout = 500; /* ms, so that terminate() is noticed */
+
+	private ServerSocketChannel serverChannel;
+	private Selector selector;
+	private ThreadPoolExecutor workers;
+	private ArrayDeque<Runnable> backlog; /* handlers rejected by a full queue */
+	private ArrayList<SelectionKey> paused; /* connections not read because of backlog */
 	private int listeningPort;
 	private Node master;
+	private CountDownLatch bound = new CountDownLatch(1); /* released once the port is open */
 	String prefix = "[NODE]:";
 
 	public Listener(int listeningPort, Node master) {
@@ -22,39 +52,217 @@ public class Listener implements Serializable{
 
 	public void listen() {
 		//System.out.println(prefix + "Listener of node" + master.getSerialId() + " started.");
-		serverSock = null;
-		Socket incoming = null;
 		try {
-			serverSock = new ServerSocket(listeningPort);
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(listeningPort));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			bound.countDown();
+
+			workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(queueCapacity));
+			backlog = new ArrayDeque<>();
+			paused = new ArrayList<>();
+
 			while (master.getRunning()) {
-				incoming = serverSock.accept();
-				//System.out.print(prefix + "Incoming connection, at node" + master.getSerialId());
-				//System.out.println(", at port " + master.getPort());
-				ObjectInputStream input = new ObjectInputStream(incoming.getInputStream());
-				Message mes = (Message) input.readObject();
-
-				Thread t;
-				if (master.isLinear()){
-					t = new LinearHandler(master, mes);
-				}
-				else{
-					t = new Handler(master, mes);
-				}
-				t.start();
+				selector.select(backlog.isEmpty() ? selectTimeout : 1);
 
-				incoming.close();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable()) {
+						read(key);
+					}
+				}
+				drainBacklog();
 			}
 			stopListen();
 		} catch (Exception e) {
-			e.printStackTrace();
+			Log.error("[NODE{}] listener failed", master.getSerialId(), e);
+		} finally {
+			bound.countDown();
+		}
+	}
+
+	/**
+	 * Waits until the listening port is open (or could not be), at most timeout ms.
+	 *
+	 * @return true if listen() got that far in time.
+	 */
+	public boolean awaitBound(long timeout) throws InterruptedException {
+		return bound.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	private void accept() throws IOException {
+		SocketChannel incoming = serverChannel.accept();
+		if (incoming == null) {
+			return;
+		}
+		//System.out.print(prefix + "Incoming connection, at node" + master.getSerialId());
+		//System.out.println(", at port " + master.getPort());
+		incoming.configureBlocking(false);
+		incoming.socket().setTcpNoDelay(true);
+		incoming.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(bufferSize));
+	}
+
+	/**
+	 * Reads whatever is available on the connection of key and dispatches every complete frame.
+	 * An incomplete frame stays in the connection's buffer until the rest of it arrives.
+	 */
+	private void read(SelectionKey key) {
+		SocketChannel channel = (SocketChannel) key.channel();
+		ByteBuffer buf = (ByteBuffer) key.attachment();
+		int n;
+		try {
+			n = channel.read(buf);
+		} catch (IOException e) {
+			n = -1;
+		}
+		if (n < 0) {
+			close(key);
+			return;
+		}
+
+		buf.flip();
+		int needed = 0;
+		while (buf.remaining() >= 4) {
+			int length = buf.getInt(buf.position());
+			if (length < 0 || length > Connection.MAX_FRAME) {
+				//no way to find the next frame, drop the connection.
+				Log.warn("[NODE{}] closing a connection that sent a frame of {} bytes", master.getSerialId(), length);
+				close(key);
+				return;
+			}
+			if (buf.remaining() < 4 + length) {
+				needed = 4 + length;
+				break;
+			}
+			//decode straight from the buffer, limited to this frame.
+			int end = buf.position() + 4 + length;
+			int limit = buf.limit();
+			buf.position(buf.position() + 4);
+			buf.limit(end);
+			try {
+				dispatch(MessageCodec.decode(buf), 4 + length, key);
+			} catch (Exception e) {
+				Log.warn("[NODE{}] dropped a frame it could not decode", master.getSerialId(), e);
+			}
+			buf.limit(limit);
+			buf.position(end);
+		}
+		buf.compact();
+
+		if (needed > buf.capacity()) {
+			//frame does not fit, grow the buffer of this connection.
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, 2 * buf.capacity()));
+			buf.flip();
+			bigger.put(buf);
+			key.attach(bigger);
+		}
+	}
+
+	/**
+	 * Creates the handler of mes and gives it to the workers. ACK messages are handled right here,
+	 * they are cheap and workers of the node may be waiting for them. So are REPLICATE batches
+	 * and REPAIRs, which must be applied in the order they were shipped. Heartbeats go to the
+	 * workers too: answering a PING sends, which may block.
+	 */
+	private void dispatch(Message mes, int bytes, SelectionKey key) {
+		NodeMetrics metrics = master.getMetrics();
+		metrics.received(mes.getType(), bytes);
+		Runnable typed;
+		if (mes.getType() == MessageType.PING || mes.getType() == MessageType.PONG) {
+			typed = () -> master.heartbeat(mes);
+		} else {
+			typed = master.isLinear() ? new LinearHandler(master, mes) : new Handler(master, mes);
+		}
+		long queuedAt = System.nanoTime();
+		Runnable handler = () -> {
+			long startedAt = metrics.handlerStarted(queuedAt);
+			try {
+				typed.run();
+			} finally {
+				metrics.handlerDone(startedAt);
+			}
+		};
+
+		if (mes.getType() == MessageType.ACK || mes.getType() == MessageType.REPLICATE
+				|| mes.getType() == MessageType.REPAIR) {
+			handler.run();
+			return;
+		}
+
+		if (!backlog.isEmpty() || !submit(handler)) {
+			backlog.add(handler);
+			if (key.interestOps() != 0) {
+				key.interestOps(0);
+				paused.add(key);
+			}
+		}
+	}
+
+	private boolean submit(Runnable handler) {
+		try {
+			workers.execute(handler);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return handlers waiting for a worker, roughly: it is read without stopping the listener.
+	 */
+	public int getQueueDepth() {
+		ThreadPoolExecutor pool = workers;
+		ArrayDeque<Runnable> waiting = backlog;
+		return ((pool == null) ? 0 : pool.getQueue().size()) + ((waiting == null) ? 0 : waiting.size());
+	}
+
+	/**
+	 * Moves waiting handlers to the workers and, once none is left, reads again from the paused
+	 * connections.
+	 */
+	private void drainBacklog() {
+		while (!backlog.isEmpty() && submit(backlog.peek())) {
+			backlog.poll();
+		}
+		if (backlog.isEmpty() && !paused.isEmpty()) {
+			for (SelectionKey key : paused) {
+				if (key.isValid()) {
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			}
+			paused.clear();
+		}
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			Log.debug("[NODE{}] closing a connection failed", master.getSerialId(), e);
 		}
 	}
 
 	public void stopListen() throws IOException  {
-		this.serverSock.close();	
+		for (SelectionKey key : selector.keys()) {
+			key.channel().close();
+		}
+		selector.close();
+		workers.shutdown();
+		master.getPool().closeAll();
 		//System.out.println("[NODE" + master.getSerialId() + "] listener ending.");
 	}
-	
+
 	public int getListeningPort() {
 		return listeningPort;
 	}
@@ -72,12 +280,7 @@ public class Listener implements Serializable{
 	}
 
 	public ServerSocket getServerSock() {
-		return serverSock;
+		return serverChannel.socket();
 	}
 
-	public void setServerSock(ServerSocket serverSock) {
-		this.serverSock = serverSock;
-	}
-	
-	
 }
@@ -0,0 +1,317 @@
+package servers;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import structures.Data;
+import structures.Message;
+import structures.MessageType;
+import tools.ChordId;
+import tools.Log;
+
+/**
+ * Batched operations on many keys (MULTIPUT, MULTIGET, MULTIDELETE). The node a client sends a
+ * batch to coordinates it: it applies the keys it is responsible for and splits the rest by the
+ * next hop of each key, so every finger gets one sub-batch instead of one message per key. A
+ * hop does the same with its sub-batch. The node that applies a part of the batch sends the
+ * results of that part back to the coordinator in one MULTIR, and the coordinator answers the
+ * client once the results of every key are in.
+ *
+ * A sub-batch goes to the next hop of its first key, and on to the next best hop if that one
+ * cannot be reached. The keys of a sub-batch that cannot be sent at all go back to the
+ * coordinator in a FAIL, and the client gets a FAIL with the results of the keys that got
+ * through.
+ *
+ * In linear mode versions are given per key, so the head of a part still sends every key of it
+ * down the chain on its own. The tail answers the coordinator per key.
+ */
+public class MultiOps {
+
+	private static long timeout = 30000; /* ms after which an unanswered batch is dropped */
+
+	private static AtomicLong nextBatchId = new AtomicLong();
+
+	private Node master;
+	private ConcurrentHashMap<Long, Batch> pending; /* batch id -> batch this node coordinates */
+
+	/**
+	 * A batch waiting for the results of its keys.
+	 */
+	private static class Batch {
+		Message request;
+		int expected;
+		Map<ChordId, String> results = new HashMap<>();
+		boolean failed; /* some keys could not be sent on */
+		long started = System.currentTimeMillis();
+	}
+
+	public MultiOps(Node master) {
+		this.master = master;
+		pending = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Handles a batch of a client (responsiblePort not set) or a sub-batch of a coordinator.
+	 */
+	public void handle(Message mes) {
+		if (mes.getResponsiblePort() == 0) {
+			long stale = System.currentTimeMillis() - timeout;
+			pending.values().removeIf(batch -> batch.started < stale);
+
+			Batch batch = new Batch();
+			batch.request = mes;
+			batch.expected = mes.getEntries().size();
+			long batchId = nextBatchId.incrementAndGet();
+			if (batch.expected == 0) {
+				reply(batch);
+				return;
+			}
+			pending.put(batchId, batch);
+
+			Message sub = new Message();
+			sub.setRequestId(batchId);
+			sub.setType(mes.getType());
+			sub.setReplFactor(mes.getReplFactor());
+			sub.setResponsiblePort(master.getPort());
+			sub.setEntries(mes.getEntries());
+			mes = sub;
+		}
+
+		Map<ChordId, String> local = new LinkedHashMap<>();
+		Map<ChordId, String> replicas = new LinkedHashMap<>();
+		Map<Node, Map<ChordId, String>> hops = new LinkedHashMap<>();
+		for (Map.Entry<ChordId, String> e : mes.getEntries().entrySet()) {
+			ChordId key = e.getKey();
+			if (master.isResponsible(key)) {
+				local.put(key, e.getValue());
+				continue;
+			}
+			//as a plain query, an eventual replica may answer a read itself.
+			if (mes.getType() == MessageType.MULTIGET && !master.isLinear() && master.isReplicaOf(key)) {
+				String val = master.queryR(key);
+				if (val != null) {
+					replicas.put(key, val);
+					continue;
+				}
+			}
+			Node hop = master.nextHop(key);
+			Map<ChordId, String> part = hops.get(hop);
+			if (part == null) {
+				part = new LinkedHashMap<>();
+				hops.put(hop, part);
+			}
+			part.put(key, e.getValue());
+		}
+
+		for (Map.Entry<Node, Map<ChordId, String>> hop : hops.entrySet()) {
+			Map<ChordId, String> keys = hop.getValue();
+			Message sub = part(mes, mes.getType(), keys, hop.getKey().getPort());
+			try {
+				master.sendTowards(keys.keySet().iterator().next(), sub);
+			} catch (IOException e) {
+				Log.warn("[NODE{}] sending {} failed", master.getSerialId(), sub.getType(), e);
+				failed(mes, keys.keySet());
+			}
+		}
+		if (!replicas.isEmpty()) {
+			results(mes, replicas);
+		}
+		if (!local.isEmpty()) {
+			if (master.isLinear()) {
+				applyLinear(mes, local);
+			} else {
+				results(mes, apply(mes, local));
+			}
+		}
+	}
+
+	/**
+	 * Applies the keys of an eventual batch master is responsible for. Writes go to the
+	 * replication log, like single writes.
+	 *
+	 * @return the results of the keys: the values for a get, nothing for a put or delete.
+	 */
+	private Map<ChordId, String> apply(Message mes, Map<ChordId, String> local) {
+		Map<ChordId, String> results = new LinkedHashMap<>();
+		for (Map.Entry<ChordId, String> e : local.entrySet()) {
+			ChordId key = e.getKey();
+			switch (mes.getType()) {
+			case MULTIPUT: {
+				master.insert(key, e.getValue());
+				if (mes.getReplFactor() > 1) {
+					master.getReplicationLog().appendLatest(key, mes.getReplFactor() - 1);
+				}
+				results.put(key, null);
+				break;
+			}
+			case MULTIDELETE: {
+				if (master.delete(key) && mes.getReplFactor() > 1) {
+					master.getReplicationLog().appendLatest(key, mes.getReplFactor() - 1);
+				}
+				results.put(key, null);
+				break;
+			}
+			default: {
+				results.put(key, master.query(key));
+				break;
+			}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Runs every key master heads as a single request through the chain. The replies come back
+	 * to the coordinator.
+	 */
+	private void applyLinear(Message mes, Map<ChordId, String> local) {
+		MessageType type = (mes.getType() == MessageType.MULTIPUT) ? MessageType.INSERT
+				: (mes.getType() == MessageType.MULTIDELETE) ? MessageType.DELETE : MessageType.QUERY;
+		for (Map.Entry<ChordId, String> e : local.entrySet()) {
+			Message single = new Message();
+			single.setRequestId(mes.getRequestId());
+			single.setType(type);
+			single.setKeyId(e.getKey());
+			single.setData(new Data(null, e.getValue()));
+			single.setReplFactor(mes.getReplFactor());
+			single.setInitialPort(mes.getResponsiblePort());
+			single.setReplyTo(mes.getResponsiblePort());
+			single.setFrom(master.getPort());
+			single.setTo(master.getPort());
+			new LinearHandler(master, single).run();
+		}
+	}
+
+	/**
+	 * Sends the results of a part of batch mes to its coordinator, or merges them if master is
+	 * the coordinator.
+	 */
+	private void results(Message mes, Map<ChordId, String> results) {
+		if (mes.getResponsiblePort() == master.getPort()) {
+			merge(mes.getRequestId(), results, false);
+			return;
+		}
+		Message part = part(mes, MessageType.MULTIR, results, mes.getResponsiblePort());
+		try {
+			master.getPool().send(part, part.getTo());
+		} catch (IOException e) {
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), part.getType(), e);
+		}
+	}
+
+	/**
+	 * Reports keys of the batch of mes that could not be sent on as failed to its coordinator, or
+	 * merges them if master is the coordinator.
+	 */
+	private void failed(Message mes, Collection<ChordId> keys) {
+		Map<ChordId, String> results = new LinkedHashMap<>();
+		for (ChordId key : keys) {
+			results.put(key, null);
+		}
+		if (mes.getResponsiblePort() == master.getPort()) {
+			merge(mes.getRequestId(), results, true);
+			return;
+		}
+		Message part = part(mes, MessageType.FAIL, results, mes.getResponsiblePort());
+		part.setReplyTo(mes.getResponsiblePort());
+		try {
+			master.getPool().send(part, part.getTo());
+		} catch (IOException e) {
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), part.getType(), e);
+		}
+	}
+
+	/**
+	 * @return true if mes is a result of a batch master coordinates (a MULTIR, a FAIL of the keys
+	 * of a part, or the reply of the tail to a single key of a linear batch).
+	 */
+	public boolean isResult(Message mes) {
+		if (mes.getType() == MessageType.MULTIR) {
+			return true;
+		}
+		return (mes.getType() == MessageType.OK || mes.getType() == MessageType.FAIL)
+				&& mes.getReplyTo() == master.getPort() && pending.containsKey(mes.getRequestId());
+	}
+
+	/**
+	 * Adds the results in mes to its batch.
+	 */
+	public void result(Message mes) {
+		if (mes.getType() == MessageType.MULTIR) {
+			merge(mes.getRequestId(), mes.getEntries(), false);
+			return;
+		}
+		if (mes.getType() == MessageType.FAIL && mes.getEntries() != null) {
+			merge(mes.getRequestId(), mes.getEntries(), true);
+			return;
+		}
+		Batch batch = pending.get(mes.getRequestId());
+		if (batch == null) {
+			return;
+		}
+		Map<ChordId, String> one = new HashMap<>();
+		String val = null;
+		if (batch.request.getType() == MessageType.MULTIGET && mes.getType() == MessageType.OK) {
+			val = mes.getData().getVal();
+		}
+		one.put(mes.getKeyId(), val);
+		merge(mes.getRequestId(), one, false);
+	}
+
+	/**
+	 * Adds results to their batch, which failed if they are of keys that could not be sent on.
+	 */
+	private void merge(long batchId, Map<ChordId, String> results, boolean failed) {
+		Batch batch = pending.get(batchId);
+		if (batch == null) {
+			return;
+		}
+		boolean done;
+		synchronized (batch) {
+			batch.results.putAll(results);
+			batch.failed |= failed;
+			done = batch.results.size() >= batch.expected;
+		}
+		if (done && pending.remove(batchId) != null) {
+			reply(batch);
+		}
+	}
+
+	/**
+	 * Answers the client of batch with the results of all of its keys.
+	 */
+	private void reply(Batch batch) {
+		Message request = batch.request;
+		Message reply = new Message();
+		reply.setRequestId(request.getRequestId());
+		reply.setInitialPort(request.getInitialPort());
+		reply.setFrom(master.getPort());
+		reply.setTo(request.getReplyTo());
+		reply.setReplyTo(request.getReplyTo());
+		reply.setType(batch.failed ? MessageType.FAIL : MessageType.OK);
+		reply.setEntries(batch.results);
+		try {
+			master.getPool().send(reply, reply.getTo());
+		} catch (IOException e) {
+			Log.warn("[NODE{}] sending {} failed", master.getSerialId(), reply.getType(), e);
+		}
+	}
+
+	private Message part(Message mes, MessageType type, Map<ChordId, String> entries, int dst) {
+		Message part = new Message();
+		part.setRequestId(mes.getRequestId());
+		part.setType(type);
+		part.setFrom(master.getPort());
+		part.setTo(dst);
+		part.setReplyTo(-1);
+		part.setReplFactor(mes.getReplFactor());
+		part.setResponsiblePort(mes.getResponsiblePort());
+		part.setEntries(entries);
+		return part;
+	}
+}
@@ -1,86 +1,154 @@
 package servers;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-import java.net.Socket;
-import java.security.NoSuchAlgorithmException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import structures.Data;
+import structures.DurableStore;
+import structures.FsyncPolicy;
+import structures.IndexedHashStore;
+import structures.MerkleStore;
 import structures.Message;
 import structures.MessageType;
+import structures.OffHeapStore;
+import structures.Store;
+import structures.WriteAheadLog;
+import tools.ChordId;
+import tools.Log;
 import tools.SHA1Hash;
 
-public class Node extends Thread implements Serializable {
+public class Node extends Thread {
 	private static int defaultPort = 64000;
+	private static long stabilizePeriod = 500; /* ms between stabilize/fix-fingers rounds */
+	private static long heartbeatPeriod = 100; /* ms between the PINGs to the neighbours */
+	private static int successorCount = 4; /* length of the successor list */
+	private static long joinTimeout = 5000; /* ms to wait for a new node to open its port */
+	private static boolean offHeap = false; /* keep the data of new nodes outside the java heap */
+	private static File dataDir = null; /* where new nodes log their writes, null keeps them in memory only */
+	private static FsyncPolicy fsyncPolicy = FsyncPolicy.BATCHED;
 
 	private int serialId; /* serial id of node */
-	private String nodeId; /* hash id of node */
+	private ChordId nodeId; /* hash id of node */
 	private int port; /*port that server listens*/
 
-	private Node previous;
-	private Node next;
+	private volatile Node previous;
+	private volatile Node next;
+	private volatile Node[] successors; /* next and the nodes after it, to fall back on if next fails */
+	private volatile Node[] predecessors; /* previous and the nodes before it, replFactor of them */
+	private ChordId replicaFloor; /* last node of the predecessor list at the previous stabilize */
+	private ChordId versionsFloor; /* the one the replica versions were last purged for */
+	private Node[] fingers; /* fingers[i] = successor(nodeId + 2^i) */
+	private Timer stabilizer;
+	private FailureDetector detector; /* of previous and the successor list */
+	private final Object links = new Object(); /* taken to change next or previous on a failure */
 
 	private int clientPort; /*port to reply to client*/
 
-	private Hashtable<String, String> hashTable;
-	private Hashtable<String, String> replHashTable;
+	/* both stores are ordered by ring position, so the keys a join or depart hands over are a
+	 * contiguous range that is cut out in O(log n + k), while gets stay a hash lookup. Both keep
+	 * the merkle trees of anti-entropy up to date */
+	private MerkleStore hashTable;
+	private MerkleStore replHashTable;
 	private Listener listener;
+	private ConnectionPool pool; /* outgoing connections to other nodes */
+	private BulkTransfer transfers; /* key ranges sent on join/depart */
+	private ReplicationLog replicationLog; /* replica writes waiting for next (eventual mode) */
+	private AntiEntropy antiEntropy; /* merkle sync of the replicas of our range */
+	private MultiOps multiOps; /* batches of keys this node coordinates */
+	private NodeMetrics metrics;
+	private WriteAheadLog wal; /* of both stores, null if dataDir is not set */
 
 	private boolean running;
 	
 	//for Linearizability. (using chained replication)
 	private int replFactor;
 	private boolean linear = false;
-	private Lock lock;
+	private AtomicLong versionSeq; /* versions of the writes this node heads */
+	private ConcurrentHashMap<ChordId, Long> versions; /* last version applied per key */
+	private ConcurrentHashMap<ChordId, Long> replVersions; /* same, for the replicas */
+	private ConcurrentHashMap<ChordId, Long> committed; /* last version acked by the tail per key */
 
-	public Node(int serialId, boolean isLinear, int replNumber) throws NoSuchAlgorithmException {
+	public Node(int serialId, boolean isLinear, int replNumber) {
 		this.serialId = serialId;
 		nodeId = SHA1Hash.hash(Integer.toString(serialId));
-		port = defaultPort + serialId;
+		port = portOf(serialId);
 		listener = new Listener(port, this);
-		hashTable = new Hashtable<>();
-		replHashTable = new Hashtable<>();
+		metrics = new NodeMetrics(this);
+		pool = new ConnectionPool(metrics);
+		detector = new FailureDetector(heartbeatPeriod);
+		transfers = new BulkTransfer(this);
+		replicationLog = new ReplicationLog(this);
+		antiEntropy = new AntiEntropy(this);
+		multiOps = new MultiOps(this);
+		Store store = newStore();
+		Store replStore = newStore();
+		if (dataDir != null) {
+			//a node that comes back with the same serial id gets its data back, unless it joins a
+			//live ring (see joinNode)
+			long start = System.currentTimeMillis();
+			try {
+				wal = new WriteAheadLog(new File(dataDir, "node" + serialId), fsyncPolicy, store, replStore);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			if (wal.getRecovered() > 0) {
+				Log.info("[NODE{}] recovered {} writes in {} ms", serialId, wal.getRecovered(),
+						System.currentTimeMillis() - start);
+			}
+			store = new DurableStore(store, wal, 0);
+			replStore = new DurableStore(replStore, wal, 1);
+		}
+		hashTable = new MerkleStore(store);
+		replHashTable = new MerkleStore(replStore);
+		fingers = new Node[ChordId.BITS];
 		
 		linear = isLinear;
-		lock = new ReentrantLock();
+		/* raised above every version that reaches this node with a key range, so when it becomes
+		 * head of the range it numbers the writes above those the replicas have */
+		versionSeq = new AtomicLong(System.currentTimeMillis() << 20);
+		versions = new ConcurrentHashMap<>();
+		replVersions = new ConcurrentHashMap<>();
+		committed = new ConcurrentHashMap<>();
 		replFactor = replNumber;
 	}
 
-	public boolean insert(String notHashedKey, String value) {
+	public boolean insert(ChordId hashedKey, String value) {
 		try {
-			String hashedKey = SHA1Hash.hash(notHashedKey);
-			
 			//update or insert the key to the hash.
 			hashTable.put(hashedKey, value);
 			return true;
 		} catch (Exception e) {
-			e.printStackTrace();
+			Log.error("[NODE{}] insert failed", serialId, e);
 			return false;
 		}
 	}
 
-	public boolean insertR(String notHashedKey, String value) {
+	public boolean insertR(ChordId hashedKey, String value) {
 		try {
-			String hashedKey = SHA1Hash.hash(notHashedKey);
-			
 			//update or insert the to the hash.
 			replHashTable.put(hashedKey, value);
 			return true;
 		} catch (Exception e) {
-			e.printStackTrace();
+			Log.error("[NODE{}] replica insert failed", serialId, e);
 			return false;
 		}
 	}
 
-	public boolean delete(String notHashedkey) throws NoSuchAlgorithmException {
-		String hashedKey = SHA1Hash.hash(notHashedkey);
-		
+	public boolean delete(ChordId hashedKey) {
 		if (hashTable.remove(hashedKey) != null) {
 			//entry removed
 			return true;
@@ -90,9 +158,7 @@ public class Node extends Thread implements Serializable {
 		}
 	}
 
-	public boolean deleteR(String notHashedkey) throws NoSuchAlgorithmException {
-		String hashedKey = SHA1Hash.hash(notHashedkey);
-		
+	public boolean deleteR(ChordId hashedKey) {
 		if (replHashTable.remove(hashedKey) != null) {
 			//entry removed
 			return true;
@@ -102,24 +168,169 @@ public class Node extends Thread implements Serializable {
 		}
 	}
 
-	public String query(String key) {
+	public String query(ChordId key) {
 		//System.out.println("[NODE" + serialId + "] quering.");
 		String res = hashTable.get(key);
 		//System.out.println("[NODE" + serialId + "] queried " + res);
 		return res;
 	}
 
-	public String queryR(String key) {
+	public String queryR(ChordId key) {
 		//System.out.println("[NODE" + serialId + "] quering.");
 		String res = replHashTable.get(key);
 		//System.out.println("[NODE" + serialId + "] queried " + res);
 		return res;
 	}
 
-	public String specialQuery() {
-		String returnString = "// Node " + this.getSerialId() + ": " + hashTable.toString();
-		returnString += " /Replicas: " + replHashTable.toString();
-		return returnString;
+	/**
+	 * One page of a scan of the keys of this node in the ring interval (after, to], in ring
+	 * order. If prefix is not null only the ids whose hex string starts with it are returned,
+	 * they form one arc of the ring that is cut out of the store directly.
+	 *
+	 * @return at most limit entries. The scan goes on after the last of them.
+	 */
+	public Map<ChordId, String> scan(ChordId after, ChordId to, String prefix, int limit) {
+		ChordId min = null, max = null;
+		if (prefix != null && !prefix.isEmpty()) {
+			min = ChordId.fromHex(pad(prefix, '0'));
+			max = ChordId.fromHex(pad(prefix, 'f'));
+		}
+		Map<ChordId, String> page = new LinkedHashMap<>();
+		if (after.compareTo(to) < 0) {
+			slice(page, after, false, to, true, min, max, limit);
+		} else {
+			//wraps around zero, or the whole ring if after equals to
+			slice(page, after, false, null, false, min, max, limit);
+			slice(page, null, false, to, true, min, max, limit);
+		}
+		return page;
+	}
+
+	/**
+	 * Adds to page the entries of hashTable between lo and hi (null is unbounded) that are also
+	 * in [min, max], until page has limit entries.
+	 */
+	private void slice(Map<ChordId, String> page, ChordId lo, boolean loInclusive, ChordId hi,
+			boolean hiInclusive, ChordId min, ChordId max, int limit) {
+		if (min != null && (lo == null || min.compareTo(lo) > 0)) {
+			lo = min;
+			loInclusive = true;
+		}
+		if (max != null && (hi == null || max.compareTo(hi) < 0)) {
+			hi = max;
+			hiInclusive = true;
+		}
+		for (Map.Entry<ChordId, String> e : hashTable.range(lo, loInclusive, hi, hiInclusive)) {
+			if (page.size() >= limit) {
+				return;
+			}
+			page.put(e.getKey(), e.getValue());
+		}
+	}
+
+	private static String pad(String prefix, char c) {
+		StringBuilder sb = new StringBuilder(prefix.toLowerCase());
+		while (sb.length() < 2 * ChordId.BYTES) {
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+
+	/**
+	 * Stores every entry of a bulk transfer. The replicas this node kept of them are dropped,
+	 * the keys are its own now.
+	 */
+	public boolean insertAll(Map<ChordId, String> entries) {
+		hashTable.putAll(entries);
+		if (replHashTable.size() > 0) {
+			for (ChordId key : entries.keySet()) {
+				replHashTable.remove(key);
+			}
+		}
+		return true;
+	}
+
+	public boolean insertAllR(Map<ChordId, String> entries) {
+		replHashTable.putAll(entries);
+		return true;
+	}
+
+	/**
+	 * Stores the entries of a bulk transfer of a range this node heads now, with the versions
+	 * (in the order of entries) they had at the previous head. A key written here since keeps
+	 * the newer write. The previous head has applied these writes, they are taken as committed.
+	 */
+	public boolean insertAll(Map<ChordId, String> entries, long[] entryVersions) {
+		if (entryVersions == null) {
+			return insertAll(entries);
+		}
+		versionSeen(insertVersioned(entries, entryVersions, versions, hashTable));
+		int i = 0;
+		for (ChordId key : entries.keySet()) {
+			long version = entryVersions[i++];
+			if (version != 0) {
+				committed.merge(key, version, Math::max);
+			}
+			if (replHashTable.remove(key) != null | replVersions.remove(key) != null) {
+				Log.debug("[NODE{}] replica of {} is a key of ours now", serialId, key);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Same as insertAll, for a range this node replicates. The writes are not known to be
+	 * committed, reads of them go to the tail until the next write of the key is.
+	 */
+	public boolean insertAllR(Map<ChordId, String> entries, long[] entryVersions) {
+		if (entryVersions == null) {
+			return insertAllR(entries);
+		}
+		versionSeen(insertVersioned(entries, entryVersions, replVersions, replHashTable));
+		return true;
+	}
+
+	/**
+	 * @return the highest of the versions.
+	 */
+	private long insertVersioned(Map<ChordId, String> entries, long[] entryVersions,
+			ConcurrentHashMap<ChordId, Long> vers, Store store) {
+		long max = 0;
+		int i = 0;
+		for (Map.Entry<ChordId, String> e : entries.entrySet()) {
+			long version = entryVersions[i++];
+			vers.compute(e.getKey(), (k, current) -> {
+				if (current != null && current >= version) {
+					return current;
+				}
+				store.put(k, e.getValue());
+				return (version == 0) ? current : Long.valueOf(version);
+			});
+			max = Math.max(max, version);
+		}
+		return max;
+	}
+
+	/**
+	 * version of a key has reached this node: the writes it heads from now on are numbered above
+	 * it.
+	 */
+	public void versionSeen(long version) {
+		versionSeq.accumulateAndGet(version, Math::max);
+	}
+
+	/**
+	 * Applies a batch of replica writes, a null value deletes the key.
+	 */
+	public void applyR(Map<ChordId, String> writes) {
+		for (Map.Entry<ChordId, String> e : writes.entrySet()) {
+			if (e.getValue() == null) {
+				replHashTable.remove(e.getKey());
+			} else {
+				replHashTable.put(e.getKey(), e.getValue());
+			}
+		}
 	}
 
 	public boolean joinNode(Node newNode) {
@@ -127,101 +338,107 @@ public class Node extends Thread implements Serializable {
 		if (newNode == null) {
 			return false;
 		}
+		newNode.dropRecovered();
+		Node oldPrevious = previous;
 		newNode.setNext(this);
 		newNode.setPrevious(previous);
+		//it heads part of our range once linked, above the versions we gave
+		newNode.versionSeen(versionSeq.get());
 
-		previous.setNext(newNode);
-
-		previous = newNode;
-
-		Set<String> keySet = hashTable.keySet();
-		ArrayList<Message> mesList = new ArrayList<>();
-
-		//Start new thread
+		//Start new thread, and link it only once it listens: messages go to it right after
 		newNode.initiate();
 		newNode.start();
+		try {
+			newNode.getListener().awaitBound(joinTimeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
 
-		for (String string : keySet) {
-			if (string.compareTo(newNode.getNodeId()) <= 0) {
-				Message mes = new Message();
-				mes.setFrom(port);
-				mes.setTo(newNode.getPort());
-				mes.setReplyTo(-1);
-				mes.setType(MessageType.INSERT);
-				mes.setData(new Data(string, hashTable.get(string)));
-
-				mesList.add(mes);
+		previous.setNext(newNode);
 
-				hashTable.remove(string);
+		previous = newNode;
+		newNode.fixPredecessors();
+		refreshPredecessors();
+
+		//hand over the keys of range (oldPrevious, newNode], we are next in their chain now
+		pool.close(newNode.getPort());
+		Map<ChordId, String> entries = hashTable.extract(oldPrevious.getNodeId(), newNode.getNodeId());
+		if (replFactor > 1) {
+			replHashTable.putAll(entries);
+			if (linear) {
+				for (ChordId key : entries.keySet()) {
+					Long version = versions.remove(key);
+					if (version != null) {
+						replVersions.merge(key, version, Math::max);
+					}
+				}
 			}
 		}
-		boolean res = false;
 		try {
-			res = sendList(mesList, newNode.getPort());
-			//System.out.println("joinNode returning " + res);
-			return res;
+			return transfer(entries, replFactor > 1 ? replVersions : versions, MessageType.TRANSFER, 1,
+					newNode.getPort());
 		} catch (IOException e) {
-			System.out.println("joinNode returning false!!!!!");
+			Log.warn("[NODE{}] handing keys over to node {} failed", serialId, newNode.getSerialId(), e);
 			return false;
+		} finally {
+			if (replFactor <= 1) {
+				forget(entries.keySet(), versions);
+			}
 		}
 	}
 
-	public boolean joinR(int ttl, Node newNode) {
-
-		Set<String> keySet = hashTable.keySet();
-		ArrayList<Message> mesList = new ArrayList<>();
-
-		for (String string : keySet) {
-			if (string.compareTo(newNode.getNodeId()) <= 0) {
-				Message mes = new Message();
-				mes.setFrom(port);
-				mes.setTo(newNode.getPort());
-				mes.setReplyTo(-1);
-				mes.setType(MessageType.INSERTR);
-				mes.setData(new Data(string, hashTable.get(string)));
-
-				mesList.add(mes);
-
-				hashTable.remove(string);
-			}
+	/**
+	 * Drops the data this node recovered from its log, before it joins a running ring. The ring
+	 * hands it the current keys of its range: recovered keys that were deleted while it was away
+	 * must not come back, nor stale values stay.
+	 */
+	private void dropRecovered() {
+		if (wal == null || wal.getRecovered() == 0) {
+			return;
 		}
-		boolean res = false;
+		int keys = hashTable.extract(nodeId, nodeId).size() + replHashTable.extract(nodeId, nodeId).size();
+		Log.info("[NODE{}] joining a running ring, dropped {} recovered keys", serialId, keys);
+	}
+
+	/**
+	 * Gives newNode a copy of the replicas of this node, which are mostly the replicas newNode
+	 * has to keep now, but for the keys it got from us. Anti-entropy fixes the rest.
+	 */
+	public boolean joinR(int ttl, Node newNode) {
+		Map<ChordId, String> entries = replHashTable.snapshot(newNode.getNodeId(), newNode.getPrevious().getNodeId());
 		try {
-			res = sendList(mesList, newNode.getPort());
-			//System.out.println("joinNode returning " + res);
-			return res;
+			return transfer(entries, replVersions, MessageType.TRANSFERR, 1, newNode.getPort());
 		} catch (IOException e) {
 			//System.out.println("joinNode returning false!!!!!");
 			return false;
 		}
 	}
 
+
 	/**
 	 * This method sends hashTable to next node and updates the next and previous fields of it's
-	 * neighbors.
+	 * neighbors. The node keeps listening until the transfers are acknowledged, the handler calls
+	 * terminate() once it is done.
 	 *
-	 * @return true if sendList() succeeded, else false.
+	 * @return true if transfer() succeeded, else false.
 	 */
 	public boolean depart() {
+		//stop stabilizing first, or we may notify next about us again.
+		if (stabilizer != null) {
+			stabilizer.cancel();
+		}
+		replicationLog.flush();
 		previous.setNext(next);
 		next.setPrevious(previous);
+		next.refreshPredecessors();
 
-		Set<String> keySet = hashTable.keySet();
-		ArrayList<Message> mesList = new ArrayList<>();
-		for (String string : keySet) {
-			Message mes = new Message();
-			mes.setFrom(port);
-			mes.setTo(next.getPort());
-			mes.setReplyTo(-1);
-			mes.setType(MessageType.INSERT);
-			mes.setData(new Data(string, hashTable.get(string)));
-
-			mesList.add(mes);
-		}
-
-		boolean res = false;
 		try {
-			res = sendList(mesList, next.getPort());
+			boolean res = transfer(hashTable.snapshot(), versions, MessageType.TRANSFER, 1, next.getPort());
+			//the range is next's now, a restart must not bring our stale copy back
+			if (res && wal != null) {
+				wal.discard();
+			}
 			return res;
 		} catch (IOException e) {
 			return false;
@@ -229,45 +446,666 @@ public class Node extends Thread implements Serializable {
 	}
 
 	public boolean departR(int ttl) {
-		Set<String> keySet = replHashTable.keySet();
-		ArrayList<Message> mesList = new ArrayList<>();
-		for (String string : keySet) {
-			Message mes = new Message();
-			mes.setFrom(port);
-			mes.setTo(next.getPort());
-			mes.setReplFactor(ttl);
-			mes.setReplyTo(-1);
-			mes.setType(MessageType.INSERTR);
-			mes.setData(new Data(string, replHashTable.get(string)));
+		try {
+			return transfer(replHashTable.snapshot(), replVersions, MessageType.TRANSFERR, ttl, next.getPort());
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Streams entries to dst in acknowledged batches of type TRANSFER or TRANSFERR, instead of
+	 * one message per key. In linear mode the batches carry the versions of the keys in vers.
+	 */
+	private boolean transfer(Map<ChordId, String> entries, ConcurrentHashMap<ChordId, Long> vers, MessageType type,
+			int ttl, int dst) throws IOException {
+		if (entries.isEmpty()) {
+			return true;
+		}
+		return transfers.send(entries, linear ? vers : null, type, ttl, dst);
+	}
+
+	/**
+	 * Drops the versions in vers of keys that left this node, and their commits if the node
+	 * keeps no other version of them.
+	 */
+	private void forget(Collection<ChordId> keys, ConcurrentHashMap<ChordId, Long> vers) {
+		if (!linear) {
+			return;
+		}
+		for (ChordId key : keys) {
+			vers.remove(key);
+			if (!versions.containsKey(key) && !replVersions.containsKey(key)) {
+				committed.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * @return true if key falls in the range (previous, this] of this node.
+	 */
+	public boolean isResponsible(ChordId key) {
+		return key.inHalfOpen(previous.getNodeId(), nodeId);
+	}
+
+	/**
+	 * Chooses the node that a message for key should be sent to. If our successor is responsible
+	 * for key we send it there, otherwise we jump to the closest finger that precedes key.
+	 */
+	public Node nextHop(ChordId key) {
+		if (key.inHalfOpen(nodeId, next.getNodeId())) {
+			return next;
+		}
+		Node hop = closestPrecedingNode(key);
+		return (hop == this) ? next : hop;
+	}
+
+	/**
+	 * @return the live finger with the highest id in (this, key), or this if none exists.
+	 */
+	public Node closestPrecedingNode(ChordId key) {
+		for (int i = fingers.length - 1; i >= 0; i--) {
+			Node f = fingers[i];
+			if (f != null && isAlive(f) && f.getNodeId().inOpen(nodeId, key)) {
+				return f;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Walks the ring through the finger tables, starting from this node, and returns the node
+	 * responsible for key.
+	 */
+	public Node findSuccessor(ChordId key) {
+		Node n = this;
+		while (!key.inHalfOpen(n.getNodeId(), n.getNext().getNodeId())) {
+			Node hop = n.closestPrecedingNode(key);
+			/* fingers of n not built yet, fall back to its successor */
+			n = (hop == n) ? n.getNext() : hop;
+		}
+		return n.getNext();
+	}
+
+	/**
+	 * Chord stabilize: checks whether a node has joined between us and our successor and tells
+	 * the successor about us.
+	 */
+	public void stabilize() {
+		if (next == null) {
+			return;
+		}
+		if (!isAlive(next)) {
+			repairLinks();
+		}
+		Node x = next.getPrevious();
+		if (x != null && x != this && x.getNodeId().inOpen(nodeId, next.getNodeId()) && reachable(x)) {
+			next = x;
+		}
+		next.notifyPredecessor(this);
+		fixSuccessors();
+		fixPredecessors();
+		purgeReplicas();
+	}
+
+	/**
+	 * Chord notify: n thinks it might be our predecessor. If n skips our live previous, n may
+	 * have found it failed before we did, so it is pinged first.
+	 */
+	public void notifyPredecessor(Node n) {
+		if (n == this) {
+			return;
+		}
+		Node old = previous;
+		if (old != null && old != n && isAlive(old) && !n.getNodeId().inOpen(old.getNodeId(), nodeId)
+				&& !ping(old.getPort())) {
+			suspect(old);
+		}
+		synchronized (links) {
+			old = previous;
+			if (old != null && isAlive(old) && !n.getNodeId().inOpen(old.getNodeId(), nodeId)) {
+				return;
+			}
+			previous = n;
+		}
+		if (old != n) {
+			refreshPredecessors();
+		}
+		if (old != null && old != n && !isAlive(old)) {
+			takeOver(n, old);
+		}
+	}
+
+	/**
+	 * Chord successor list: next, then the list of next without its last entry. In a ring of
+	 * fewer nodes the list stops before it gets back to us. The first replFactor - 1 nodes of the
+	 * list keep the replicas of our keys: if one of them failed, the nodes that replace it get a
+	 * copy of the keys.
+	 */
+	public void fixSuccessors() {
+		Node n = next;
+		if (n == null) {
+			return;
+		}
+		List<Node> list = new ArrayList<>(successorCount);
+		list.add(n);
+		for (Node s : n.getSuccessors()) {
+			if (list.size() == successorCount || s == this) {
+				break;
+			}
+			if (!list.contains(s)) {
+				list.add(s);
+			}
+		}
+		Node[] old = successors;
+		successors = list.toArray(new Node[list.size()]);
+
+		if (old == null || replFactor <= 1) {
+			return;
+		}
+		List<Node> replicas = list.subList(0, Math.min(replFactor - 1, list.size()));
+		boolean lost = false;
+		for (int i = 0; i < old.length && i < replFactor - 1; i++) {
+			lost |= !replicas.contains(old[i]) && !isAlive(old[i]);
+		}
+		if (!lost) {
+			return;
+		}
+		for (Node replica : replicas) {
+			if (!Arrays.asList(old).subList(0, Math.min(replFactor - 1, old.length)).contains(replica)) {
+				rereplicate(replica);
+			}
+		}
+	}
+
+	/**
+	 * Copies our keys to replica, which has just become one of the nodes that keep replicas of
+	 * them. Runs apart, like the transfer of takeOver().
+	 */
+	private void rereplicate(Node replica) {
+		CompletableFuture.runAsync(() -> {
+			Map<ChordId, String> entries = hashTable.snapshot();
+			Log.info("[NODE{}] copying {} keys to new replica node {}", serialId, entries.size(),
+					replica.getSerialId());
+			try {
+				transfer(entries, versions, MessageType.TRANSFERR, 1, replica.getPort());
+			} catch (IOException e) {
+				Log.warn("[NODE{}] copying keys to node {} failed", serialId, replica.getSerialId(), e);
+			}
+		});
+	}
+
+	/**
+	 * @return next and the nodes after it, at most successorCount.
+	 */
+	public Node[] getSuccessors() {
+		Node[] list = successors;
+		return (list == null || list.length == 0 || list[0] != next) ? new Node[] { next } : list;
+	}
+
+	/**
+	 * Predecessor list: previous, then the list of previous without its last entry, as long as
+	 * the successor list or replFactor nodes if that is more. The replicas this node keeps are
+	 * those of the range (node replFactor - 1 of the list, previous], the nodes after it are there
+	 * to replace a failed previous. In a ring of fewer nodes the list stops before it gets back
+	 * to us.
+	 */
+	public void fixPredecessors() {
+		Node p = previous;
+		if (p == null || p == this) {
+			predecessors = null;
+			return;
+		}
+		int count = Math.max(replFactor, successorCount);
+		List<Node> list = new ArrayList<>(count);
+		list.add(p);
+		for (Node n : p.getPredecessors()) {
+			if (list.size() == count || n == this) {
+				break;
+			}
+			if (!list.contains(n)) {
+				list.add(n);
+			}
+		}
+		predecessors = list.toArray(new Node[list.size()]);
+	}
+
+	/**
+	 * Fixes the predecessor list of this node, and then those of the successors whose lists go
+	 * through it, after previous changed.
+	 */
+	public void refreshPredecessors() {
+		fixPredecessors();
+		Node[] list = getSuccessors();
+		for (int i = 0; i < list.length && i < Math.max(replFactor, successorCount) - 1; i++) {
+			if (list[i] == this) {
+				break;
+			}
+			if (isAlive(list[i])) {
+				list[i].fixPredecessors();
+			}
+		}
+	}
+
+	/**
+	 * @return previous and the nodes before it, at most the larger of replFactor and the length
+	 * of the successor list.
+	 */
+	public Node[] getPredecessors() {
+		Node[] list = predecessors;
+		return (list == null || list.length == 0 || list[0] != previous) ? new Node[] { previous } : list;
+	}
+
+	/**
+	 * @return true if this node is in the replica chain of key, which it is not responsible for.
+	 * Always true in a ring of at most replFactor nodes.
+	 */
+	public boolean isReplicaOf(ChordId key) {
+		Node[] list = getPredecessors();
+		if (list.length < replFactor) {
+			return true;
+		}
+		return key.inHalfOpen(list[replFactor - 1].getNodeId(), list[0].getNodeId());
+	}
+
+	/**
+	 * Drops the replicas of the keys outside (last of the predecessor list, this]: a join or a
+	 * depart has moved this node out of their chain. Only done once the list has kept the same
+	 * last node for a stabilize round, so a list that has not caught up with a failure does not
+	 * make the node drop replicas it has to keep.
+	 */
+	private void purgeReplicas() {
+		Node[] list = getPredecessors();
+		ChordId floor = (list.length < replFactor) ? null : list[replFactor - 1].getNodeId();
+		ChordId last = replicaFloor;
+		replicaFloor = floor;
+		if (floor == null || !floor.equals(last)) {
+			return;
+		}
+		Map<ChordId, String> dropped = replHashTable.extract(nodeId, floor);
+		if (!dropped.isEmpty()) {
+			forget(dropped.keySet(), replVersions);
+			Log.debug("[NODE{}] dropped {} replicas of keys out of its chains", serialId, dropped.size());
+		}
+		if (linear && !floor.equals(versionsFloor)) {
+			//versions of keys that were deleted before they left the chain have no replica
+			versionsFloor = floor;
+			List<ChordId> out = new ArrayList<>();
+			for (ChordId key : replVersions.keySet()) {
+				if (!key.inHalfOpen(floor, nodeId)) {
+					out.add(key);
+				}
+			}
+			forget(out, replVersions);
+		}
+	}
 
-			mesList.add(mes);
+	/**
+	 * @return false if the failure detector of this node has given up on n.
+	 */
+	public boolean isAlive(Node n) {
+		return n == this || detector.isAvailable(n.getPort());
+	}
+
+	/**
+	 * A message to n could not be sent: n is suspected until it answers again, and next and
+	 * previous move past it if it was one of them.
+	 */
+	public void suspect(Node n) {
+		if (n == this || !running) {
+			return;
+		}
+		if (detector.suspect(n.getPort())) {
+			Log.info("[NODE{}] cannot reach node {}", serialId, n.getSerialId());
+		}
+		pool.close(n.getPort());
+		repairLinks();
+	}
+
+	/**
+	 * Replaces a next the failure detector gave up on with the first live node of the successor
+	 * list, and a failed previous with the first node of the predecessor list that can be
+	 * reached, whose range this node takes over. Nothing of the failed node is read: it is gone.
+	 */
+	private void repairLinks() {
+		Node newNext = null, failed = null, newPrevious = null;
+		synchronized (links) {
+			if (next != null && !isAlive(next)) {
+				for (Node n : getSuccessors()) {
+					if (n != this && isAlive(n)) {
+						newNext = n;
+						break;
+					}
+				}
+				if (newNext == null) {
+					Log.warn("[NODE{}] no live node in the successor list", serialId);
+				} else {
+					Log.info("[NODE{}] successor {} failed, next is node {}", serialId, next.getSerialId(),
+							newNext.getSerialId());
+					next = newNext;
+				}
+			}
+			if (previous != null && previous != this && !isAlive(previous)) {
+				failed = previous;
+				newPrevious = livePredecessor(failed);
+				Log.info("[NODE{}] predecessor {} failed, previous is node {}", serialId, failed.getSerialId(),
+						newPrevious.getSerialId());
+				previous = newPrevious;
+			}
+		}
+		//outside our lock: next takes its own
+		if (newNext != null) {
+			fixSuccessors();
+			newNext.notifyPredecessor(this);
+		}
+		if (failed != null) {
+			refreshPredecessors();
+			takeOver(newPrevious, failed);
+		}
+	}
+
+	/**
+	 * @return the first node after failed in the predecessor list that can be reached. If there
+	 * is none, the last reachable node of the successor list, which is the one before us in a
+	 * ring of few nodes, or this node: the notify of the real predecessor corrects it later.
+	 */
+	private Node livePredecessor(Node failed) {
+		Node[] list = getPredecessors();
+		for (int i = (list[0] == failed) ? 1 : 0; i < list.length; i++) {
+			if (list[i] == this || reachable(list[i])) {
+				return list[i];
+			}
+		}
+		Node[] succ = getSuccessors();
+		for (int i = succ.length - 1; i >= 0; i--) {
+			if (succ[i] != failed && (succ[i] == this || reachable(succ[i]))) {
+				return succ[i];
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * The range (newPrevious, failed] of a failed predecessor is ours now. The replicas this node
+	 * keeps of it become its own keys, and are passed down the replica chain, which has lost a
+	 * copy. The transfer runs apart, so the heartbeats of this node are not held up by it.
+	 */
+	private void takeOver(Node newPrevious, Node failed) {
+		Map<ChordId, String> entries = replHashTable.extract(newPrevious.getNodeId(), failed.getNodeId());
+		if (entries.isEmpty()) {
+			return;
+		}
+		if (linear) {
+			//this node heads the chain of these keys now, above the versions it has of them
+			long max = 0;
+			for (ChordId key : entries.keySet()) {
+				Long version = replVersions.remove(key);
+				if (version != null) {
+					versions.merge(key, version, Math::max);
+					max = Math.max(max, version);
+				}
+			}
+			versionSeen(max);
+		}
+		hashTable.putAll(entries);
+		metrics.promoted(entries.size());
+		Log.info("[NODE{}] promoted {} replicas of failed node {}", serialId, entries.size(),
+				failed.getSerialId());
+		if (replFactor > 1 && next != this) {
+			CompletableFuture.runAsync(() -> {
+				try {
+					transfer(entries, versions, MessageType.TRANSFERR, replFactor - 1, next.getPort());
+				} catch (IOException e) {
+					Log.warn("[NODE{}] copying promoted keys down the replica chain failed", serialId, e);
+				}
+			});
+		}
+	}
+
+	/**
+	 * PINGs previous and the successor list, and repairs next or previous if the failure detector
+	 * has given up on them.
+	 */
+	private void sendHeartbeats() {
+		Set<Integer> ports = new HashSet<>();
+		Node p = previous;
+		if (p != null && p != this) {
+			ports.add(p.getPort());
+		}
+		for (Node n : getSuccessors()) {
+			if (n != null && n != this) {
+				ports.add(n.getPort());
+			}
 		}
+		detector.retain(ports);
+		for (int dst : ports) {
+			detector.watch(dst);
+			if (!ping(dst)) {
+				detector.suspect(dst);
+			}
+		}
+		Node n = next;
+		p = previous;
+		if ((n != null && !isAlive(n)) || (p != null && !isAlive(p))) {
+			repairLinks();
+		}
+	}
+
+	/**
+	 * @return false if n is suspected, or a PING to it could not be sent (it is suspected then).
+	 */
+	private boolean reachable(Node n) {
+		if (!isAlive(n)) {
+			return false;
+		}
+		if (!ping(n.getPort())) {
+			detector.suspect(n.getPort());
+			return false;
+		}
+		return true;
+	}
 
-		boolean res = false;
+	/**
+	 * @return false if the PING could not be sent.
+	 */
+	private boolean ping(int dst) {
+		Message ping = new Message();
+		ping.setType(MessageType.PING);
+		ping.setFrom(port);
+		ping.setTo(dst);
+		ping.setReplyTo(-1);
 		try {
-			res = sendList(mesList, next.getPort());
-			return res;
+			pool.send(ping, dst);
+			return true;
 		} catch (IOException e) {
 			return false;
 		}
 	}
 
-	private void send(Message mes, int dst) throws IOException {
-		Socket sock = new Socket("127.0.0.1", dst);
+	/**
+	 * Answers a PING with a PONG. A PONG is a heartbeat of its sender for the failure detector.
+	 */
+	public void heartbeat(Message mes) {
+		if (mes.getType() == MessageType.PONG) {
+			detector.heartbeat(mes.getFrom());
+			return;
+		}
+		Message pong = new Message();
+		pong.setType(MessageType.PONG);
+		pong.setFrom(port);
+		pong.setTo(mes.getFrom());
+		pong.setReplyTo(-1);
+		try {
+			pool.send(pong, pong.getTo());
+		} catch (IOException e) {
+			Log.debug("[NODE{}] sending {} failed", serialId, pong.getType(), e);
+		}
+	}
+
+	/**
+	 * Sends mes on towards the node responsible for key, through nextHop(). A hop that cannot be
+	 * reached is suspected and the next best one is tried, so requests go around a crashed node
+	 * before the failure detector notices it.
+	 */
+	public void sendTowards(ChordId key, Message mes) throws IOException {
+		for (int attempt = 0;; attempt++) {
+			Node hop = nextHop(key);
+			if (trySend(mes, hop, attempt)) {
+				return;
+			}
+		}
+	}
 
-		// Send the message to the server
-		ObjectOutputStream out = new ObjectOutputStream(sock.getOutputStream());
-		out.writeObject(mes);
-		out.flush();
-		sock.close();
+	/**
+	 * Sends mes to next, or to the first node of the successor list that can be reached.
+	 */
+	public void sendToNext(Message mes) throws IOException {
+		for (int attempt = 0;; attempt++) {
+			if (trySend(mes, next, attempt)) {
+				return;
+			}
+		}
 	}
 
-	private boolean sendList(ArrayList<Message> mesList, int dst) throws IOException {
-		//System.out.println("[NODE" + serialId + "] in sendList.");
-		for (Message m : mesList) {
-			send(m, dst);
+	/**
+	 * Sends mes to previous, or to the node before it if previous cannot be reached.
+	 */
+	public void sendToPrevious(Message mes) throws IOException {
+		for (int attempt = 0;; attempt++) {
+			if (trySend(mes, previous, attempt)) {
+				return;
+			}
 		}
-		return true;
+	}
+
+	/**
+	 * @return false if mes could not be sent to dst, which is suspected then.
+	 * @throws IOException if that was the last of successorCount attempts.
+	 */
+	private boolean trySend(Message mes, Node dst, int attempt) throws IOException {
+		mes.setTo(dst.getPort());
+		Log.debug("[NODE{}] sending {}", serialId, mes);
+		try {
+			pool.send(mes, dst.getPort());
+			return true;
+		} catch (IOException e) {
+			if (attempt >= successorCount || dst == this) {
+				throw e;
+			}
+			suspect(dst);
+			return false;
+		}
+	}
+
+	/**
+	 * Refreshes every entry of the finger table. Consecutive fingers usually point to the same
+	 * node, so a lookup is done only when the start falls outside the previous finger.
+	 */
+	public void fixFingers() {
+		if (next == null) {
+			return;
+		}
+		Node last = null;
+		for (int i = 0; i < fingers.length; i++) {
+			ChordId start = nodeId.addPowerOfTwo(i);
+			if (last == null || !start.inHalfOpen(nodeId, last.getNodeId())) {
+				last = findSuccessor(start);
+			}
+			fingers[i] = last;
+		}
+	}
+
+	private void startStabilizer() {
+		stabilizer = new Timer("Node" + serialId + "-stabilizer", true);
+		stabilizer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				if (!running) {
+					cancel();
+					return;
+				}
+				stabilize();
+				fixFingers();
+			}
+		}, stabilizePeriod, stabilizePeriod);
+		stabilizer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				if (!running) {
+					cancel();
+					return;
+				}
+				sendHeartbeats();
+			}
+		}, heartbeatPeriod, heartbeatPeriod);
+	}
+
+	public Node[] getFingers() {
+		return fingers;
+	}
+
+	private static Store newStore() {
+		return offHeap ? new OffHeapStore() : new IndexedHashStore();
+	}
+
+	public static boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * Sets the store of the nodes created from now on: an OffHeapStore if offHeap, else an
+	 * IndexedHashStore.
+	 */
+	public static void setOffHeap(boolean offHeap) {
+		Node.offHeap = offHeap;
+	}
+
+	public static int getSuccessorCount() {
+		return successorCount;
+	}
+
+	/**
+	 * Sets the length of the successor lists, which is how many successive nodes may fail at
+	 * once without breaking the ring. Should be at least the replication factor.
+	 */
+	public static void setSuccessorCount(int successorCount) {
+		Node.successorCount = successorCount;
+	}
+
+	public static long getHeartbeatPeriod() {
+		return heartbeatPeriod;
+	}
+
+	public static void setHeartbeatPeriod(long heartbeatPeriod) {
+		Node.heartbeatPeriod = heartbeatPeriod;
+	}
+
+	public static File getDataDir() {
+		return dataDir;
+	}
+
+	/**
+	 * Makes the nodes created from now on log the writes to their stores under dataDir, and
+	 * recover them from there when they are created again. A node that joins a running ring drops
+	 * what it recovered and takes the keys it is handed. null turns logging off.
+	 */
+	public static void setDataDir(File dataDir) {
+		Node.dataDir = dataDir;
+	}
+
+	public static FsyncPolicy getFsyncPolicy() {
+		return fsyncPolicy;
+	}
+
+	public static void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+		Node.fsyncPolicy = fsyncPolicy;
+	}
+
+	/**
+	 * @return the port that node with serialId listens to.
+	 */
+	public static int portOf(int serialId) {
+		return defaultPort + serialId;
 	}
 
 	public Node getPrevious() {
@@ -294,19 +1132,19 @@ public class Node extends Thread implements Serializable {
 		this.serialId = serialId;
 	}
 
-	public Hashtable<String, String> getReplHashTable() {
+	public MerkleStore getReplHashTable() {
 		return replHashTable;
 	}
 
-	public void setReplHashTable(Hashtable<String, String> replHashTable) {
-		this.replHashTable = replHashTable;
+	public void setReplHashTable(Store replHashTable) {
+		this.replHashTable = new MerkleStore(replHashTable);
 	}
 
-	public String getNodeId() {
+	public ChordId getNodeId() {
 		return nodeId;
 	}
 
-	public void setNodeId(String nodeId) {
+	public void setNodeId(ChordId nodeId) {
 		this.nodeId = nodeId;
 	}
 
@@ -318,12 +1156,47 @@ public class Node extends Thread implements Serializable {
 		this.port = port;
 	}
 
-	public Hashtable<String, String> getHashTable() {
+	public MerkleStore getHashTable() {
 		return hashTable;
 	}
 
-	public void setHashTable(Hashtable<String, String> hashTable) {
-		this.hashTable = hashTable;
+	public void setHashTable(Store hashTable) {
+		this.hashTable = new MerkleStore(hashTable);
+	}
+
+	public ConnectionPool getPool() {
+		return pool;
+	}
+
+	public BulkTransfer getTransfers() {
+		return transfers;
+	}
+
+	public ReplicationLog getReplicationLog() {
+		return replicationLog;
+	}
+
+	public AntiEntropy getAntiEntropy() {
+		return antiEntropy;
+	}
+
+	public MultiOps getMultiOps() {
+		return multiOps;
+	}
+
+	/**
+	 * @return the write-ahead log of the stores, or null.
+	 */
+	public WriteAheadLog getWal() {
+		return wal;
+	}
+
+	public NodeMetrics getMetrics() {
+		return metrics;
+	}
+
+	public FailureDetector getFailureDetector() {
+		return detector;
 	}
 
 	public Listener getListener() {
@@ -348,24 +1221,166 @@ public class Node extends Thread implements Serializable {
 
 	public void terminate() {
 		running = false;
+		metrics.unregister();
+		if (wal != null) {
+			wal.close();
+		}
 	}
 
 	public boolean getRunning() {
 		return running;
 	}
 	
-	/*
-	 *@return returns true if the lock is available at the time of invocation.
-	 *Otherwise returns false. 
+	/**
+	 * Applies a write of the chain this node is head of. value null deletes the key. The version
+	 * is taken and the store changed atomically per key, so versions follow the order of the
+	 * writes in the store.
+	 *
+	 * @return the version of the write.
 	 */
-	public boolean getLock(){
-		return lock.tryLock();
+	public long write(ChordId key, String value) {
+		long waitFrom = System.nanoTime();
+		return versions.compute(key, (k, current) -> {
+			metrics.lockWait(System.nanoTime() - waitFrom);
+			if (value == null) {
+				hashTable.remove(key);
+			} else {
+				hashTable.put(key, value);
+			}
+			return versionSeq.incrementAndGet();
+		});
 	}
-	
-	public void releaseLock(){
-		//lock.unlock();
-		lock =  new ReentrantLock();
-		
+
+	/**
+	 * Applies a write that comes down the chain, if it is newer than what the replica of key
+	 * already has. Writes of a key may overtake each other on the way, an older one is dropped.
+	 *
+	 * @return false if the write is a delete of a key the replica does not have.
+	 */
+	public boolean writeR(ChordId key, String value, long version) {
+		boolean[] res = { true };
+		long waitFrom = System.nanoTime();
+		replVersions.compute(key, (k, current) -> {
+			metrics.lockWait(System.nanoTime() - waitFrom);
+			if (current != null && current >= version) {
+				return current;
+			}
+			if (value == null) {
+				res[0] = replHashTable.remove(key) != null;
+			} else {
+				replHashTable.put(key, value);
+			}
+			return version;
+		});
+		return res[0];
+	}
+
+	/**
+	 * The tail has applied version of key, so it is clean here up to that version. If that was a
+	 * delete nothing is left to order the writes of the key against: its versions are dropped,
+	 * the next write of it gets a new one from the head.
+	 */
+	public void commit(ChordId key, long version) {
+		committed.merge(key, version, Math::max);
+		boolean gone = dropDeleted(key, version, versions, hashTable);
+		gone &= dropDeleted(key, version, replVersions, replHashTable);
+		if (gone) {
+			committed.remove(key, version);
+		}
+	}
+
+	/**
+	 * @return true if vers has no version of key left.
+	 */
+	private boolean dropDeleted(ChordId key, long version, ConcurrentHashMap<ChordId, Long> vers, Store store) {
+		return vers.computeIfPresent(key, (k, current) -> (current == version && store.get(k) == null) ? null
+				: current) == null;
+	}
+
+	/**
+	 * CRAQ read of a key this node heads. A key is clean if the tail has acked its last write
+	 * here, or if this node has not written it at all.
+	 *
+	 * @return the value of key (null val if missing) if the key is clean, null if a write of it
+	 * is still in the chain.
+	 */
+	public Data readClean(ChordId key) {
+		return readClean(key, versions, hashTable, true);
+	}
+
+	/**
+	 * Same as readClean, for a key this node replicates. A key never written here is not known
+	 * to be clean.
+	 */
+	public Data readCleanR(ChordId key) {
+		return readClean(key, replVersions, replHashTable, false);
+	}
+
+	/* the value is read while the version of key is locked, so a write cannot slip in between */
+	private Data readClean(ChordId key, ConcurrentHashMap<ChordId, Long> vers, Store store,
+			boolean unknownIsClean) {
+		Data[] res = { null };
+		vers.compute(key, (k, version) -> {
+			if ((version == null && unknownIsClean) || (version != null && version <= getCommitted(key))) {
+				res[0] = new Data(null, store.get(key));
+			}
+			return version;
+		});
+		return res[0];
+	}
+
+	/**
+	 * @return the versions of keys in their order (0 for a key without one), or null in
+	 * eventual mode.
+	 */
+	public long[] versionsOf(Collection<ChordId> keys) {
+		if (!linear) {
+			return null;
+		}
+		long[] res = new long[keys.size()];
+		int i = 0;
+		for (ChordId key : keys) {
+			Long version = versions.get(key);
+			res[i++] = (version == null) ? 0 : version;
+		}
+		return res;
+	}
+
+	/**
+	 * @return the version of the last write this node has headed. Every write of a version up
+	 * to it is in the store.
+	 */
+	public long getLastVersion() {
+		return versionSeq.get();
+	}
+
+	/**
+	 * Removes the replica of key, unless a write of it newer than version has reached this node
+	 * meanwhile.
+	 */
+	public void dropReplica(ChordId key, long version) {
+		if (!linear) {
+			replHashTable.remove(key);
+			return;
+		}
+		replVersions.compute(key, (k, current) -> {
+			if (current != null && current > version) {
+				return current;
+			}
+			replHashTable.remove(k);
+			return null;
+		});
+		if (!versions.containsKey(key) && !replVersions.containsKey(key)) {
+			committed.remove(key);
+		}
+	}
+
+	/**
+	 * @return the last version of key the tail has acked, or 0 if none.
+	 */
+	public long getCommitted(ChordId key) {
+		Long version = committed.get(key);
+		return (version == null) ? 0 : version;
 	}
 
 	public boolean isLinear(){
@@ -387,6 +1402,16 @@ public class Node extends Thread implements Serializable {
 
 	@Override
 	public void run() {
+		//the first registration starts the MBean server, which takes a while: not before we listen
+		CompletableFuture.runAsync(metrics::register);
+		startStabilizer();
+		if (wal != null) {
+			wal.start();
+		}
+		if (!linear) {
+			replicationLog.start();
+		}
+		antiEntropy.start();
 		listener.listen();
 		//System.out.println("[NODE" + serialId + "] exiting run.");
 	}
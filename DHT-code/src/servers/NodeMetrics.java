@@ -0,0 +1,247 @@
+package servers;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import structures.MessageType;
+import tools.LatencyHistogram;
+import tools.Log;
+
+/**
+ * Counters and latencies of a node. Everything is recorded without locks (LongAdders and
+ * histograms of atomic counts), so the handlers can update them on every message. The node
+ * registers them with JMX as DHTChord:type=Node,name=Node<serialId> while it runs.
+ */
+public class NodeMetrics implements NodeMetricsMBean {
+
+	private static final MessageType[] TYPES = MessageType.values();
+	private static final int MAX_HOPS = 32; /* more hops count as MAX_HOPS */
+
+	private Node master;
+	private ObjectName name;
+
+	private LongAdder[] received = adders(TYPES.length); /* by type */
+	private LongAdder[] sent = adders(TYPES.length);
+	private LongAdder bytesReceived = new LongAdder();
+	private LongAdder bytesSent = new LongAdder();
+	private LongAdder forwarded = new LongAdder(); /* requests routed on to a finger */
+	private LongAdder[] hops = adders(MAX_HOPS + 1); /* requests by the hops they took to get here */
+	private LongAdder promoted = new LongAdder(); /* replicas that became keys of the node on a failure */
+	private AtomicInteger activeHandlers = new AtomicInteger();
+
+	private LatencyHistogram queueWait = new LatencyHistogram(); /* received until a worker runs it */
+	private LatencyHistogram handlerTime = new LatencyHistogram(); /* run time of a handler */
+	private LatencyHistogram lockWait = new LatencyHistogram(); /* wait for the version lock of a key */
+
+	public NodeMetrics(Node master) {
+		this.master = master;
+	}
+
+	public void received(MessageType type, int bytes) {
+		received[type.ordinal()].increment();
+		bytesReceived.add(bytes);
+	}
+
+	public void sent(MessageType type, int bytes) {
+		sent[type.ordinal()].increment();
+		bytesSent.add(bytes);
+	}
+
+	public void forwarded() {
+		forwarded.increment();
+	}
+
+	public void promoted(int keys) {
+		promoted.add(keys);
+	}
+
+	/**
+	 * Counts a request that reached the node that answers it after n hops.
+	 */
+	public void hops(int n) {
+		hops[Math.min(Math.max(n, 0), MAX_HOPS)].increment();
+	}
+
+	/**
+	 * A worker starts a handler that was queued at queuedAt (System.nanoTime()).
+	 *
+	 * @return the start time, for handlerDone().
+	 */
+	public long handlerStarted(long queuedAt) {
+		long now = System.nanoTime();
+		queueWait.record(now - queuedAt);
+		activeHandlers.incrementAndGet();
+		return now;
+	}
+
+	public void handlerDone(long startedAt) {
+		activeHandlers.decrementAndGet();
+		handlerTime.record(System.nanoTime() - startedAt);
+	}
+
+	public void lockWait(long nanos) {
+		lockWait.record(nanos);
+	}
+
+	/**
+	 * Makes the metrics visible through the platform MBean server, until the node terminates.
+	 */
+	public synchronized void register() {
+		if (!master.getRunning()) {
+			return;
+		}
+		try {
+			name = new ObjectName("DHTChord:type=Node,name=Node" + master.getSerialId());
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (JMException e) {
+			Log.warn("[NODE{}] metrics not registered with JMX", master.getSerialId(), e);
+		}
+	}
+
+	public synchronized void unregister() {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			//not registered any more
+		}
+		name = null;
+	}
+
+	@Override
+	public long getReceived() {
+		return sum(received);
+	}
+
+	@Override
+	public long getSent() {
+		return sum(sent);
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	@Override
+	public long getForwarded() {
+		return forwarded.sum();
+	}
+
+	@Override
+	public long getPromoted() {
+		return promoted.sum();
+	}
+
+	@Override
+	public double getMeanHops() {
+		long n = 0, total = 0;
+		for (int i = 0; i <= MAX_HOPS; i++) {
+			long c = hops[i].sum();
+			n += c;
+			total += c * i;
+		}
+		return (n == 0) ? 0 : (double) total / n;
+	}
+
+	@Override
+	public int getActiveHandlers() {
+		return activeHandlers.get();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return master.getListener().getQueueDepth();
+	}
+
+	@Override
+	public int getStoreSize() {
+		return master.getHashTable().size();
+	}
+
+	@Override
+	public int getReplicaSize() {
+		return master.getReplHashTable().size();
+	}
+
+	@Override
+	public double getQueueWaitP99() {
+		return queueWait.getPercentile(99) / 1000.0;
+	}
+
+	@Override
+	public double getHandlerP99() {
+		return handlerTime.getPercentile(99) / 1000.0;
+	}
+
+	@Override
+	public double getLockWaitP99() {
+		return lockWait.getPercentile(99) / 1000.0;
+	}
+
+	@Override
+	public String dump() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Node%d port=%d keys=%d replicas=%d handlers=%d queue=%d%n", master.getSerialId(),
+				master.getPort(), getStoreSize(), getReplicaSize(), getActiveHandlers(), getQueueDepth()));
+		sb.append(String.format("  bytes received=%d sent=%d forwarded=%d mean hops=%.2f promoted=%d%n",
+				getBytesReceived(), getBytesSent(), getForwarded(), getMeanHops(), getPromoted()));
+		sb.append("  hops");
+		for (int i = 0; i <= MAX_HOPS; i++) {
+			long c = hops[i].sum();
+			if (c != 0) {
+				sb.append(' ').append(i).append(i == MAX_HOPS ? "+" : "").append(':').append(c);
+			}
+		}
+		sb.append(String.format("%n  %-12s %10s %10s%n", "type", "received", "sent"));
+		for (MessageType type : TYPES) {
+			long in = received[type.ordinal()].sum();
+			long out = sent[type.ordinal()].sum();
+			if (in != 0 || out != 0) {
+				sb.append(String.format("  %-12s %10d %10d%n", type, in, out));
+			}
+		}
+		sb.append(String.format("  %-12s %10s %10s %10s %10s%n", "latency_us", "count", "p50", "p99", "max"));
+		latency(sb, "queue wait", queueWait);
+		latency(sb, "handler", handlerTime);
+		latency(sb, "lock wait", lockWait);
+		return sb.toString();
+	}
+
+	private static void latency(StringBuilder sb, String name, LatencyHistogram h) {
+		sb.append(String.format("  %-12s %10d %10.1f %10.1f %10.1f%n", name, h.getCount(), h.getPercentile(50) / 1000.0,
+				h.getPercentile(99) / 1000.0, h.getMax() / 1000.0));
+	}
+
+	private static LongAdder[] adders(int n) {
+		LongAdder[] adders = new LongAdder[n];
+		for (int i = 0; i < n; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+	private static long sum(LongAdder[] adders) {
+		long total = 0;
+		for (LongAdder a : adders) {
+			total += a.sum();
+		}
+		return total;
+	}
+}
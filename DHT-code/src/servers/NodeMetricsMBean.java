@@ -0,0 +1,40 @@
+package servers;
+
+/**
+ * What JMX shows of the NodeMetrics of a node. Latencies are in microseconds.
+ */
+public interface NodeMetricsMBean {
+
+	long getReceived();
+
+	long getSent();
+
+	long getBytesReceived();
+
+	long getBytesSent();
+
+	long getForwarded();
+
+	long getPromoted();
+
+	double getMeanHops();
+
+	int getActiveHandlers();
+
+	int getQueueDepth();
+
+	int getStoreSize();
+
+	int getReplicaSize();
+
+	double getQueueWaitP99();
+
+	double getHandlerP99();
+
+	double getLockWaitP99();
+
+	/**
+	 * @return all the metrics as text, as the stats command of the emulator prints them.
+	 */
+	String dump();
+}
@@ -0,0 +1,161 @@
+package servers;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import structures.Message;
+import structures.MessageType;
+import tools.ChordId;
+import tools.Log;
+
+/**
+ * Replica updates of an eventual node waiting to be shipped to its successor. A handler replies
+ * to the client as soon as the primary write is done and only appends the write here. Writes to
+ * the same key are coalesced, so only the last one travels. The log is shipped as one REPLICATE
+ * message per ttl every flushPeriod, or as soon as batchSize writes are waiting.
+ *
+ * A node keeps one log, not one per replica: it ships only to its successor. A replica applies
+ * a REPLICATE and queues its writes again in its own log for the rest of the chain (ttl - 1),
+ * the way a TRANSFERR travels. So each node of the chain is fed by the log of the node before
+ * it, and a slow replica only holds up those after it.
+ *
+ * A primary write and its append are not one step, so two writes of a key can reach the log in
+ * the other order than the store. The handlers therefore append the key only and the log reads
+ * its value from the store under its own lock: whichever append comes last carries the value the
+ * store kept.
+ */
+public class ReplicationLog {
+
+	private static long flushPeriod = 50; /* ms */
+	private static int batchSize = 256; /* writes that trigger a flush before the timer */
+
+	private Node master;
+	private Timer timer;
+	private Map<Integer, Map<ChordId, String>> pending; /* ttl -> key -> value (null deletes) */
+	private int size;
+	private boolean flushScheduled;
+	private Object flushLock = new Object(); /* one flush at a time, so batches leave in order */
+
+	public ReplicationLog(Node master) {
+		this.master = master;
+		pending = new HashMap<>();
+	}
+
+	public void start() {
+		timer = new Timer("Node" + master.getSerialId() + "-replication", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				if (!master.getRunning()) {
+					cancel();
+					return;
+				}
+				flush();
+			}
+		}, flushPeriod, flushPeriod);
+	}
+
+	/**
+	 * Queues a write of key for the next ttl nodes of the chain. value null deletes the key.
+	 */
+	public void append(ChordId key, String value, int ttl) {
+		add(key, value, false, ttl);
+	}
+
+	/**
+	 * Queues the value key has in the store of master now, or its delete if it has none, for the
+	 * next ttl nodes of the chain. Called after a primary write of key.
+	 */
+	public void appendLatest(ChordId key, int ttl) {
+		add(key, null, true, ttl);
+	}
+
+	private void add(ChordId key, String value, boolean latest, int ttl) {
+		boolean full;
+		synchronized (this) {
+			if (latest) {
+				value = master.query(key);
+			}
+			Map<ChordId, String> writes = pending.get(ttl);
+			if (writes == null) {
+				writes = new LinkedHashMap<>();
+				pending.put(ttl, writes);
+			}
+			if (!writes.containsKey(key)) {
+				size++;
+			}
+			writes.put(key, value);
+			full = size >= batchSize && !flushScheduled && timer != null;
+			if (full) {
+				flushScheduled = true;
+			}
+		}
+		if (full) {
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, 0);
+		}
+	}
+
+	/**
+	 * Ships everything waiting to the current successor. If that fails the writes are kept,
+	 * unless newer writes of the same keys have come in meanwhile.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			Map<Integer, Map<ChordId, String>> batch;
+			synchronized (this) {
+				flushScheduled = false;
+				if (size == 0) {
+					return;
+				}
+				batch = pending;
+				pending = new HashMap<>();
+				size = 0;
+			}
+
+			for (Map.Entry<Integer, Map<ChordId, String>> group : batch.entrySet()) {
+				Message mes = new Message();
+				mes.setFrom(master.getPort());
+				mes.setReplyTo(-1);
+				mes.setReplFactor(group.getKey());
+				mes.setType(MessageType.REPLICATE);
+				mes.setEntries(group.getValue());
+				try {
+					master.sendToNext(mes);
+				} catch (IOException e) {
+					Log.warn("[NODE{}] sending {} failed", master.getSerialId(), mes.getType(), e);
+					requeue(group.getKey(), group.getValue());
+				}
+			}
+		}
+	}
+
+	private synchronized void requeue(int ttl, Map<ChordId, String> writes) {
+		for (Map.Entry<ChordId, String> e : writes.entrySet()) {
+			Map<ChordId, String> newer = pending.get(ttl);
+			if (newer == null) {
+				newer = new LinkedHashMap<>();
+				pending.put(ttl, newer);
+			}
+			if (!newer.containsKey(e.getKey())) {
+				newer.put(e.getKey(), e.getValue());
+				size++;
+			}
+		}
+	}
+
+	/**
+	 * @return number of writes waiting.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+}
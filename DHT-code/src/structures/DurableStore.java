@@ -0,0 +1,140 @@
+package structures;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import tools.ChordId;
+
+/**
+ * Store that logs every write of another store to a WriteAheadLog. A write and its append are
+ * done under a lock of the key (one of a few stripes), so the log has the writes of a key in
+ * the order of the store, and under the applyLock() of the log, so a snapshot does not rotate
+ * the log between the two. A bulk write waits for the log once, after its last append.
+ *
+ * A write is appended before it is applied, so one the log refuses throws UncheckedIOException
+ * and leaves the store as it was. A write whose record is then not made durable (a failed fsync
+ * under FsyncPolicy.SYNC) throws as well, though the store already has it.
+ */
+public class DurableStore implements Store {
+
+	private static final int STRIPES = 64;
+
+	private Store store;
+	private WriteAheadLog wal;
+	private int id; /* of store in wal */
+	private Object[] stripes;
+
+	public DurableStore(Store store, WriteAheadLog wal, int id) {
+		this.store = store;
+		this.wal = wal;
+		this.id = id;
+		stripes = new Object[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Object();
+		}
+	}
+
+	@Override
+	public String get(ChordId key) {
+		return store.get(key);
+	}
+
+	@Override
+	public String put(ChordId key, String value) {
+		String previous;
+		long seq;
+		synchronized (stripe(key)) {
+			Lock applying = wal.applyLock();
+			applying.lock();
+			try {
+				seq = wal.append(id, key, value);
+				previous = store.put(key, value);
+			} finally {
+				applying.unlock();
+			}
+		}
+		wal.commit(seq);
+		return previous;
+	}
+
+	@Override
+	public String remove(ChordId key) {
+		long seq;
+		String previous;
+		synchronized (stripe(key)) {
+			if (store.get(key) == null) {
+				return null;
+			}
+			Lock applying = wal.applyLock();
+			applying.lock();
+			try {
+				seq = wal.append(id, key, null);
+				previous = store.remove(key);
+			} finally {
+				applying.unlock();
+			}
+		}
+		wal.commit(seq);
+		return previous;
+	}
+
+	@Override
+	public int size() {
+		return store.size();
+	}
+
+	@Override
+	public Iterable<Map.Entry<ChordId, String>> range(ChordId lo, boolean loInclusive, ChordId hi,
+			boolean hiInclusive) {
+		return store.range(lo, loInclusive, hi, hiInclusive);
+	}
+
+	@Override
+	public void putAll(Map<ChordId, String> entries) {
+		long seq = -1;
+		for (Map.Entry<ChordId, String> e : entries.entrySet()) {
+			synchronized (stripe(e.getKey())) {
+				Lock applying = wal.applyLock();
+				applying.lock();
+				try {
+					seq = wal.append(id, e.getKey(), e.getValue());
+					store.put(e.getKey(), e.getValue());
+				} finally {
+					applying.unlock();
+				}
+			}
+		}
+		wal.commit(seq);
+	}
+
+	@Override
+	public Map<ChordId, String> extract(ChordId from, ChordId to) {
+		Map<ChordId, String> entries = new LinkedHashMap<>();
+		long[] seq = { -1 };
+		store.forEach(from, to, (key, value) -> {
+			synchronized (stripe(key)) {
+				if (store.get(key) != null) {
+					Lock applying = wal.applyLock();
+					applying.lock();
+					try {
+						seq[0] = wal.append(id, key, null);
+						entries.put(key, store.remove(key));
+					} finally {
+						applying.unlock();
+					}
+				}
+			}
+		});
+		wal.commit(seq[0]);
+		return entries;
+	}
+
+	public WriteAheadLog getLog() {
+		return wal;
+	}
+
+	private Object stripe(ChordId key) {
+		return stripes[key.hashCode() & (STRIPES - 1)];
+	}
+}
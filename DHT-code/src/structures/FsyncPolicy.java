@@ -0,0 +1,11 @@
+package structures;
+
+/**
+ * When the writes of a WriteAheadLog reach the disk.
+ */
+public enum FsyncPolicy {
+
+	SYNC, /* a write returns once it is forced to disk, concurrent writes share one fsync */
+	BATCHED, /* the log is forced every flush period, a crash loses at most that much */
+	ASYNC; /* the log is handed to the OS every flush period and never forced */
+}
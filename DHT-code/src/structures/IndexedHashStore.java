@@ -0,0 +1,130 @@
+package structures;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import tools.ChordId;
+
+/**
+ * Store on a ConcurrentHashMap with a sorted index of its keys. Gets are a lock-free hash
+ * lookup and never touch the index, which is only walked for ranges (handoffs, scans, merkle
+ * trees). A put of a new key or a remove updates the index while it holds the lock of the key's
+ * bin in the map, so the index always has every key of the map. It may list a key for a moment
+ * after the key is gone, ranges skip such keys.
+ */
+public class IndexedHashStore implements Store {
+
+	private ConcurrentHashMap<ChordId, String> map = new ConcurrentHashMap<>();
+	private ConcurrentSkipListSet<ChordId> index = new ConcurrentSkipListSet<>();
+
+	@Override
+	public String get(ChordId key) {
+		return map.get(key);
+	}
+
+	@Override
+	public String put(ChordId key, String value) {
+		String[] previous = { null };
+		map.compute(key, (k, old) -> {
+			if (old == null) {
+				index.add(k);
+			}
+			previous[0] = old;
+			return value;
+		});
+		return previous[0];
+	}
+
+	@Override
+	public String remove(ChordId key) {
+		String[] previous = { null };
+		map.computeIfPresent(key, (k, old) -> {
+			index.remove(k);
+			previous[0] = old;
+			return null;
+		});
+		return previous[0];
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	public Iterable<Map.Entry<ChordId, String>> range(ChordId lo, boolean loInclusive, ChordId hi,
+			boolean hiInclusive) {
+		NavigableSet<ChordId> keys = index;
+		if (lo != null && hi != null) {
+			int cmp = lo.compareTo(hi);
+			if (cmp > 0 || (cmp == 0 && !(loInclusive && hiInclusive))) {
+				return Collections.emptyList();
+			}
+			keys = index.subSet(lo, loInclusive, hi, hiInclusive);
+		} else if (lo != null) {
+			keys = index.tailSet(lo, loInclusive);
+		} else if (hi != null) {
+			keys = index.headSet(hi, hiInclusive);
+		}
+		final NavigableSet<ChordId> view = keys;
+		return () -> new Entries(view.iterator());
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for (Map.Entry<ChordId, String> e : range(null, false, null, false)) {
+			if (sb.length() > 1) {
+				sb.append(", ");
+			}
+			sb.append(e.getKey()).append('=').append(e.getValue());
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * The entries of the keys of an index view that are still in the map.
+	 */
+	private class Entries implements Iterator<Map.Entry<ChordId, String>> {
+
+		private Iterator<ChordId> keys;
+		private Map.Entry<ChordId, String> next;
+
+		Entries(Iterator<ChordId> keys) {
+			this.keys = keys;
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			while (next == null && keys.hasNext()) {
+				ChordId key = keys.next();
+				String value = map.get(key);
+				if (value != null) {
+					next = new AbstractMap.SimpleImmutableEntry<>(key, value);
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<ChordId, String> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<ChordId, String> e = next;
+			advance();
+			return e;
+		}
+	}
+}
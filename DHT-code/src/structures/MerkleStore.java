@@ -0,0 +1,102 @@
+package structures;
+
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import tools.ChordId;
+import tools.MerkleTree;
+
+/**
+ * Store that keeps merkle trees over ranges of another store up to date, for anti-entropy. Every
+ * write touches the bucket of its key in the trees that cover it, after it is applied, so a tree
+ * only reads back the buckets written since its last refresh. A tree that has not been asked for
+ * in idle ms is dropped, eg. the range is no longer ours to compare.
+ */
+public class MerkleStore implements Store {
+
+	private Store store;
+	private CopyOnWriteArrayList<MerkleTree> trees = new CopyOnWriteArrayList<>();
+
+	public MerkleStore(Store store) {
+		this.store = store;
+	}
+
+	/**
+	 * @return a copy of the tree of the entries in (from, to] as they are now. The tree is kept
+	 * from then on, the first call reads the whole range.
+	 */
+	public MerkleTree tree(ChordId from, ChordId to, int depth, long idle) {
+		MerkleTree tree;
+		synchronized (this) {
+			long stale = System.currentTimeMillis() - idle;
+			trees.removeIf(t -> t.getRefreshed() < stale);
+			tree = null;
+			for (MerkleTree t : trees) {
+				if (t.getDepth() == depth && t.getFrom().equals(from) && t.getTo().equals(to)) {
+					tree = t;
+					break;
+				}
+			}
+			if (tree == null) {
+				tree = MerkleTree.track(from, to, depth);
+				trees.add(tree);
+			}
+		}
+		return tree.refresh(store);
+	}
+
+	@Override
+	public String get(ChordId key) {
+		return store.get(key);
+	}
+
+	@Override
+	public String put(ChordId key, String value) {
+		String previous = store.put(key, value);
+		touch(key);
+		return previous;
+	}
+
+	@Override
+	public String remove(ChordId key) {
+		String previous = store.remove(key);
+		if (previous != null) {
+			touch(key);
+		}
+		return previous;
+	}
+
+	@Override
+	public int size() {
+		return store.size();
+	}
+
+	@Override
+	public Iterable<Map.Entry<ChordId, String>> range(ChordId lo, boolean loInclusive, ChordId hi,
+			boolean hiInclusive) {
+		return store.range(lo, loInclusive, hi, hiInclusive);
+	}
+
+	@Override
+	public void putAll(Map<ChordId, String> entries) {
+		store.putAll(entries);
+		for (ChordId key : entries.keySet()) {
+			touch(key);
+		}
+	}
+
+	@Override
+	public Map<ChordId, String> extract(ChordId from, ChordId to) {
+		Map<ChordId, String> entries = store.extract(from, to);
+		for (ChordId key : entries.keySet()) {
+			touch(key);
+		}
+		return entries;
+	}
+
+	private void touch(ChordId key) {
+		for (MerkleTree tree : trees) {
+			tree.touch(key);
+		}
+	}
+}
@@ -1,22 +1,42 @@
 package structures;
 
 import java.io.Serializable;
+import java.util.Map;
+
+import tools.ChordId;
 
 public class Message implements Serializable {
 
+	private long requestId; /* tags the request, replies carry the same id */
 	private int initialPort;
 	private int from;
 	private int to;
 	private int replyTo;
-	private boolean hashed = false;
 	private int replFactor = 1;
 	private MessageType type;
 	private Data data;
+	private ChordId keyId; /* hash of the key, computed once by the node that first gets the request */
+	private Map<ChordId, String> entries; /* key range of a TRANSFER/TRANSFERR, writes of a REPLICATE, keys of a MULTI* */
+	private boolean compressed; /* entries are deflated on the wire */
+	private ChordId rangeStart; /* a SYNC/REPAIR/SCAN is about the keys in (rangeStart, keyId] */
+	private int limit; /* most entries of a SCAN page */
+	private long[] digests; /* merkle (node, digest) pairs of a SYNC, buckets of a REPAIR */
+	private int hops; /* times a request was routed on to another node, replies carry it back */
 	
 	// Linearizability
 	private int responsiblePort;
+	private long version; /* order of a write of the key, given by the head of the chain */
+	private long[] entryVersions; /* versions of the entries of a TRANSFER/TRANSFERR, in their order */
 	
 	
+	public long getRequestId() {
+		return requestId;
+	}
+
+	public void setRequestId(long requestId) {
+		this.requestId = requestId;
+	}
+
 	public int getInitialPort() {
 		return initialPort;
 	}
@@ -65,19 +85,74 @@ public class Message implements Serializable {
 		this.data = data;
 	}
 
-	public boolean isHashed() {
-		return hashed;
+	public ChordId getKeyId() {
+		return keyId;
 	}
 
-	public void setHashed(boolean hashed) {
-		this.hashed = hashed;
+	public void setKeyId(ChordId keyId) {
+		this.keyId = keyId;
+	}
+
+	public Map<ChordId, String> getEntries() {
+		return entries;
+	}
+
+	public void setEntries(Map<ChordId, String> entries) {
+		this.entries = entries;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	public ChordId getRangeStart() {
+		return rangeStart;
+	}
+
+	public void setRangeStart(ChordId rangeStart) {
+		this.rangeStart = rangeStart;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	public long[] getDigests() {
+		return digests;
+	}
+
+	public void setDigests(long[] digests) {
+		this.digests = digests;
+	}
+
+	public long[] getEntryVersions() {
+		return entryVersions;
+	}
+
+	public void setEntryVersions(long[] entryVersions) {
+		this.entryVersions = entryVersions;
+	}
+
+	public boolean isHashed() {
+		return keyId != null;
 	}
 
 	@Override
 	public String toString() {
-		return "Message [initialPort=" + initialPort + ", from=" + from + ", to=" + to + ", replyTo=" + replyTo
-				+ ", hashed=" + hashed + ", replFactor=" + replFactor + ", type=" + type + ", data=" + data
-				+ ", responsiblePort=" + responsiblePort + "]";
+		return "Message [requestId=" + requestId + ", initialPort=" + initialPort + ", from=" + from + ", to=" + to + ", replyTo=" + replyTo
+				+ ", keyId=" + keyId + ", replFactor=" + replFactor + ", type=" + type + ", data=" + data
+				+ ", responsiblePort=" + responsiblePort + ", version=" + version + ", hops=" + hops
+				+ ((entries != null) ? ", entries=" + entries.size() : "")
+				+ ((rangeStart != null) ? ", rangeStart=" + rangeStart + ", limit=" + limit
+						+ ", digests=" + ((digests != null) ? digests.length : 0) : "") + "]";
 	}
 	
 	public int getReplFactor() {
@@ -88,6 +163,22 @@ public class Message implements Serializable {
 		this.replFactor = replFactor;
 	}
 
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public int getHops() {
+		return hops;
+	}
+
+	public void setHops(int hops) {
+		this.hops = hops;
+	}
+
 	public int getResponsiblePort() {
 		return responsiblePort;
 	}
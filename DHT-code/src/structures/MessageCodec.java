@@ -0,0 +1,383 @@
+package structures;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import tools.ChordId;
+
+/**
+ * Binary wire format of Message. Layout:
+ *
+ * version(1) type(1) flags(varint) requestId(varlong) initialPort from to replyTo replFactor
+ * responsiblePort (zigzag varints) version(varlong) hops(varint) [keyId(20)] [key] [val]
+ * [entries: count (id(20) hasVal(1) [val])*]
+ * [join: joinId nodeId(20) address port]
+ * [range: rangeStart(20) limit count digest(8)*]
+ * [entry versions: count version(varlong)*]
+ *
+ * The hash of the key travels as the raw 20 bytes of the sha1 digest, strings are written as a
+ * varint length followed by their UTF-8 bytes. Compressed entries are written as their raw length,
+ * the deflated length and the deflated bytes.
+ **/
+public class MessageCodec {
+
+	public static final byte VERSION = 3;
+
+	private static final int MAX_VARINT = 5;
+	private static final int MAX_VARLONG = 10;
+
+	private static final int FLAG_HASHED = 1;
+	private static final int FLAG_DATA = 2;
+	private static final int FLAG_KEY = 4;
+	private static final int FLAG_VAL = 8;
+	private static final int FLAG_ENTRIES = 16;
+	private static final int FLAG_JOIN = 32;
+	private static final int FLAG_COMPRESSED = 64;
+	private static final int FLAG_RANGE = 128;
+	private static final int FLAG_VERSIONS = 256;
+
+	private static final Charset UTF8 = StandardCharsets.UTF_8;
+	private static final MessageType[] TYPES = MessageType.values();
+
+	/**
+	 * @return an upper bound of the bytes needed to encode mes.
+	 */
+	public static int maxSize(Message mes) {
+		int size = 2 + 2 * MAX_VARLONG + 8 * MAX_VARINT + ChordId.BYTES;
+		Data data = mes.getData();
+		if (data != null) {
+			if (data.getKey() != null) {
+				size += MAX_VARINT + 3 * data.getKey().length();
+			}
+			if (data.getVal() != null) {
+				size += MAX_VARINT + 3 * data.getVal().length();
+			}
+		}
+		if (mes.getEntries() != null) {
+			int raw = entriesSize(mes.getEntries());
+			size += mes.isCompressed() ? 2 * MAX_VARINT + deflateBound(raw) : raw;
+		}
+		if (mes instanceof MessageJoin) {
+			size += 2 * MAX_VARINT + ChordId.BYTES + MAX_VARINT + 3 * ((MessageJoin) mes).getAddress().length();
+		}
+		if (mes.getRangeStart() != null) {
+			size += ChordId.BYTES + 2 * MAX_VARINT + ((mes.getDigests() != null) ? 8 * mes.getDigests().length : 0);
+		}
+		if (mes.getEntryVersions() != null) {
+			size += MAX_VARINT + MAX_VARLONG * mes.getEntryVersions().length;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes mes at the current position of buf, which must have at least maxSize(mes) bytes
+	 * remaining.
+	 */
+	public static void encode(Message mes, ByteBuffer buf) {
+		Data data = mes.getData();
+		int flags = 0;
+		if (mes.isHashed()) {
+			flags |= FLAG_HASHED;
+		}
+		if (data != null) {
+			flags |= FLAG_DATA;
+			if (data.getKey() != null) {
+				flags |= FLAG_KEY;
+			}
+			if (data.getVal() != null) {
+				flags |= FLAG_VAL;
+			}
+		}
+		if (mes.getEntries() != null) {
+			flags |= FLAG_ENTRIES;
+			if (mes.isCompressed()) {
+				flags |= FLAG_COMPRESSED;
+			}
+		}
+		if (mes instanceof MessageJoin) {
+			flags |= FLAG_JOIN;
+		}
+		if (mes.getRangeStart() != null) {
+			flags |= FLAG_RANGE;
+		}
+		if (mes.getEntryVersions() != null) {
+			flags |= FLAG_VERSIONS;
+		}
+
+		buf.put(VERSION);
+		buf.put((byte) mes.getType().ordinal());
+		putVarInt(buf, flags);
+		putVarLong(buf, mes.getRequestId());
+		putVarInt(buf, zigzag(mes.getInitialPort()));
+		putVarInt(buf, zigzag(mes.getFrom()));
+		putVarInt(buf, zigzag(mes.getTo()));
+		putVarInt(buf, zigzag(mes.getReplyTo()));
+		putVarInt(buf, zigzag(mes.getReplFactor()));
+		putVarInt(buf, zigzag(mes.getResponsiblePort()));
+		putVarLong(buf, mes.getVersion());
+		putVarInt(buf, mes.getHops());
+
+		if ((flags & FLAG_HASHED) != 0) {
+			mes.getKeyId().writeTo(buf);
+		}
+		if ((flags & FLAG_KEY) != 0) {
+			putString(buf, data.getKey());
+		}
+		if ((flags & FLAG_VAL) != 0) {
+			putString(buf, data.getVal());
+		}
+		if ((flags & FLAG_COMPRESSED) != 0) {
+			putDeflated(buf, mes.getEntries());
+		} else if ((flags & FLAG_ENTRIES) != 0) {
+			putEntries(buf, mes.getEntries());
+		}
+		if ((flags & FLAG_JOIN) != 0) {
+			MessageJoin join = (MessageJoin) mes;
+			putVarInt(buf, join.getJoinId());
+			join.getNodeId().writeTo(buf);
+			putString(buf, join.getAddress());
+			putVarInt(buf, join.getPort());
+		}
+		if ((flags & FLAG_RANGE) != 0) {
+			mes.getRangeStart().writeTo(buf);
+			putVarInt(buf, mes.getLimit());
+			long[] digests = (mes.getDigests() != null) ? mes.getDigests() : new long[0];
+			putVarInt(buf, digests.length);
+			for (long digest : digests) {
+				buf.putLong(digest);
+			}
+		}
+		if ((flags & FLAG_VERSIONS) != 0) {
+			putVarInt(buf, mes.getEntryVersions().length);
+			for (long version : mes.getEntryVersions()) {
+				putVarLong(buf, version);
+			}
+		}
+	}
+
+	/**
+	 * Reads a message starting at the current position of buf. On return buf is positioned
+	 * right after the message.
+	 */
+	public static Message decode(ByteBuffer buf) throws IOException {
+		byte version = buf.get();
+		if (version != VERSION) {
+			throw new IOException("Unsupported message version " + version);
+		}
+		int tag = buf.get();
+		if (tag < 0 || tag >= TYPES.length) {
+			throw new IOException("Unknown message type " + tag);
+		}
+		int flags = getVarInt(buf);
+
+		Message mes = ((flags & FLAG_JOIN) != 0) ? new MessageJoin() : new Message();
+		mes.setType(TYPES[tag]);
+		mes.setRequestId(getVarLong(buf));
+		mes.setInitialPort(unzigzag(getVarInt(buf)));
+		mes.setFrom(unzigzag(getVarInt(buf)));
+		mes.setTo(unzigzag(getVarInt(buf)));
+		mes.setReplyTo(unzigzag(getVarInt(buf)));
+		mes.setReplFactor(unzigzag(getVarInt(buf)));
+		mes.setResponsiblePort(unzigzag(getVarInt(buf)));
+		mes.setVersion(getVarLong(buf));
+		mes.setHops(getVarInt(buf));
+
+		if ((flags & FLAG_HASHED) != 0) {
+			mes.setKeyId(ChordId.readFrom(buf));
+		}
+		if ((flags & FLAG_DATA) != 0) {
+			String key = null;
+			String val = null;
+			if ((flags & FLAG_KEY) != 0) {
+				key = getString(buf);
+			}
+			if ((flags & FLAG_VAL) != 0) {
+				val = getString(buf);
+			}
+			mes.setData(new Data(key, val));
+		}
+		if ((flags & FLAG_COMPRESSED) != 0) {
+			mes.setEntries(getDeflated(buf));
+			mes.setCompressed(true);
+		} else if ((flags & FLAG_ENTRIES) != 0) {
+			mes.setEntries(getEntries(buf));
+		}
+		if ((flags & FLAG_JOIN) != 0) {
+			MessageJoin join = (MessageJoin) mes;
+			join.setJoinId(getVarInt(buf));
+			join.setNodeId(ChordId.readFrom(buf));
+			join.setAddress(getString(buf));
+			join.setPort(getVarInt(buf));
+		}
+		if ((flags & FLAG_RANGE) != 0) {
+			mes.setRangeStart(ChordId.readFrom(buf));
+			mes.setLimit(getVarInt(buf));
+			long[] digests = new long[getVarInt(buf)];
+			for (int i = 0; i < digests.length; i++) {
+				digests[i] = buf.getLong();
+			}
+			mes.setDigests(digests);
+		}
+		if ((flags & FLAG_VERSIONS) != 0) {
+			long[] versions = new long[getVarInt(buf)];
+			for (int i = 0; i < versions.length; i++) {
+				versions[i] = getVarLong(buf);
+			}
+			mes.setEntryVersions(versions);
+		}
+		return mes;
+	}
+
+	private static int entriesSize(Map<ChordId, String> entries) {
+		int size = MAX_VARINT;
+		for (String val : entries.values()) {
+			size += ChordId.BYTES + 1 + ((val == null) ? 0 : MAX_VARINT + 3 * val.length());
+		}
+		return size;
+	}
+
+	private static void putEntries(ByteBuffer buf, Map<ChordId, String> entries) {
+		putVarInt(buf, entries.size());
+		for (Map.Entry<ChordId, String> e : entries.entrySet()) {
+			e.getKey().writeTo(buf);
+			if (e.getValue() == null) {
+				buf.put((byte) 0);
+			} else {
+				buf.put((byte) 1);
+				putString(buf, e.getValue());
+			}
+		}
+	}
+
+	private static Map<ChordId, String> getEntries(ByteBuffer buf) {
+		int count = getVarInt(buf);
+		Map<ChordId, String> entries = new LinkedHashMap<>();
+		for (int i = 0; i < count; i++) {
+			ChordId id = ChordId.readFrom(buf);
+			entries.put(id, (buf.get() == 0) ? null : getString(buf));
+		}
+		return entries;
+	}
+
+	/**
+	 * @return an upper bound of the deflated size of raw bytes (same as zlib's deflateBound).
+	 */
+	private static int deflateBound(int raw) {
+		return raw + (raw >>> 12) + (raw >>> 14) + (raw >>> 25) + 13;
+	}
+
+	private static void putDeflated(ByteBuffer buf, Map<ChordId, String> entries) {
+		ByteBuffer raw = ByteBuffer.allocate(entriesSize(entries));
+		putEntries(raw, entries);
+
+		byte[] out = new byte[deflateBound(raw.position())];
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(raw.array(), 0, raw.position());
+			deflater.finish();
+			int length = deflater.deflate(out);
+			putVarInt(buf, raw.position());
+			putVarInt(buf, length);
+			buf.put(out, 0, length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static Map<ChordId, String> getDeflated(ByteBuffer buf) throws IOException {
+		int rawLength = getVarInt(buf);
+		int length = getVarInt(buf);
+		byte[] in = new byte[length];
+		buf.get(in);
+
+		byte[] raw = new byte[rawLength];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(in);
+			if (inflater.inflate(raw) != rawLength) {
+				throw new IOException("Truncated compressed entries");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Malformed compressed entries", e);
+		} finally {
+			inflater.end();
+		}
+		return getEntries(ByteBuffer.wrap(raw));
+	}
+
+	private static void putString(ByteBuffer buf, String s) {
+		byte[] bytes = s.getBytes(UTF8);
+		putVarInt(buf, bytes.length);
+		buf.put(bytes);
+	}
+
+	private static String getString(ByteBuffer buf) {
+		int length = getVarInt(buf);
+		String s;
+		if (buf.hasArray()) {
+			s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, UTF8);
+			buf.position(buf.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			buf.get(bytes);
+			s = new String(bytes, UTF8);
+		}
+		return s;
+	}
+
+	private static int zigzag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+
+	private static int unzigzag(int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	private static void putVarInt(ByteBuffer buf, int n) {
+		while ((n & ~0x7f) != 0) {
+			buf.put((byte) ((n & 0x7f) | 0x80));
+			n >>>= 7;
+		}
+		buf.put((byte) n);
+	}
+
+	private static int getVarInt(ByteBuffer buf) {
+		int n = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = buf.get();
+			n |= (b & 0x7f) << shift;
+			if (b >= 0) {
+				return n;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	private static void putVarLong(ByteBuffer buf, long n) {
+		while ((n & ~0x7fL) != 0) {
+			buf.put((byte) ((n & 0x7f) | 0x80));
+			n >>>= 7;
+		}
+		buf.put((byte) n);
+	}
+
+	private static long getVarLong(ByteBuffer buf) {
+		long n = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buf.get();
+			n |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return n;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varlong");
+	}
+
+}
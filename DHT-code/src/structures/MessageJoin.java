@@ -1,19 +1,54 @@
-package structures;
-
-import java.io.Serializable;
-
-import servers.Node;
-
-public class MessageJoin extends Message implements Serializable {
-
-	private Node newNode;
-
-	public Node getNewNode() {
-		return newNode;
-	}
-
-	public void setNewNode(Node newNode) {
-		this.newNode = newNode;
-	}
-
-}
+package structures;
+
+import tools.ChordId;
+
+/**
+ * Request of a node to enter the ring. It carries only what the responsible node needs to link
+ * the new node and hand it its range of keys, so its size does not depend on the data of the ring.
+ */
+public class MessageJoin extends Message {
+
+	private int joinId; /* serial id of the joining node */
+	private ChordId nodeId; /* hash id of the joining node */
+	private String address;
+	private int port;
+
+	public int getJoinId() {
+		return joinId;
+	}
+
+	public void setJoinId(int joinId) {
+		this.joinId = joinId;
+	}
+
+	public ChordId getNodeId() {
+		return nodeId;
+	}
+
+	public void setNodeId(ChordId nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public void setAddress(String address) {
+		this.address = address;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	@Override
+	public String toString() {
+		return "MessageJoin [joinId=" + joinId + ", nodeId=" + nodeId + ", address=" + address + ", port=" + port
+				+ ", " + super.toString() + "]";
+	}
+
+}
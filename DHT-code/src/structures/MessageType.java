@@ -4,5 +4,13 @@ public enum MessageType {
 
 	INSERT, QUERY, DELETE, JOIN, DEPART, OK, FAIL,
 	INSERTR, QUERYR, DELETER,
-	UNLOCK;
+	COMMIT, /* tail to head: a write has reached the end of the chain */
+	TRANSFER, TRANSFERR, /* bulk handoff of a key range on join/depart */
+	ACK,
+	REPLICATE, /* batch of replica writes of an eventual node */
+	SYNC, REPAIR, /* anti-entropy: merkle digests of a key range, entries of the buckets that differ */
+	MULTIPUT, MULTIGET, MULTIDELETE, /* batch of keys in entries, split by the nodes on the way */
+	MULTIR, /* results of a part of a batch, sent to the node that coordinates it */
+	SCAN, /* one page of the keys of a node */
+	PING, PONG; /* heartbeats between neighbours */
 }
@@ -0,0 +1,474 @@
+package structures;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import tools.ChordId;
+
+/**
+ * Store that keeps its keys and values outside the java heap, so a node's data costs no object
+ * headers and is never walked by the garbage collector.
+ *
+ * The index is an open addressing (linear probing) hash table in a direct buffer, one slot of
+ * SLOT bytes per key: the 20 bytes of the id, the length of the value and its offset in the data
+ * buffer. Values are appended as UTF-8 to a direct data buffer. An overwritten or removed value
+ * stays there as garbage until the data buffer fills up, then the live values are compacted into
+ * a new buffer (which is also when it grows).
+ *
+ * For ranges the ids are also kept in order in a direct buffer, ID bytes each. New keys go to
+ * a small sorted set on the heap first and are merged into the buffer once the keys put and
+ * removed since the last merge are an eighth of it, dropping the removed ones. A range finds its
+ * start by binary search and walks the buffer and the set together, so it costs O(log n) plus
+ * the keys it returns.
+ *
+ * Unlike the heap stores this one takes a lock: gets and every batch of a range share a read
+ * lock, writes take the write lock. So a read waits while a write is applied, which is a few
+ * memory copies, or while a write merges the ids or compacts the data, which is a pass over the
+ * store. A range reads batchSize entries per lock and is weakly consistent like the others.
+ */
+public class OffHeapStore implements Store {
+
+	private static final int SLOT = 28; /* high(8) mid(8) low(4) length(4) offset(4) */
+	private static final int EMPTY = 0; /* length of a free slot, else the value length + 1 */
+	private static final int DELETED = -1; /* length of a removed key, probing goes on past it */
+	private static final float MAX_LOAD = 0.7f;
+	private static final int ID = 20; /* high(8) mid(8) low(4) of an id in the sorted buffer */
+	private static int batchSize = 256; /* entries a range reads per lock */
+
+	private ByteBuffer index;
+	private int slots; /* power of two */
+	private int size; /* live keys */
+	private int used; /* live and deleted slots */
+
+	private ByteBuffer data;
+	private int dataEnd; /* first free byte of data */
+	private long garbage; /* bytes of data no slot points to */
+
+	private ByteBuffer sorted; /* ids in order, may hold removed ones until the next merge */
+	private ByteBuffer spare; /* the next merge writes here, then the two swap */
+	private int sortedCount;
+	private TreeSet<ChordId> added = new TreeSet<>(); /* new keys not in sorted yet */
+	private int removed; /* keys removed since the last merge */
+
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public OffHeapStore() {
+		this(1 << 12, 1 << 20);
+	}
+
+	/**
+	 * @param slots initial slots of the index, rounded up to a power of two
+	 * @param dataBytes initial size of the data buffer
+	 */
+	public OffHeapStore(int slots, int dataBytes) {
+		this.slots = Integer.highestOneBit(Math.max(slots, 16) - 1) << 1;
+		index = ByteBuffer.allocateDirect(this.slots * SLOT);
+		data = ByteBuffer.allocateDirect(Math.max(dataBytes, 1024));
+		sorted = ByteBuffer.allocateDirect(this.slots * ID);
+		spare = ByteBuffer.allocateDirect(this.slots * ID);
+	}
+
+	@Override
+	public String get(ChordId key) {
+		lock.readLock().lock();
+		try {
+			int slot = find(key);
+			return (slot < 0) ? null : value(slot);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public String put(ChordId key, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			int slot = find(key);
+			String previous = null;
+			if (slot >= 0) {
+				previous = value(slot);
+				garbage += length(slot);
+			} else {
+				if (used + 1 > slots * MAX_LOAD) {
+					rehash((size + 1 > slots * MAX_LOAD / 2) ? slots * 2 : slots);
+				}
+				slot = freeSlot(key);
+				if (index.getInt(slot * SLOT + 20) == EMPTY) {
+					used++;
+				}
+				size++;
+				index.putLong(slot * SLOT, key.getHigh());
+				index.putLong(slot * SLOT + 8, key.getMid());
+				index.putInt(slot * SLOT + 16, key.getLow());
+				//a key removed since the last merge is still in sorted
+				int at = firstAtOrAfter(key, true);
+				if (at == sortedCount || !sortedId(at).equals(key)) {
+					added.add(key);
+					mergeIfNeeded();
+				}
+			}
+			ensureData(bytes.length);
+			index.putInt(slot * SLOT + 20, bytes.length + 1);
+			index.putInt(slot * SLOT + 24, dataEnd);
+			data.position(dataEnd);
+			data.put(bytes);
+			dataEnd += bytes.length;
+			return previous;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String remove(ChordId key) {
+		lock.writeLock().lock();
+		try {
+			int slot = find(key);
+			if (slot < 0) {
+				return null;
+			}
+			String previous = value(slot);
+			garbage += length(slot);
+			index.putInt(slot * SLOT + 20, DELETED);
+			size--;
+			if (!added.remove(key)) {
+				removed++;
+				mergeIfNeeded();
+			}
+			return previous;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The entries are read batchSize at a time, every batch under the read lock, starting after
+	 * the last key of the previous one.
+	 */
+	@Override
+	public Iterable<Map.Entry<ChordId, String>> range(ChordId lo, boolean loInclusive, ChordId hi,
+			boolean hiInclusive) {
+		return () -> new Iterator<Map.Entry<ChordId, String>>() {
+			private List<Map.Entry<ChordId, String>> batch = new ArrayList<>();
+			private int next;
+			private ChordId from = lo;
+			private boolean fromInclusive = loInclusive;
+			private boolean done;
+
+			@Override
+			public boolean hasNext() {
+				if (next < batch.size()) {
+					return true;
+				}
+				if (done) {
+					return false;
+				}
+				batch.clear();
+				next = 0;
+				lock.readLock().lock();
+				try {
+					done = !fill(batch, from, fromInclusive, hi, hiInclusive);
+				} finally {
+					lock.readLock().unlock();
+				}
+				if (batch.isEmpty()) {
+					done = true;
+					return false;
+				}
+				from = batch.get(batch.size() - 1).getKey();
+				fromInclusive = false;
+				return true;
+			}
+
+			@Override
+			public Map.Entry<ChordId, String> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return batch.get(next++);
+			}
+		};
+	}
+
+	/**
+	 * Adds to batch up to batchSize live entries from from (null is unbounded) up to hi, in id
+	 * order. The read lock must be held.
+	 *
+	 * @return false if there are no more entries in the range.
+	 */
+	private boolean fill(List<Map.Entry<ChordId, String>> batch, ChordId from, boolean fromInclusive, ChordId hi,
+			boolean hiInclusive) {
+		int i = (from == null) ? 0 : firstAtOrAfter(from, fromInclusive);
+		Iterator<ChordId> news = ((from == null) ? added : added.tailSet(from, fromInclusive)).iterator();
+		ChordId a = (i < sortedCount) ? sortedId(i) : null;
+		ChordId b = news.hasNext() ? news.next() : null;
+		while (a != null || b != null) {
+			ChordId key;
+			if (b == null || (a != null && a.compareTo(b) < 0)) {
+				key = a;
+				i++;
+				a = (i < sortedCount) ? sortedId(i) : null;
+			} else {
+				key = b;
+				b = news.hasNext() ? news.next() : null;
+			}
+			if (hi != null) {
+				int cmp = key.compareTo(hi);
+				if (cmp > 0 || (cmp == 0 && !hiInclusive)) {
+					return false;
+				}
+			}
+			int slot = find(key);
+			if (slot < 0) {
+				continue;
+			}
+			batch.add(new AbstractMap.SimpleImmutableEntry<>(key, value(slot)));
+			if (batch.size() == batchSize) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the position in sorted of the first id after key (or equal to it if inclusive).
+	 */
+	private int firstAtOrAfter(ChordId key, boolean inclusive) {
+		int low = 0, high = sortedCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int cmp = sortedId(mid).compareTo(key);
+			if (cmp < 0 || (cmp == 0 && !inclusive)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private ChordId sortedId(int i) {
+		return new ChordId(sorted.getLong(i * ID), sorted.getLong(i * ID + 8), sorted.getInt(i * ID + 16));
+	}
+
+	/**
+	 * Merges the new keys into sorted once the changes since the last merge are an eighth of
+	 * it. The write lock must be held.
+	 */
+	private void mergeIfNeeded() {
+		if (added.size() + removed <= Math.max(1024, sortedCount >>> 3)) {
+			return;
+		}
+		if (spare.capacity() < size * ID) {
+			spare = ByteBuffer.allocateDirect(Math.max(size, 2 * sortedCount) * ID);
+		}
+		int count = 0;
+		int i = 0;
+		Iterator<ChordId> news = added.iterator();
+		ChordId b = news.hasNext() ? news.next() : null;
+		while (i < sortedCount || b != null) {
+			ChordId key;
+			if (b == null || (i < sortedCount && sortedId(i).compareTo(b) < 0)) {
+				key = sortedId(i++);
+				if (find(key) < 0) {
+					continue;
+				}
+			} else {
+				key = b;
+				b = news.hasNext() ? news.next() : null;
+			}
+			spare.putLong(count * ID, key.getHigh());
+			spare.putLong(count * ID + 8, key.getMid());
+			spare.putInt(count * ID + 16, key.getLow());
+			count++;
+		}
+		ByteBuffer old = sorted;
+		sorted = spare;
+		spare = old;
+		sortedCount = count;
+		added.clear();
+		removed = 0;
+	}
+
+	/**
+	 * Moves the live values to the start of a new data buffer, dropping the garbage.
+	 */
+	public void compact() {
+		lock.writeLock().lock();
+		try {
+			compact(data.capacity());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return bytes of direct memory held by the index and the data.
+	 */
+	public long offHeapBytes() {
+		lock.readLock().lock();
+		try {
+			return (long) index.capacity() + data.capacity() + sorted.capacity() + spare.capacity();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return bytes of the data buffer that no key points to.
+	 */
+	public long garbageBytes() {
+		lock.readLock().lock();
+		try {
+			return garbage;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the slot of key, or -1.
+	 */
+	private int find(ChordId key) {
+		int mask = slots - 1;
+		for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+			int length = index.getInt(slot * SLOT + 20);
+			if (length == EMPTY) {
+				return -1;
+			}
+			if (length != DELETED && index.getLong(slot * SLOT) == key.getHigh()
+					&& index.getLong(slot * SLOT + 8) == key.getMid() && index.getInt(slot * SLOT + 16) == key.getLow()) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * @return the first empty or deleted slot on the probe path of key, which is not in the index.
+	 */
+	private int freeSlot(ChordId key) {
+		int mask = slots - 1;
+		for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+			if (index.getInt(slot * SLOT + 20) <= EMPTY) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Builds an index of newSlots slots with the live keys only.
+	 */
+	private void rehash(int newSlots) {
+		ByteBuffer old = index;
+		int oldSlots = slots;
+		index = ByteBuffer.allocateDirect(newSlots * SLOT);
+		slots = newSlots;
+		used = size;
+		int mask = slots - 1;
+		for (int i = 0; i < oldSlots; i++) {
+			if (old.getInt(i * SLOT + 20) <= EMPTY) {
+				continue;
+			}
+			int slot = mix(old.getLong(i * SLOT), old.getInt(i * SLOT + 16)) & mask;
+			while (index.getInt(slot * SLOT + 20) != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			for (int b = 0; b < SLOT; b += 4) {
+				index.putInt(slot * SLOT + b, old.getInt(i * SLOT + b));
+			}
+		}
+	}
+
+	/**
+	 * Makes room for bytes more bytes of data, by compacting if at least half of the data is
+	 * garbage, else by growing.
+	 */
+	private void ensureData(int bytes) {
+		if (dataEnd + bytes <= data.capacity()) {
+			return;
+		}
+		long live = dataEnd - garbage;
+		long capacity = data.capacity();
+		if (garbage < live) {
+			capacity *= 2;
+		}
+		while (live + bytes > capacity) {
+			capacity *= 2;
+		}
+		if (capacity > Integer.MAX_VALUE) {
+			throw new IllegalStateException("OffHeapStore is full");
+		}
+		compact((int) capacity);
+	}
+
+	private void compact(int capacity) {
+		ByteBuffer old = data;
+		data = ByteBuffer.allocateDirect(capacity);
+		dataEnd = 0;
+		for (int slot = 0; slot < slots; slot++) {
+			int length = index.getInt(slot * SLOT + 20);
+			if (length <= EMPTY) {
+				continue;
+			}
+			int offset = index.getInt(slot * SLOT + 24);
+			ByteBuffer value = old.duplicate();
+			value.limit(offset + length - 1).position(offset);
+			data.position(dataEnd);
+			data.put(value);
+			index.putInt(slot * SLOT + 24, dataEnd);
+			dataEnd += length - 1;
+		}
+		garbage = 0;
+	}
+
+	private int length(int slot) {
+		return index.getInt(slot * SLOT + 20) - 1;
+	}
+
+	private String value(int slot) {
+		int length = length(slot);
+		int offset = index.getInt(slot * SLOT + 24);
+		byte[] bytes = new byte[length];
+		ByteBuffer value = data.duplicate();
+		value.position(offset);
+		value.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public static int getBatchSize() {
+		return batchSize;
+	}
+
+	public static void setBatchSize(int batchSize) {
+		OffHeapStore.batchSize = batchSize;
+	}
+
+	private static int hash(ChordId key) {
+		return mix(key.getHigh(), key.getLow());
+	}
+
+	/* the ids are sha1 digests, a few of their bits spread a little more are enough */
+	private static int mix(long high, int low) {
+		long h = (high ^ low) * 0x9e3779b97f4a7c15L;
+		return (int) (h >>> 32);
+	}
+}
@@ -0,0 +1,65 @@
+package structures;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import tools.ChordId;
+
+/**
+ * Store on a ConcurrentSkipListMap: lock-free gets, puts that only contend on neighbouring nodes
+ * of the list and ranges that are cut out in O(log n + k).
+ */
+public class SkipListStore implements Store {
+
+	private ConcurrentSkipListMap<ChordId, String> map = new ConcurrentSkipListMap<>();
+
+	@Override
+	public String get(ChordId key) {
+		return map.get(key);
+	}
+
+	@Override
+	public String put(ChordId key, String value) {
+		return map.put(key, value);
+	}
+
+	@Override
+	public String remove(ChordId key) {
+		return map.remove(key);
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	public Iterable<Map.Entry<ChordId, String>> range(ChordId lo, boolean loInclusive, ChordId hi,
+			boolean hiInclusive) {
+		ConcurrentNavigableMap<ChordId, String> view = map;
+		if (lo != null && hi != null) {
+			int cmp = lo.compareTo(hi);
+			if (cmp > 0 || (cmp == 0 && !(loInclusive && hiInclusive))) {
+				return Collections.emptyList();
+			}
+			view = map.subMap(lo, loInclusive, hi, hiInclusive);
+		} else if (lo != null) {
+			view = map.tailMap(lo, loInclusive);
+		} else if (hi != null) {
+			view = map.headMap(hi, hiInclusive);
+		}
+		return view.entrySet();
+	}
+
+	@Override
+	public void putAll(Map<ChordId, String> entries) {
+		map.putAll(entries);
+	}
+
+	@Override
+	public String toString() {
+		return map.toString();
+	}
+}
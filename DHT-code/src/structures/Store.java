@@ -0,0 +1,100 @@
+package structures;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import tools.ChordId;
+
+/**
+ * Key/value store of a node, keyed by the ids of the keys and ordered by ring position. A store
+ * is used by all the handlers of a node at once. How much they contend depends on the store: in
+ * the heap stores reads never block and writes only contend on the same keys, OffHeapStore takes
+ * a read/write lock over the whole store (see there). Iterations are weakly consistent, they
+ * never throw ConcurrentModificationException and see every entry that stays in the store while
+ * they run.
+ */
+public interface Store {
+
+	String get(ChordId key);
+
+	/**
+	 * @return the previous value of key, or null.
+	 */
+	String put(ChordId key, String value);
+
+	/**
+	 * @return the removed value of key, or null.
+	 */
+	String remove(ChordId key);
+
+	int size();
+
+	/**
+	 * @return the entries with ids between lo and hi in id order. A null bound is unbounded.
+	 */
+	Iterable<Map.Entry<ChordId, String>> range(ChordId lo, boolean loInclusive, ChordId hi, boolean hiInclusive);
+
+	default void putAll(Map<ChordId, String> entries) {
+		for (Map.Entry<ChordId, String> e : entries.entrySet()) {
+			put(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Calls action for the entries whose ids lie in the ring interval (from, to], in ring order.
+	 * If from equals to the interval is the whole ring.
+	 */
+	default void forEach(ChordId from, ChordId to, BiConsumer<ChordId, String> action) {
+		if (from.compareTo(to) < 0) {
+			for (Map.Entry<ChordId, String> e : range(from, false, to, true)) {
+				action.accept(e.getKey(), e.getValue());
+			}
+			return;
+		}
+		//wraps around zero: the tail of the store, then its head. For the whole ring from is the
+		//last key, like to
+		for (Map.Entry<ChordId, String> e : range(from, false, null, false)) {
+			action.accept(e.getKey(), e.getValue());
+		}
+		for (Map.Entry<ChordId, String> e : range(null, false, to, true)) {
+			action.accept(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * @return a copy of the entries in the ring interval (from, to], in ring order. Handoffs send
+	 * copies, so the store can change while they are on their way.
+	 */
+	default Map<ChordId, String> snapshot(ChordId from, ChordId to) {
+		Map<ChordId, String> entries = new LinkedHashMap<>();
+		forEach(from, to, entries::put);
+		return entries;
+	}
+
+	/**
+	 * @return a copy of all the entries, in id order.
+	 */
+	default Map<ChordId, String> snapshot() {
+		Map<ChordId, String> entries = new LinkedHashMap<>();
+		for (Map.Entry<ChordId, String> e : range(null, false, null, false)) {
+			entries.put(e.getKey(), e.getValue());
+		}
+		return entries;
+	}
+
+	/**
+	 * Removes the entries in the ring interval (from, to] and returns them in ring order. A key
+	 * written meanwhile is returned with its latest value.
+	 */
+	default Map<ChordId, String> extract(ChordId from, ChordId to) {
+		Map<ChordId, String> entries = new LinkedHashMap<>();
+		forEach(from, to, (key, value) -> {
+			String latest = remove(key);
+			if (latest != null) {
+				entries.put(key, latest);
+			}
+		});
+		return entries;
+	}
+}
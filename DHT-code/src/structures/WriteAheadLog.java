@@ -0,0 +1,480 @@
+package structures;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import tools.ChordId;
+import tools.Log;
+
+/**
+ * Append-only log of the writes to the stores of a node, so that a node that restarts gets its
+ * data back. Every record is one put or remove of one store: length(4) crc32(4) store(1) key(20)
+ * value length(4, -1 for a remove) value(UTF-8).
+ *
+ * Writers only append to a buffer in memory, the buffer goes to the file in flushes. Under
+ * FsyncPolicy.SYNC a writer waits until a flush has forced its record to disk: the first waiting
+ * writer does the flush for everyone that appended before it (group commit), so a burst of
+ * concurrent writes costs one fsync. The other policies flush every flushPeriod, on a timer
+ * shared by all the logs of the JVM.
+ *
+ * A write that cannot be logged throws UncheckedIOException: the log is closed, or a flush has
+ * failed, after which the log takes no more writes since its file may have lost records.
+ *
+ * The log is split into segments wal-N.log. A snapshot starts a new segment, writes all the
+ * entries of the stores to snapshot.tmp and renames it to snapshot, which then holds the number
+ * of the first segment it does not cover; the older segments are deleted. Recovery loads the
+ * snapshot and replays the later segments up to the first torn or corrupt record. A writer holds
+ * applyLock() from its append until its write is in the store, and the segment only rotates while
+ * no writer does: a record of a deleted segment is always in the store before the snapshot walks
+ * it.
+ */
+public class WriteAheadLog {
+
+	private static long flushPeriod = 10; /* ms between flushes of BATCHED and ASYNC logs */
+	private static long snapshotBytes = 64 << 20; /* log bytes after which a snapshot is taken */
+
+	private static final String SNAPSHOT = "snapshot";
+	private static final int HEADER = 8; /* length and crc of a record */
+	private static ScheduledThreadPoolExecutor timer; /* flushes the logs of all nodes */
+
+	static {
+		//two threads, so that a snapshot does not hold up the flushes of the other logs
+		timer = new ScheduledThreadPoolExecutor(2, r -> {
+			Thread t = new Thread(r, "wal-timer");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private File dir;
+	private FsyncPolicy policy;
+	private Store[] stores; /* indexed by the store byte of the records */
+	private ScheduledFuture<?> flushes;
+	private volatile boolean closed; /* set under flushLock */
+	private volatile IOException failure; /* of the flush that failed, set under flushLock */
+
+	private ByteBuffer pending; /* records not flushed yet, guarded by this */
+	private ByteBuffer spare; /* the buffer of the last flush, reused by the next one */
+	private CRC32 crc = new CRC32();
+	private long appended; /* records appended so far, guarded by this */
+
+	private Object flushLock = new Object(); /* one flush at a time, owns the file */
+	private FileChannel log;
+	private long segment; /* number of the current segment */
+	private long logBytes; /* bytes written to the log since the last snapshot */
+	private long synced; /* records forced to disk so far */
+
+	private Object snapshotLock = new Object();
+	private ReentrantReadWriteLock rotation = new ReentrantReadWriteLock(); /* shared by writers, taken by a rotation */
+	private AtomicLong fsyncs = new AtomicLong();
+	private long recovered; /* records read back by recovery */
+
+	/**
+	 * Opens the log in dir and recovers its writes into stores, which should be empty.
+	 */
+	public WriteAheadLog(File dir, FsyncPolicy policy, Store... stores) throws IOException {
+		this.dir = dir;
+		this.policy = policy;
+		this.stores = stores;
+		pending = ByteBuffer.allocate(1 << 16);
+		spare = ByteBuffer.allocate(1 << 16);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		recover();
+	}
+
+	/**
+	 * Starts the timer that flushes the log and takes snapshots when it grows too long.
+	 */
+	public void start() {
+		flushes = timer.scheduleWithFixedDelay(() -> {
+			try {
+				boolean full;
+				synchronized (flushLock) {
+					if (closed || failure != null) {
+						return;
+					}
+					flush(policy == FsyncPolicy.BATCHED);
+					full = logBytes >= snapshotBytes;
+				}
+				if (full) {
+					snapshot();
+				}
+			} catch (IOException | UncheckedIOException e) {
+				Log.error("[WAL {}] flush or snapshot failed", dir.getName(), e);
+			}
+		}, flushPeriod, flushPeriod, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Appends a write of store to the log. value null removes key. The caller orders the appends
+	 * of a key the same way as its writes to the store.
+	 *
+	 * @return the number of the record, for commit().
+	 * @throws UncheckedIOException if the log is closed or has failed.
+	 */
+	public synchronized long append(int store, ChordId key, String value) {
+		if (failure != null) {
+			throw new UncheckedIOException("Log " + dir + " failed", failure);
+		}
+		if (closed) {
+			throw new UncheckedIOException(new IOException("Log " + dir + " is closed"));
+		}
+		pending = record(pending, crc, store, key, value);
+		return ++appended;
+	}
+
+	/**
+	 * @return the lock a writer holds from its append until it has applied the write to its
+	 * store, so that a snapshot does not miss a write whose record is in a segment it deletes.
+	 */
+	public Lock applyLock() {
+		return rotation.readLock();
+	}
+
+	/**
+	 * Returns once record seq is as durable as the policy makes it: forced to disk for SYNC, at
+	 * once for the others.
+	 *
+	 * @throws UncheckedIOException if the record could not be forced to disk.
+	 */
+	public void commit(long seq) {
+		if (policy != FsyncPolicy.SYNC) {
+			return;
+		}
+		synchronized (flushLock) {
+			//a flush of another writer may have taken our record along
+			if (synced >= seq) {
+				return;
+			}
+			if (failure != null) {
+				throw new UncheckedIOException("Log " + dir + " failed", failure);
+			}
+			if (closed) {
+				throw new UncheckedIOException(new IOException("Log " + dir + " is closed"));
+			}
+			flush(true);
+		}
+	}
+
+	/**
+	 * Writes the pending records to the log, and forces them to disk if force. Called with
+	 * flushLock held. A failure fails the log.
+	 */
+	private void flush(boolean force) {
+		ByteBuffer out;
+		long upTo;
+		synchronized (this) {
+			out = pending;
+			pending = spare;
+			upTo = appended;
+		}
+		out.flip();
+		try {
+			while (out.hasRemaining()) {
+				logBytes += log.write(out);
+			}
+			if (force && upTo > synced) {
+				log.force(false);
+				fsyncs.incrementAndGet();
+				synced = upTo;
+			}
+		} catch (IOException e) {
+			failure = e;
+			throw new UncheckedIOException(e);
+		} finally {
+			out.clear();
+			spare = out;
+		}
+	}
+
+	/**
+	 * Writes all the entries of the stores to a new snapshot and deletes the segments it covers.
+	 * Writes go on meanwhile, into a new segment: a write that is not in the snapshot is in it.
+	 */
+	public void snapshot() throws IOException {
+		synchronized (snapshotLock) {
+			long start;
+			rotation.writeLock().lock();
+			try {
+				synchronized (flushLock) {
+					if (closed || failure != null) {
+						return;
+					}
+					flush(true);
+					log.close();
+					start = segment + 1;
+					openSegment(start);
+					logBytes = 0;
+				}
+			} finally {
+				rotation.writeLock().unlock();
+			}
+
+			File tmp = new File(dir, SNAPSHOT + ".tmp");
+			try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+				CRC32 snapshotCrc = new CRC32();
+				buf.putLong(start);
+				for (int i = 0; i < stores.length; i++) {
+					for (Map.Entry<ChordId, String> e : stores[i].range(null, false, null, false)) {
+						buf = record(buf, snapshotCrc, i, e.getKey(), e.getValue());
+						if (buf.position() >= 1 << 16) {
+							drain(buf, out);
+						}
+					}
+				}
+				drain(buf, out);
+				out.force(true);
+			}
+			Files.move(tmp.toPath(), new File(dir, SNAPSHOT).toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			for (Map.Entry<Long, File> s : segments().entrySet()) {
+				if (s.getKey() < start) {
+					Files.deleteIfExists(s.getValue().toPath());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flushes and closes the log. Writes appended later are not logged.
+	 */
+	public void close() {
+		synchronized (snapshotLock) {
+			synchronized (flushLock) {
+				if (closed) {
+					return;
+				}
+				try {
+					if (failure == null) {
+						flush(policy != FsyncPolicy.ASYNC);
+					}
+					log.close();
+				} catch (IOException | UncheckedIOException e) {
+					Log.error("[WAL {}] close failed", dir.getName(), e);
+				}
+				closed = true;
+			}
+		}
+		if (flushes != null) {
+			flushes.cancel(false);
+		}
+	}
+
+	/**
+	 * Closes the log and deletes it with its snapshot, eg. when the data has been handed over to
+	 * another node.
+	 */
+	public void discard() {
+		close();
+		synchronized (snapshotLock) {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File f : files) {
+					f.delete();
+				}
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Loads the snapshot, replays the segments after it and opens a new segment.
+	 */
+	private void recover() throws IOException {
+		long start = 0;
+		File snapshot = new File(dir, SNAPSHOT);
+		if (snapshot.exists()) {
+			try (DataInputStream in = open(snapshot)) {
+				start = in.readLong();
+				replay(in);
+			}
+		}
+		long last = start - 1;
+		for (Map.Entry<Long, File> s : segments().entrySet()) {
+			if (s.getKey() < start) {
+				Files.deleteIfExists(s.getValue().toPath());
+				continue;
+			}
+			try (DataInputStream in = open(s.getValue())) {
+				replay(in);
+			}
+			last = s.getKey();
+		}
+		//a torn record may end the last segment, the new writes go to a fresh one
+		openSegment(last + 1);
+	}
+
+	private void replay(DataInputStream in) throws IOException {
+		CRC32 check = new CRC32();
+		byte[] body = new byte[256];
+		while (true) {
+			int length;
+			int sum;
+			try {
+				length = in.readInt();
+				sum = in.readInt();
+				if (length < 1 + ChordId.BYTES + 4) {
+					return;
+				}
+				if (length > body.length) {
+					body = new byte[Math.max(length, 2 * body.length)];
+				}
+				in.readFully(body, 0, length);
+			} catch (EOFException e) {
+				return;
+			}
+			check.reset();
+			check.update(body, 0, length);
+			if ((int) check.getValue() != sum) {
+				return;
+			}
+			ByteBuffer buf = ByteBuffer.wrap(body, 0, length);
+			int store = buf.get();
+			ChordId key = ChordId.readFrom(buf);
+			int valLength = buf.getInt();
+			if (valLength < 0) {
+				stores[store].remove(key);
+			} else {
+				stores[store].put(key, new String(body, buf.position(), valLength, StandardCharsets.UTF_8));
+			}
+			recovered++;
+		}
+	}
+
+	/**
+	 * Appends a record to buf, in a larger copy of buf if it does not fit.
+	 *
+	 * @return the buffer that holds the record.
+	 */
+	private static ByteBuffer record(ByteBuffer buf, CRC32 crc, int store, ChordId key, String value) {
+		byte[] val = (value == null) ? null : value.getBytes(StandardCharsets.UTF_8);
+		int length = 1 + ChordId.BYTES + 4 + ((val == null) ? 0 : val.length);
+		if (buf.remaining() < HEADER + length) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * buf.capacity(), buf.position() + HEADER + length));
+			buf.flip();
+			bigger.put(buf);
+			buf = bigger;
+		}
+		int start = buf.position();
+		buf.putInt(length);
+		buf.putInt(0);
+		buf.put((byte) store);
+		key.writeTo(buf);
+		if (val == null) {
+			buf.putInt(-1);
+		} else {
+			buf.putInt(val.length);
+			buf.put(val);
+		}
+		crc.reset();
+		crc.update(buf.array(), start + HEADER, length);
+		buf.putInt(start + 4, (int) crc.getValue());
+		return buf;
+	}
+
+	private static void drain(ByteBuffer buf, FileChannel out) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+		buf.clear();
+	}
+
+	private void openSegment(long n) throws IOException {
+		segment = n;
+		log = FileChannel.open(new File(dir, "wal-" + n + ".log").toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * @return the segment files in dir by number.
+	 */
+	private TreeMap<Long, File> segments() {
+		TreeMap<Long, File> segments = new TreeMap<>();
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return segments;
+		}
+		for (File f : files) {
+			String name = f.getName();
+			if (name.startsWith("wal-") && name.endsWith(".log")) {
+				try {
+					segments.put(Long.parseLong(name.substring(4, name.length() - 4)), f);
+				} catch (NumberFormatException e) {
+					//not ours
+				}
+			}
+		}
+		return segments;
+	}
+
+	private static DataInputStream open(File f) throws IOException {
+		return new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+	}
+
+	/**
+	 * @return number of records appended so far.
+	 */
+	public synchronized long getAppended() {
+		return appended;
+	}
+
+	/**
+	 * @return number of fsyncs of the log so far.
+	 */
+	public long getFsyncs() {
+		return fsyncs.get();
+	}
+
+	/**
+	 * @return number of records the last recovery read back.
+	 */
+	public long getRecovered() {
+		return recovered;
+	}
+
+	public FsyncPolicy getPolicy() {
+		return policy;
+	}
+
+	public static long getFlushPeriod() {
+		return flushPeriod;
+	}
+
+	public static void setFlushPeriod(long flushPeriod) {
+		WriteAheadLog.flushPeriod = flushPeriod;
+	}
+
+	public static long getSnapshotBytes() {
+		return snapshotBytes;
+	}
+
+	public static void setSnapshotBytes(long snapshotBytes) {
+		WriteAheadLog.snapshotBytes = snapshotBytes;
+	}
+}
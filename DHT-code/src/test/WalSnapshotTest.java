@@ -0,0 +1,100 @@
+package test;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import structures.DurableStore;
+import structures.FsyncPolicy;
+import structures.SkipListStore;
+import structures.Store;
+import structures.WriteAheadLog;
+import tools.ChordId;
+import tools.SHA1Hash;
+
+/*
+ * Writes to a DurableStore from several threads while snapshots are taken, then recovers the
+ * log into a new store and checks it holds the last write of every key. The store yields between
+ * the append of a write and its apply, so a snapshot often falls in between. Exits 1 on a
+ * mismatch.
+ */
+public class WalSnapshotTest {
+
+	final static int rounds = 20;
+	final static int threads = 4;
+	final static int keysPerThread = 200;
+	final static int snapshots = 20;
+
+	public static void main(String[] args) throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "wal-snapshot-test");
+		for (int round = 0; round < rounds; round++) {
+			WriteAheadLog wal = new WriteAheadLog(dir, FsyncPolicy.ASYNC, new SkipListStore());
+			wal.discard();
+
+			Store base = new YieldingStore();
+			wal = new WriteAheadLog(dir, FsyncPolicy.ASYNC, base);
+			Store store = new DurableStore(base, wal, 0);
+			Map<ChordId, String> expected = new ConcurrentHashMap<>();
+			AtomicBoolean stop = new AtomicBoolean();
+			Thread[] writers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final int first = t * keysPerThread;
+				writers[t] = new Thread(() -> {
+					//every key has one writer, so its last write is known
+					Random random = new Random(first);
+					for (int i = 0; !stop.get(); i++) {
+						ChordId key = SHA1Hash.hash("key" + (first + random.nextInt(keysPerThread)));
+						if (random.nextInt(4) == 0) {
+							store.remove(key);
+							expected.remove(key);
+						} else {
+							store.put(key, "value" + i);
+							expected.put(key, "value" + i);
+						}
+					}
+				});
+				writers[t].start();
+			}
+			for (int i = 0; i < snapshots; i++) {
+				wal.snapshot();
+			}
+			stop.set(true);
+			for (Thread w : writers) {
+				w.join();
+			}
+			wal.close();
+
+			Store recovered = new SkipListStore();
+			new WriteAheadLog(dir, FsyncPolicy.ASYNC, recovered).close();
+			Map<ChordId, String> got = new TreeMap<>(recovered.snapshot());
+			if (!got.equals(new TreeMap<>(expected))) {
+				System.out.println("round " + round + ": recovered " + got.size() + " keys, expected "
+						+ expected.size());
+				System.exit(1);
+			}
+		}
+		new WriteAheadLog(dir, FsyncPolicy.ASYNC, new SkipListStore()).discard();
+		System.out.println("ok: " + rounds + " rounds of writes during snapshots recovered");
+	}
+
+	/**
+	 * Yields before every write, between the append of a DurableStore and its apply.
+	 */
+	private static class YieldingStore extends SkipListStore {
+
+		@Override
+		public String put(ChordId key, String value) {
+			Thread.yield();
+			return super.put(key, value);
+		}
+
+		@Override
+		public String remove(ChordId key) {
+			Thread.yield();
+			return super.remove(key);
+		}
+	}
+}
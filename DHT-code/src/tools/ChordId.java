@@ -0,0 +1,209 @@
+package tools;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * A 160-bit identifier on the chord ring (a sha1 digest). The digest is kept as two longs and an
+ * int, so comparing two ids costs at most three unsigned word compares instead of a walk over a
+ * 40-char hex string.
+ **/
+public final class ChordId implements Comparable<ChordId>, Serializable {
+
+	public static final int BITS = 160; /* size of identifier space (sha1) */
+	public static final int BYTES = BITS / 8;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final long high; /* bits 159..96 */
+	private final long mid; /* bits 95..32 */
+	private final int low; /* bits 31..0 */
+
+	public ChordId(long high, long mid, int low) {
+		this.high = high;
+		this.mid = mid;
+		this.low = low;
+	}
+
+	/**
+	 * @return the id of the 20 big-endian bytes of digest starting at offset.
+	 */
+	public static ChordId fromBytes(byte[] digest, int offset) {
+		long h = 0, m = 0;
+		int l = 0;
+		for (int i = 0; i < 8; i++) {
+			h = (h << 8) | (digest[offset + i] & 0xff);
+			m = (m << 8) | (digest[offset + 8 + i] & 0xff);
+		}
+		for (int i = 16; i < BYTES; i++) {
+			l = (l << 8) | (digest[offset + i] & 0xff);
+		}
+		return new ChordId(h, m, l);
+	}
+
+	public static ChordId fromBytes(byte[] digest) {
+		return fromBytes(digest, 0);
+	}
+
+	public static ChordId fromHex(String hex) {
+		if (hex.length() != 2 * BYTES) {
+			throw new IllegalArgumentException("Not a sha1 hex string: " + hex);
+		}
+		byte[] bytes = new byte[BYTES];
+		for (int i = 0; i < BYTES; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return fromBytes(bytes);
+	}
+
+	/**
+	 * Reads 20 bytes from the current position of buf.
+	 */
+	public static ChordId readFrom(ByteBuffer buf) {
+		return new ChordId(buf.getLong(), buf.getLong(), buf.getInt());
+	}
+
+	/**
+	 * Writes the 20 bytes of the id at the current position of buf.
+	 */
+	public void writeTo(ByteBuffer buf) {
+		buf.putLong(high);
+		buf.putLong(mid);
+		buf.putInt(low);
+	}
+
+	public byte[] toBytes() {
+		ByteBuffer buf = ByteBuffer.allocate(BYTES);
+		writeTo(buf);
+		return buf.array();
+	}
+
+	/**
+	 * @return true if this id lies in the ring interval (from, to]. If from equals to the
+	 * interval covers the whole ring.
+	 */
+	public boolean inHalfOpen(ChordId from, ChordId to) {
+		int cmp = from.compareTo(to);
+		if (cmp < 0) {
+			return (compareTo(from) > 0) && (compareTo(to) <= 0);
+		} else if (cmp > 0) {
+			/* interval wraps around zero */
+			return (compareTo(from) > 0) || (compareTo(to) <= 0);
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if this id lies in the ring interval (from, to). If from equals to the
+	 * interval covers the whole ring except from.
+	 */
+	public boolean inOpen(ChordId from, ChordId to) {
+		int cmp = from.compareTo(to);
+		if (cmp < 0) {
+			return (compareTo(from) > 0) && (compareTo(to) < 0);
+		} else if (cmp > 0) {
+			return (compareTo(from) > 0) || (compareTo(to) < 0);
+		}
+		return !equals(from);
+	}
+
+	/**
+	 * @return (this + 2^i) mod 2^160, the start of the i-th finger of a node with this id.
+	 */
+	public ChordId addPowerOfTwo(int i) {
+		long l = low & 0xffffffffL;
+		long m = mid;
+		long h = high;
+		if (i < 32) {
+			l += 1L << i;
+			if ((l >>> 32) != 0) {
+				l &= 0xffffffffL;
+				m++;
+				if (m == 0) {
+					h++;
+				}
+			}
+		} else if (i < 96) {
+			long old = m;
+			m += 1L << (i - 32);
+			if (compareUnsigned(m, old) < 0) {
+				h++;
+			}
+		} else {
+			h += 1L << (i - 96);
+		}
+		return new ChordId(h, m, (int) l);
+	}
+
+	/**
+	 * Unsigned comparison, so ids are ordered as 160-bit numbers.
+	 */
+	@Override
+	public int compareTo(ChordId o) {
+		int cmp = compareUnsigned(high, o.high);
+		if (cmp != 0) {
+			return cmp;
+		}
+		cmp = compareUnsigned(mid, o.mid);
+		if (cmp != 0) {
+			return cmp;
+		}
+		return compareUnsigned(low & 0xffffffffL, o.low & 0xffffffffL);
+	}
+
+	private static int compareUnsigned(long a, long b) {
+		a += Long.MIN_VALUE;
+		b += Long.MIN_VALUE;
+		return (a < b) ? -1 : ((a == b) ? 0 : 1);
+	}
+
+	public long getHigh() {
+		return high;
+	}
+
+	public long getMid() {
+		return mid;
+	}
+
+	public int getLow() {
+		return low;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ChordId)) {
+			return false;
+		}
+		ChordId o = (ChordId) obj;
+		return high == o.high && mid == o.mid && low == o.low;
+	}
+
+	@Override
+	public int hashCode() {
+		/* the bits of a digest are already random, a few of them are enough */
+		return (int) (high ^ (high >>> 32)) ^ low;
+	}
+
+	/**
+	 * @return the id as a 40-char hex string, same as the digest printed by sha1sum.
+	 */
+	@Override
+	public String toString() {
+		char[] chars = new char[2 * BYTES];
+		int k = 0;
+		for (int shift = 60; shift >= 0; shift -= 4) {
+			chars[k++] = HEX[(int) (high >>> shift) & 0xf];
+		}
+		for (int shift = 60; shift >= 0; shift -= 4) {
+			chars[k++] = HEX[(int) (mid >>> shift) & 0xf];
+		}
+		for (int shift = 28; shift >= 0; shift -= 4) {
+			chars[k++] = HEX[(low >>> shift) & 0xf];
+		}
+		return new String(chars);
+	}
+
+}
@@ -0,0 +1,102 @@
+package tools;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in ns with log-linear buckets: every power of two is split into 64
+ * buckets, so a percentile is off by less than 1/64 (1.6%) of its value, from 1 ns up to about
+ * 18 minutes, in a fixed 18 KB. Larger values count in the last bucket. Values can be recorded
+ * from any thread.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 7; /* values below 2^SUB_BITS have a bucket each */
+	private static final int SUB = 1 << (SUB_BITS - 1); /* buckets per power of two above that */
+	private static final int MAX_BITS = 40; /* 2^40 ns, about 18 minutes */
+	private static final int BUCKETS = (1 << SUB_BITS) + (MAX_BITS - SUB_BITS + 1) * SUB;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private LongAdder total = new LongAdder();
+	private LongAdder sum = new LongAdder();
+
+	public void record(long nanos) {
+		counts.incrementAndGet(bucketOf(Math.max(nanos, 0)));
+		total.increment();
+		sum.add(nanos);
+	}
+
+	/**
+	 * Adds the counts of other to this histogram.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = other.counts.get(i);
+			if (c != 0) {
+				counts.addAndGet(i, c);
+			}
+		}
+		total.add(other.total.sum());
+		sum.add(other.sum.sum());
+	}
+
+	public long getCount() {
+		return total.sum();
+	}
+
+	public double getMean() {
+		long n = total.sum();
+		return (n == 0) ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @return the value below or at which percentile percent of the values lie, the upper end of
+	 * its bucket. 0 if nothing has been recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long n = total.sum();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return highestOf(i);
+			}
+		}
+		return highestOf(BUCKETS - 1);
+	}
+
+	public long getMax() {
+		for (int i = BUCKETS - 1; i >= 0; i--) {
+			if (counts.get(i) != 0) {
+				return highestOf(i);
+			}
+		}
+		return 0;
+	}
+
+	private static int bucketOf(long value) {
+		if (value < (1 << SUB_BITS)) {
+			return (int) value;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		if (msb > MAX_BITS) {
+			return BUCKETS - 1;
+		}
+		int shift = msb - (SUB_BITS - 1);
+		int sub = (int) (value >>> shift) - SUB;
+		return (1 << SUB_BITS) + (shift - 1) * SUB + sub;
+	}
+
+	private static long highestOf(int bucket) {
+		if (bucket < (1 << SUB_BITS)) {
+			return bucket;
+		}
+		int shift = (bucket - (1 << SUB_BITS)) / SUB + 1;
+		long sub = (bucket - (1 << SUB_BITS)) % SUB + SUB;
+		return ((sub + 1) << shift) - 1;
+	}
+}
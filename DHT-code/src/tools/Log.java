@@ -0,0 +1,328 @@
+package tools;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log of the nodes and the emulator. A call at a disabled level only reads the level,
+ * nothing is built. An enabled call puts the format and its arguments in a ring buffer and returns;
+ * a single appender thread formats them ("{}" is replaced by the next argument, a Throwable left
+ * over prints its stack trace) and writes them out in batches. So arguments are turned to text
+ * later, and should not be changed after they are logged. When the buffer is full the line is
+ * dropped and counted, a caller never waits.
+ *
+ * A line is "<time of day, UTC> <level> [<thread>] <text>". The level is the system property
+ * dht.log (DEBUG, INFO, WARN, ERROR or OFF, INFO by default) or setLevel().
+ */
+public final class Log {
+
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	private static final int CAPACITY = 1 << 13; /* lines the buffer holds, a power of two */
+	private static final int MASK = CAPACITY - 1;
+	private static final Level[] LEVELS = Level.values();
+
+	private static volatile int level = parse(System.getProperty("dht.log"), Level.INFO).ordinal();
+	private static volatile PrintStream out = System.out;
+
+	/*
+	 * A bounded multi producer queue: a slot is free for position p when its sequence is p, and
+	 * holds the line of p when it is p + 1. The appender frees it for p + CAPACITY.
+	 */
+	private static final Entry[] slots = new Entry[CAPACITY];
+	private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+	private static final AtomicLong tail = new AtomicLong(); /* next position to claim */
+	private static volatile long written; /* positions before it are printed */
+	private static final LongAdder dropped = new LongAdder();
+	private static final Thread appender;
+
+	private static class Entry {
+		long time;
+		int level;
+		String thread;
+		String format;
+		Object a, b, c;
+		int args;
+	}
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) {
+			slots[i] = new Entry();
+			sequences.set(i, i);
+		}
+		appender = new Thread(Log::append, "Log-appender");
+		appender.setDaemon(true);
+		appender.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "Log-flush"));
+	}
+
+	private Log() {
+	}
+
+	public static void setLevel(Level newLevel) {
+		level = newLevel.ordinal();
+	}
+
+	public static Level getLevel() {
+		return LEVELS[level];
+	}
+
+	/**
+	 * @return the level named, ignoring case, or otherwise if name is null or no level.
+	 */
+	public static Level parse(String name, Level otherwise) {
+		if (name != null) {
+			for (Level l : LEVELS) {
+				if (l.name().equalsIgnoreCase(name.trim())) {
+					return l;
+				}
+			}
+		}
+		return otherwise;
+	}
+
+	/**
+	 * Where the appender writes, System.out by default.
+	 */
+	public static void setOutput(PrintStream stream) {
+		out = stream;
+	}
+
+	public static boolean isEnabled(Level l) {
+		return l.ordinal() >= level;
+	}
+
+	public static boolean isDebug() {
+		return Level.DEBUG.ordinal() >= level;
+	}
+
+	public static void debug(String format) {
+		if (Level.DEBUG.ordinal() >= level) {
+			offer(Level.DEBUG, format, null, null, null, 0);
+		}
+	}
+
+	public static void debug(String format, Object a) {
+		if (Level.DEBUG.ordinal() >= level) {
+			offer(Level.DEBUG, format, a, null, null, 1);
+		}
+	}
+
+	public static void debug(String format, Object a, Object b) {
+		if (Level.DEBUG.ordinal() >= level) {
+			offer(Level.DEBUG, format, a, b, null, 2);
+		}
+	}
+
+	public static void debug(String format, Object a, Object b, Object c) {
+		if (Level.DEBUG.ordinal() >= level) {
+			offer(Level.DEBUG, format, a, b, c, 3);
+		}
+	}
+
+	public static void info(String format) {
+		if (Level.INFO.ordinal() >= level) {
+			offer(Level.INFO, format, null, null, null, 0);
+		}
+	}
+
+	public static void info(String format, Object a) {
+		if (Level.INFO.ordinal() >= level) {
+			offer(Level.INFO, format, a, null, null, 1);
+		}
+	}
+
+	public static void info(String format, Object a, Object b) {
+		if (Level.INFO.ordinal() >= level) {
+			offer(Level.INFO, format, a, b, null, 2);
+		}
+	}
+
+	public static void info(String format, Object a, Object b, Object c) {
+		if (Level.INFO.ordinal() >= level) {
+			offer(Level.INFO, format, a, b, c, 3);
+		}
+	}
+
+	public static void warn(String format) {
+		if (Level.WARN.ordinal() >= level) {
+			offer(Level.WARN, format, null, null, null, 0);
+		}
+	}
+
+	public static void warn(String format, Object a) {
+		if (Level.WARN.ordinal() >= level) {
+			offer(Level.WARN, format, a, null, null, 1);
+		}
+	}
+
+	public static void warn(String format, Object a, Object b) {
+		if (Level.WARN.ordinal() >= level) {
+			offer(Level.WARN, format, a, b, null, 2);
+		}
+	}
+
+	public static void warn(String format, Object a, Object b, Object c) {
+		if (Level.WARN.ordinal() >= level) {
+			offer(Level.WARN, format, a, b, c, 3);
+		}
+	}
+
+	public static void error(String format) {
+		if (Level.ERROR.ordinal() >= level) {
+			offer(Level.ERROR, format, null, null, null, 0);
+		}
+	}
+
+	public static void error(String format, Object a) {
+		if (Level.ERROR.ordinal() >= level) {
+			offer(Level.ERROR, format, a, null, null, 1);
+		}
+	}
+
+	public static void error(String format, Object a, Object b) {
+		if (Level.ERROR.ordinal() >= level) {
+			offer(Level.ERROR, format, a, b, null, 2);
+		}
+	}
+
+	public static void error(String format, Object a, Object b, Object c) {
+		if (Level.ERROR.ordinal() >= level) {
+			offer(Level.ERROR, format, a, b, c, 3);
+		}
+	}
+
+	/**
+	 * @return the lines dropped because the buffer was full.
+	 */
+	public static long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Waits (up to a second) until the lines logged so far are written.
+	 */
+	public static void flush() {
+		long until = tail.get();
+		long deadline = System.nanoTime() + 1_000_000_000L;
+		while (written < until && System.nanoTime() < deadline) {
+			LockSupport.unpark(appender);
+			LockSupport.parkNanos(100_000);
+		}
+		out.flush();
+	}
+
+	private static void offer(Level l, String format, Object a, Object b, Object c, int args) {
+		long pos = tail.get();
+		while (true) {
+			int i = (int) pos & MASK;
+			long seq = sequences.get(i);
+			if (seq == pos) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			} else if (seq < pos) {
+				//full: the appender has not freed the slot of pos - CAPACITY yet
+				dropped.increment();
+				return;
+			} else {
+				pos = tail.get();
+			}
+		}
+		int i = (int) pos & MASK;
+		Entry e = slots[i];
+		e.time = System.currentTimeMillis();
+		e.level = l.ordinal();
+		e.thread = Thread.currentThread().getName();
+		e.format = format;
+		e.a = a;
+		e.b = b;
+		e.c = c;
+		e.args = args;
+		sequences.set(i, pos + 1);
+	}
+
+	private static void append() {
+		StringBuilder sb = new StringBuilder(1 << 12);
+		long reported = 0;
+		long pos = 0;
+		while (true) {
+			int i = (int) pos & MASK;
+			if (sequences.get(i) != pos + 1) {
+				if (sb.length() > 0) {
+					out.print(sb);
+					out.flush();
+					sb.setLength(0);
+				}
+				written = pos;
+				LockSupport.parkNanos(1_000_000);
+				continue;
+			}
+			Entry e = slots[i];
+			int mark = sb.length();
+			try {
+				format(sb, e);
+			} catch (RuntimeException ex) {
+				//a toString() that fails must not stop the appender
+				sb.setLength(mark);
+				sb.append("Log: cannot format \"").append(e.format).append("\": ").append(ex).append('\n');
+			}
+			e.thread = null;
+			e.format = null;
+			e.a = e.b = e.c = null;
+			sequences.set(i, pos + CAPACITY);
+			pos++;
+
+			long lost = dropped.sum();
+			if (lost != reported) {
+				sb.append("Log: ").append(lost - reported).append(" lines dropped\n");
+				reported = lost;
+			}
+			if (sb.length() >= (1 << 12)) {
+				out.print(sb);
+				sb.setLength(0);
+			}
+		}
+	}
+
+	private static void format(StringBuilder sb, Entry e) {
+		long t = e.time % 86_400_000L;
+		pad(sb, t / 3_600_000, 2).append(':');
+		pad(sb, t / 60_000 % 60, 2).append(':');
+		pad(sb, t / 1000 % 60, 2).append('.');
+		pad(sb, t % 1000, 3).append(' ');
+		sb.append(LEVELS[e.level]).append(" [").append(e.thread).append("] ");
+
+		Object[] args = { e.a, e.b, e.c };
+		int next = 0;
+		String f = e.format;
+		int from = 0;
+		int at;
+		while (next < e.args && (at = f.indexOf("{}", from)) >= 0) {
+			sb.append(f, from, at).append(args[next++]);
+			from = at + 2;
+		}
+		sb.append(f, from, f.length()).append('\n');
+		if (next < e.args && args[e.args - 1] instanceof Throwable) {
+			StringWriter trace = new StringWriter();
+			((Throwable) args[e.args - 1]).printStackTrace(new PrintWriter(trace));
+			sb.append(trace);
+		}
+	}
+
+	private static StringBuilder pad(StringBuilder sb, long value, int width) {
+		String s = Long.toString(value);
+		for (int i = s.length(); i < width; i++) {
+			sb.append('0');
+		}
+		return sb.append(s);
+	}
+}
@@ -0,0 +1,249 @@
+package tools;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.BiConsumer;
+
+import structures.Store;
+
+/**
+ * Hash tree over the entries of a store that lie in a ring interval (from, to]. The interval is
+ * cut in 2^depth buckets of equal width by the distance of the ids from from (its top 64 bits),
+ * every leaf is the digest of the entries of its bucket and every inner node the digest of its
+ * two children. Two nodes that build a tree over
+ * the same interval can find the buckets they disagree on by walking down from the root, looking
+ * only at the subtrees whose digests differ.
+ *
+ * The tree is kept as a heap: node 1 is the root, the children of node i are 2i and 2i + 1 and
+ * the leaves are nodes 2^depth .. 2^(depth+1) - 1. An empty subtree has digest 0.
+ *
+ * A tracked tree (track()) is kept up to date instead of built again: the writes of the store
+ * touch() the buckets of their keys, and refresh() reads back only the buckets touched since the
+ * last refresh. A bucket is cleared before it is read, so a write racing with a refresh is read
+ * by the next one at the latest.
+ **/
+public class MerkleTree {
+
+	private final int depth;
+	private final ChordId from;
+	private final ChordId to;
+	private final long width; /* of a bucket, in units of 2^96 ids (unsigned) */
+	private final long[] digests;
+	private final long built; /* ms, when the tree was built or copied */
+	private final AtomicIntegerArray dirty; /* 1 for a bucket written since the last refresh, null if not tracked */
+	private volatile long refreshed; /* ms, of the last refresh */
+
+	private MerkleTree(int depth, ChordId from, ChordId to, boolean tracked) {
+		this.depth = depth;
+		this.from = from;
+		this.to = to;
+		width = width(from, to, depth);
+		digests = new long[2 << depth];
+		built = System.currentTimeMillis();
+		refreshed = built;
+		dirty = tracked ? new AtomicIntegerArray(1 << depth) : null;
+	}
+
+	private MerkleTree(MerkleTree tree) {
+		depth = tree.depth;
+		from = tree.from;
+		to = tree.to;
+		width = tree.width;
+		digests = tree.digests.clone();
+		built = System.currentTimeMillis();
+		refreshed = built;
+		dirty = null;
+	}
+
+	/**
+	 * Builds the tree of the entries of store in (from, to].
+	 */
+	public static MerkleTree build(Store store, ChordId from, ChordId to, int depth) {
+		MerkleTree tree = new MerkleTree(depth, from, to, false);
+		int leaves = 1 << depth;
+		store.forEach(from, to, (key, value) -> tree.digests[leaves + tree.bucketOf(key)] ^= digest(key, value));
+		for (int i = leaves - 1; i >= 1; i--) {
+			tree.digests[i] = combine(tree.digests[2 * i], tree.digests[2 * i + 1]);
+		}
+		return tree;
+	}
+
+	/**
+	 * @return an empty tree of (from, to] whose buckets are all read by its first refresh, and
+	 * then only those touched.
+	 */
+	public static MerkleTree track(ChordId from, ChordId to, int depth) {
+		MerkleTree tree = new MerkleTree(depth, from, to, true);
+		for (int i = 0; i < tree.dirty.length(); i++) {
+			tree.dirty.set(i, 1);
+		}
+		return tree;
+	}
+
+	/**
+	 * key has been written: its bucket is read again at the next refresh, if it lies in (from, to].
+	 */
+	public void touch(ChordId key) {
+		if (key.inHalfOpen(from, to)) {
+			dirty.set(bucketOf(key), 1);
+		}
+	}
+
+	/**
+	 * Reads the buckets touched since the last refresh from store, which is the store the tree
+	 * tracks, and updates the inner nodes above them.
+	 *
+	 * @return a copy of the tree as it is now, which later writes do not change.
+	 */
+	public synchronized MerkleTree refresh(Store store) {
+		int leaves = 1 << depth;
+		boolean changed = false;
+		for (int bucket = 0; bucket < leaves; bucket++) {
+			if (dirty.getAndSet(bucket, 0) == 0) {
+				continue;
+			}
+			long[] leaf = { 0 };
+			forEachIn(store, from, to, width, depth, bucket, (key, value) -> leaf[0] ^= digest(key, value));
+			digests[leaves + bucket] = leaf[0];
+			changed = true;
+		}
+		if (changed) {
+			for (int i = leaves - 1; i >= 1; i--) {
+				digests[i] = combine(digests[2 * i], digests[2 * i + 1]);
+			}
+		}
+		refreshed = System.currentTimeMillis();
+		return new MerkleTree(this);
+	}
+
+	/**
+	 * @return a copy of the entries of store in bucket that lie in (from, to], for a tree of
+	 * depth.
+	 */
+	public static Map<ChordId, String> entriesOf(Store store, ChordId from, ChordId to, int depth, int bucket) {
+		Map<ChordId, String> entries = new LinkedHashMap<>();
+		forEachIn(store, from, to, width(from, to, depth), depth, bucket, entries::put);
+		return entries;
+	}
+
+	/**
+	 * Calls action for the entries of store in bucket that lie in (from, to].
+	 */
+	private static void forEachIn(Store store, ChordId from, ChordId to, long width, int depth, int bucket,
+			BiConsumer<ChordId, String> action) {
+		//the bucket holds the ids in [lo, hi), hi is to for the last one
+		ChordId lo = new ChordId(from.getHigh() + bucket * width, from.getMid(), from.getLow());
+		ChordId hi = (bucket + 1 < (1 << depth)) ? new ChordId(from.getHigh() + (bucket + 1) * width, from.getMid(),
+				from.getLow()) : to;
+		String first = store.get(lo);
+		if (first != null && lo.inHalfOpen(from, to)) {
+			action.accept(lo, first);
+		}
+		if (!lo.equals(hi)) {
+			store.forEach(lo, hi, (key, value) -> {
+				if (key.inHalfOpen(from, to) && bucketOf(key, from, width, depth) == bucket) {
+					action.accept(key, value);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the bucket (leaf number, not heap index) of id, which lies in (from, to].
+	 */
+	public int bucketOf(ChordId id) {
+		return bucketOf(id, from, width, depth);
+	}
+
+	private static int bucketOf(ChordId id, ChordId from, long width, int depth) {
+		long bucket = Long.divideUnsigned(distance(from, id), width);
+		return (int) Math.min(bucket, (1 << depth) - 1);
+	}
+
+	/**
+	 * @return the width of a bucket of (from, to] in units of 2^96 ids, rounded up so the
+	 * 2^depth buckets cover the interval. from equal to to is the whole ring.
+	 */
+	private static long width(ChordId from, ChordId to, int depth) {
+		if (from.equals(to)) {
+			return 1L << (64 - depth);
+		}
+		long span = distance(from, to);
+		long width = (span >>> depth) + (((span & ((1L << depth) - 1)) != 0) ? 1 : 0);
+		return Math.max(width, 1);
+	}
+
+	/**
+	 * @return the top 64 bits of (id - from) mod 2^160, unsigned.
+	 */
+	private static long distance(ChordId from, ChordId id) {
+		boolean borrow = (id.getLow() & 0xffffffffL) < (from.getLow() & 0xffffffffL);
+		//the subtraction of the mid words borrows from the high ones
+		borrow = Long.compareUnsigned(id.getMid(), from.getMid()) < 0 || (id.getMid() == from.getMid() && borrow);
+		return id.getHigh() - from.getHigh() - (borrow ? 1 : 0);
+	}
+
+	public long digest(int node) {
+		return digests[node];
+	}
+
+	public boolean isLeaf(int node) {
+		return node >= (1 << depth);
+	}
+
+	/**
+	 * @return the leaf number of heap node node.
+	 */
+	public int bucket(int node) {
+		return node - (1 << depth);
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public ChordId getFrom() {
+		return from;
+	}
+
+	public ChordId getTo() {
+		return to;
+	}
+
+	public long getBuilt() {
+		return built;
+	}
+
+	public long getRefreshed() {
+		return refreshed;
+	}
+
+	/**
+	 * Digest of one entry. Leaves xor the digests of their entries, so the order in which they
+	 * are visited does not matter.
+	 */
+	private static long digest(ChordId key, String value) {
+		long h = 0xcbf29ce484222325L; /* 64-bit FNV-1a over the value */
+		for (int i = 0; i < value.length(); i++) {
+			h = (h ^ value.charAt(i)) * 0x100000001b3L;
+		}
+		return mix(h ^ key.getHigh() ^ Long.rotateLeft(key.getMid(), 21) ^ Long.rotateLeft(key.getLow(), 42));
+	}
+
+	private static long combine(long left, long right) {
+		if (left == 0 && right == 0) {
+			return 0;
+		}
+		return mix(left + 0x9e3779b97f4a7c15L * right);
+	}
+
+	/**
+	 * Finalizer of splitmix64, spreads every input bit over the whole digest.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -8,7 +8,7 @@ public class MyNodeComparator implements Comparator<Node>{
  
 	 @Override
 	 public int compare(Node a, Node b) {
-		 return a.getNodeId().compareToIgnoreCase(b.getNodeId());
+		 return a.getNodeId().compareTo(b.getNodeId());
 	 }
 
-}
\ No newline at end of file
+}
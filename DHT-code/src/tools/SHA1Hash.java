@@ -1,25 +1,80 @@
 package tools;
 
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 /**
  * Hash class for SHA1
  * source: http://www.sha1-online.com/sha1-java/
+ *
+ * Every thread keeps its own MessageDigest and buffers, so hashing a key allocates only the
+ * resulting ChordId.
  **/
 public class SHA1Hash {
 
-	public static String hash(String input) throws NoSuchAlgorithmException {
-		MessageDigest mDigest = MessageDigest.getInstance("SHA1");
-		byte[] result = mDigest.digest(input.getBytes());
-		StringBuffer sb = new StringBuffer();
+	private static final ThreadLocal<SHA1Hash> local = new ThreadLocal<SHA1Hash>() {
+		@Override
+		protected SHA1Hash initialValue() {
+			return new SHA1Hash();
+		}
+	};
+
+	private MessageDigest mDigest;
+	private byte[] input = new byte[64];
+	private byte[] result = new byte[ChordId.BYTES];
 
-		for (int i = 0; i < result.length; i++) {
-			sb.append(Integer.toString((result[i] & 0xff) + 0x100, 16).substring(1));
+	private SHA1Hash() {
+		try {
+			mDigest = MessageDigest.getInstance("SHA1");
+		} catch (NoSuchAlgorithmException e) {
+			/* every java platform is required to support sha1 */
+			throw new IllegalStateException(e);
 		}
+	}
 
-		return sb.toString();
+	public static ChordId hash(String input) {
+		return local.get().digest(input);
 	}
 
-}
+	private ChordId digest(String s) {
+		int length = encode(s);
+		mDigest.update(input, 0, length);
+		try {
+			mDigest.digest(result, 0, result.length);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+		return ChordId.fromBytes(result);
+	}
 
+	/**
+	 * Writes the UTF-8 bytes of s into the input buffer.
+	 *
+	 * @return the number of bytes written.
+	 */
+	private int encode(String s) {
+		int n = s.length();
+		if (input.length < 3 * n) {
+			input = new byte[3 * n];
+		}
+		int k = 0;
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				input[k++] = (byte) c;
+			} else {
+				/* not plain ascii, let the jdk deal with surrogates */
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				if (input.length < bytes.length) {
+					input = new byte[bytes.length];
+				}
+				System.arraycopy(bytes, 0, input, 0, bytes.length);
+				return bytes.length;
+			}
+		}
+		return k;
+	}
+
+}